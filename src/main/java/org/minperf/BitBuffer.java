@@ -1,28 +1,102 @@
 package org.minperf;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.util.Arrays;
 
+import org.minperf.storage.ByteBufferStorage;
+import org.minperf.storage.HeapStorage;
+import org.minperf.storage.Storage;
+
 /**
  * A simple bit buffer. It is partially optimized for reading, but writing is
  * relatively slow. Writing will only add bits (bitwise or with existing bits).
+ * <p>
+ * By default, the data is stored in a long array, but it can also be stored
+ * in a byte buffer (for example a memory mapped file), in which case the data
+ * is not copied.
  */
 public class BitBuffer {
 
-    public final long[] data;
-    private int pos;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * The number of words that are written at once by writeTo.
+     */
+    private static final int WRITE_BLOCK_WORDS = 8 * 1024;
+
+    private final Storage data;
 
+    /**
+     * The long array if the data is stored in a HeapStorage, otherwise null.
+     * Reading directly from the array avoids a virtual call per word, which
+     * could not be inlined if multiple storage types are used.
+     */
+    private final long[] words;
+
+    private long pos;
+
+    /**
+     * Create a buffer that is stored in a long array.
+     *
+     * @param bits the number of bits (at most about 2^37)
+     */
     public BitBuffer(long bits) {
-        this.data = new long[(int)((bits + 63) / 64)];
+        this(new HeapStorage(new long[getWordCount(bits)]));
+    }
+
+    private static int getWordCount(long bits) {
+        long words = (bits + 63) / 64;
+        if (bits < 0 || words > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException("Too large for a long array: " + bits + " bits");
+        }
+        return (int) words;
     }
 
     public BitBuffer(byte[] data) {
-        this.data = new long[(data.length + 7) / 8];
-        if (this.data.length != data.length * 8) {
-            data = Arrays.copyOf(data, this.data.length * 8);
+        long[] d = new long[(data.length + 7) / 8];
+        if (d.length != data.length * 8) {
+            data = Arrays.copyOf(data, d.length * 8);
         }
-        ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN).asLongBuffer().get(this.data);
+        ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN).asLongBuffer().get(d);
+        this.data = new HeapStorage(d);
+        this.words = d;
+    }
+
+    /**
+     * Create a buffer that uses the given storage.
+     *
+     * @param data the storage
+     */
+    public BitBuffer(Storage data) {
+        this.data = data;
+        this.words = data instanceof HeapStorage ?
+                ((HeapStorage) data).getLongArray() : null;
+    }
+
+    /**
+     * Create a buffer that reads from the given byte buffer (from the current
+     * position to the limit), in the format of toByteArray. The data is not
+     * copied.
+     *
+     * @param buffer the byte buffer (for example a direct buffer)
+     */
+    public BitBuffer(ByteBuffer buffer) {
+        this(new ByteBufferStorage(buffer));
+    }
+
+    /**
+     * Map a file that contains data in the format of toByteArray. The data is
+     * not copied, it is read from the file system cache as needed.
+     *
+     * @param file the file
+     * @return the (read-only) buffer
+     */
+    public static BitBuffer map(Path file) throws IOException {
+        return new BitBuffer(ByteBufferStorage.map(file));
     }
 
     /**
@@ -33,28 +107,73 @@ public class BitBuffer {
      */
     public BitBuffer(BitBuffer buffer) {
         this.data = buffer.data;
-   }
+        this.words = buffer.words;
+    }
 
-    public void write(BitBuffer bits) {
-        int count = bits.pos;
-        bits.pos = 0;
-        // for (int i = 0; i < count; i++) {
-        //     writeBit(bits.readBit());
-        // }
-        int i = 0;
-        for (; i < count - 31; i += 32) {
-            writeNumber(bits.readNumber(32), 32);
+    private long get(int index) {
+        long[] w = words;
+        if (w != null) {
+            return w[index];
+        }
+        return data.get(index);
+    }
+
+    private void set(int index, long x) {
+        long[] w = words;
+        if (w != null) {
+            w[index] = x;
+        } else {
+            data.set(index, x);
+        }
+    }
+
+    /**
+     * Copy bits from another buffer, 64 bits at a time. The target bits need
+     * to be zero. Target words that are fully covered are overwritten, so that
+     * different ranges of words can be copied concurrently. The positions of
+     * both buffers are not changed.
+     *
+     * @param targetPos the position in this buffer
+     * @param source the source buffer
+     * @param sourcePos the position in the source buffer
+     * @param count the number of bits
+     */
+    public void write(long targetPos, BitBuffer source, long sourcePos, long count) {
+        // first, fill the remaining bits of the first target word
+        int head = (int) Math.min(count, (64 - (targetPos & 63)) & 63);
+        int index = (int) (targetPos >>> 6);
+        if (head > 0) {
+            long x = source.readNumber(sourcePos, head);
+            int shift = 64 - (int) (targetPos & 63) - head;
+            set(index, get(index) | (x << shift));
+            sourcePos += head;
+            count -= head;
+            if (shift == 0) {
+                index++;
+            }
+        }
+        for (; count >= 64; count -= 64) {
+            set(index++, source.readLong(sourcePos));
+            sourcePos += 64;
         }
-        for (; i < count; i++) {
-            writeBit(bits.readBit());
+        if (count > 0) {
+            long x = source.readNumber(sourcePos, (int) count);
+            set(index, get(index) | (x << (64 - count)));
         }
     }
 
-    public int position() {
+    public void write(BitBuffer bits) {
+        long count = bits.pos;
+        write(pos, bits, 0, count);
+        pos += count;
+        bits.pos = count;
+    }
+
+    public long position() {
         return pos;
     }
 
-    public void seek(int pos) {
+    public void seek(long pos) {
         this.pos = pos;
     }
 
@@ -71,7 +190,42 @@ public class BitBuffer {
     }
 
     public long readLong() {
-        return (readNumber(32) << 32) | readNumber(32);
+        long x = readLong(pos);
+        pos += 64;
+        return x;
+    }
+
+    /**
+     * Read a 64 bit number.
+     *
+     * @param pos the position
+     * @return the value
+     */
+    public long readLong(long pos) {
+        int shift = (int) pos & 63;
+        int index = (int) (pos >>> 6);
+        long x = get(index);
+        if (shift == 0) {
+            return x;
+        }
+        return (x << shift) | (get(index + 1) >>> (64 - shift));
+    }
+
+    /**
+     * Read a number, without branches. The word at the position and the next
+     * word are always read, so the next word needs to exist.
+     *
+     * @param pos the position
+     * @param bitCount the number of bits, at most 63
+     * @return the value
+     */
+    public long readNumberBranchless(long pos, int bitCount) {
+        int shift = (int) pos & 63;
+        int index = (int) (pos >>> 6);
+        // shifting by 64 is a no-op in Java, so shift by 1 and then 63 - x
+        long x = (get(index) << shift) |
+                ((get(index + 1) >>> 1) >>> (63 - shift));
+        return (x >>> 1) >>> (63 - bitCount);
     }
 
     /**
@@ -87,14 +241,14 @@ public class BitBuffer {
         }
         int remainingBits = 64 - ((int) pos & 63);
         int index = (int) (pos >>> 6);
-        long x = data[index];
+        long x = get(index);
         if (bitCount <= remainingBits) {
             x >>>= remainingBits - bitCount;
             return x & ((1L << bitCount) - 1);
         }
         x = x & ((1L << remainingBits) - 1);
         return (x << (bitCount - remainingBits)) |
-                (data[index + 1] >>> (64 - bitCount + remainingBits));
+                (get(index + 1) >>> (64 - bitCount + remainingBits));
     }
 
     /**
@@ -121,19 +275,20 @@ public class BitBuffer {
 
     public void writeBit(long x) {
         if (x == 1) {
-            data[pos >>> 6] |= 1L << (63 - (pos & 63));
+            int index = (int) (pos >>> 6);
+            set(index, get(index) | (1L << (63 - (pos & 63))));
         }
         pos++;
     }
 
     public long readBit() {
-        return (data[pos >>> 6] >>> (63 - (pos++ & 63))) & 1;
+        return (get((int) (pos >>> 6)) >>> (63 - (pos++ & 63))) & 1;
     }
 
-    public int readUntilZero(int pos) {
-        int remainingBits = 64 - (pos & 63);
-        int index = pos >>> 6;
-        long x = data[index] << (64 - remainingBits);
+    public int readUntilZero(long pos) {
+        int remainingBits = 64 - ((int) pos & 63);
+        int index = (int) (pos >>> 6);
+        long x = get(index) << (64 - remainingBits);
         int count = Long.numberOfLeadingZeros(~x);
         if (count < remainingBits) {
             return count;
@@ -143,7 +298,7 @@ public class BitBuffer {
 
     private int readUntilZeroMore(int count, int index) {
         while (true) {
-            long x = data[++index];
+            long x = get(++index);
             if (x == -1L) {
                 count += 64;
                 continue;
@@ -214,8 +369,8 @@ public class BitBuffer {
 //        return x;
 //    }
 
-    public long readGolombRice(int pos, int shift) {
-        int q = readUntilZero(pos);
+    public long readGolombRice(long pos, int shift) {
+        long q = readUntilZero(pos);
         return (q << shift) | readNumber(pos + q + 1, shift);
     }
 
@@ -237,7 +392,7 @@ public class BitBuffer {
         pos = skipGolombRice(pos, shift);
     }
 
-    public int skipGolombRice(int pos, int shift) {
+    public long skipGolombRice(long pos, int shift) {
         int q = readUntilZero(pos);
         return pos + q + 1 + shift;
     }
@@ -288,13 +443,13 @@ public class BitBuffer {
         if (bitCount == 0) {
             return;
         }
-        int remainingBits = 64 - (pos & 63);
-        int index = pos >>> 6;
+        int remainingBits = 64 - ((int) pos & 63);
+        int index = (int) (pos >>> 6);
         if (bitCount <= remainingBits) {
-            data[index] |= x << (remainingBits - bitCount);
+            set(index, get(index) | (x << (remainingBits - bitCount)));
         } else {
-            data[index] |= x >>> (bitCount - remainingBits);
-            data[index + 1] |= x << (64 - bitCount + remainingBits);
+            set(index, get(index) | (x >>> (bitCount - remainingBits)));
+            set(index + 1, get(index + 1) | (x << (64 - bitCount + remainingBits)));
         }
         pos += bitCount;
     }
@@ -303,33 +458,70 @@ public class BitBuffer {
         if (bitCount == 0) {
             return;
         }
-        int remainingBits = 64 - (pos & 63);
-        int index = pos >>> 6;
+        int remainingBits = 64 - ((int) pos & 63);
+        int index = (int) (pos >>> 6);
         long x = (1 << bitCount) - 1;
         if (bitCount <= remainingBits) {
-            data[index] &= ~(x << (remainingBits - bitCount));
+            set(index, get(index) & ~(x << (remainingBits - bitCount)));
         } else {
-            data[index] &= ~(x >>> (bitCount - remainingBits));
-            data[index + 1] &= ~(x << (64 - bitCount + remainingBits));
+            set(index, get(index) & ~(x >>> (bitCount - remainingBits)));
+            set(index + 1, get(index + 1) & ~(x << (64 - bitCount + remainingBits)));
         }
         pos += bitCount;
     }
 
     public byte[] toByteArray() {
-        byte[] d = new byte[data.length * 8];
-        ByteBuffer.wrap(d).order(ByteOrder.BIG_ENDIAN).asLongBuffer()
-                .put(data, 0, (pos + 63) / 64);
-        if ((pos + 7) / 8 == d.length) {
+        if (pos > Integer.MAX_VALUE * 8L - 64) {
+            throw new IllegalStateException("Too large for a byte array: " + pos + " bits");
+        }
+        int words = (int) ((pos + 63) / 64);
+        byte[] d = new byte[words * 8];
+        ByteBuffer buff = ByteBuffer.wrap(d).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < words; i++) {
+            buff.putLong(get(i));
+        }
+        int len = (int) ((pos + 7) / 8);
+        if (len == d.length) {
             return d;
         }
-        return Arrays.copyOf(d, (pos + 7) / 8);
+        return Arrays.copyOf(d, len);
+    }
+
+    /**
+     * Write the data up to the current position, in the format of
+     * toByteArray. Unlike toByteArray, this also works if the data is larger
+     * than 2 GB. The written data can be mapped using map.
+     *
+     * @param out the output stream (not closed)
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long len = (pos + 7) / 8;
+        byte[] block = new byte[WRITE_BLOCK_WORDS * 8];
+        ByteBuffer buff = ByteBuffer.wrap(block).order(ByteOrder.BIG_ENDIAN);
+        int index = 0;
+        for (long written = 0; written < len;) {
+            buff.clear();
+            for (int i = 0; i < WRITE_BLOCK_WORDS && written + buff.position() < len; i++) {
+                buff.putLong(get(index++));
+            }
+            int n = (int) Math.min(buff.position(), len - written);
+            out.write(block, 0, n);
+            written += n;
+        }
     }
 
     public void clear() {
-        Arrays.fill(data, 0);
+        data.clear();
     }
 
     public long[] getLongArray() {
+        if (words == null) {
+            throw new UnsupportedOperationException("Not stored in a long array");
+        }
+        return words;
+    }
+
+    public Storage getStorage() {
         return data;
     }
 
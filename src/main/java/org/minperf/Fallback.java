@@ -0,0 +1,295 @@
+package org.minperf;
+
+import java.util.Collection;
+
+import org.minperf.bdz.BDZ;
+import org.minperf.bdz.CompactBDZ;
+import org.minperf.bdz.InterleavedBDZ;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.generator.Generator;
+import org.minperf.monotoneList.BucketDirectory;
+import org.minperf.universal.UniversalHash;
+
+/**
+ * The algorithm that is used for the keys of buckets that are too large (the
+ * alternative). Its description is stored after the buckets, and the type is
+ * stored in the header of the description, so that the evaluator knows which
+ * algorithm to load.
+ */
+public abstract class Fallback {
+
+    /**
+     * The BDZ algorithm, with a rank structure and 2 bits per used vertex.
+     */
+    public static final int BDZ = 0;
+
+    /**
+     * The BDZ algorithm, with 2 bits per vertex and sampled rank counts.
+     */
+    public static final int COMPACT_BDZ = 1;
+
+    /**
+     * RecSplit, with a different universal hash function, and with bucket
+     * rebalancing (so that there is no further alternative).
+     */
+    public static final int RECSPLIT = 2;
+
+    /**
+     * The BDZ algorithm, with the rank counts and g values interleaved in
+     * blocks of 512 bits, so that each lookup reads one cache line.
+     */
+    public static final int INTERLEAVED_BDZ = 3;
+
+    /**
+     * Get the type that is stored in the header. The types 0 to 15 are
+     * reserved for the built-in algorithms.
+     *
+     * @return the type
+     */
+    public abstract int getType();
+
+    /**
+     * Get the alignment (in bits, a power of two) of the description,
+     * relative to the start of the hash function description. The space
+     * before the description is padded.
+     *
+     * @param settings the settings of the main hash function
+     * @return the alignment (1 if none)
+     */
+    public int getAlignment(Settings settings) {
+        return 1;
+    }
+
+    /**
+     * Get the position of the description, if it is stored after the given
+     * position.
+     *
+     * @param start the start of the hash function description
+     * @param pos the position after the previous data
+     * @param settings the settings of the main hash function
+     * @return the aligned position
+     */
+    public long align(long start, long pos, Settings settings) {
+        long mask = getAlignment(settings) - 1;
+        return start + ((pos - start + mask) & ~mask);
+    }
+
+    /**
+     * Generate the description for the given keys.
+     *
+     * @param <T> the key type
+     * @param hash the universal hash function
+     * @param keys the keys
+     * @param settings the settings of the main hash function
+     * @param pool the pool that may be used
+     * @return the description
+     */
+    public abstract <T> BitBuffer generate(UniversalHash<T> hash,
+            Collection<T> keys, Settings settings, ConcurrencyTool pool);
+
+    /**
+     * Load a description. The buffer is positioned at the start of the
+     * description.
+     *
+     * @param <T> the key type
+     * @param hash the universal hash function
+     * @param data the buffer
+     * @param settings the settings of the main hash function
+     * @return the evaluator
+     */
+    public abstract <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+            Settings settings);
+
+    /**
+     * Get the built-in algorithm for the given type.
+     *
+     * @param type the type
+     * @return the algorithm
+     */
+    public static Fallback getInstance(int type) {
+        switch (type) {
+        case BDZ:
+            return new BDZFallback();
+        case COMPACT_BDZ:
+            return new CompactBDZFallback();
+        case RECSPLIT:
+            return new RecSplitFallback();
+        case INTERLEAVED_BDZ:
+            return new InterleavedBDZFallback();
+        default:
+            throw new IllegalArgumentException("Unknown fallback type: " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Evaluates a loaded description. The built-in algorithms use a method
+     * reference to the evaluate method of the loaded description.
+     *
+     * @param <T> the key type
+     */
+    public interface Evaluator<T> {
+
+        /**
+         * Get the index of a key, from 0 to the number of keys - 1.
+         *
+         * @param key the key
+         * @return the index
+         */
+        long evaluate(T key);
+
+    }
+
+    /**
+     * The BDZ algorithm.
+     */
+    public static class BDZFallback extends Fallback {
+
+        @Override
+        public int getType() {
+            return BDZ;
+        }
+
+        @Override
+        public <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> keys,
+                Settings settings, ConcurrencyTool pool) {
+            return org.minperf.bdz.BDZ.generate(hash, keys, pool);
+        }
+
+        @Override
+        public <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+                Settings settings) {
+            BDZ<T> bdz = org.minperf.bdz.BDZ.load(hash, data);
+            return bdz::evaluate;
+        }
+
+    }
+
+    /**
+     * The compact variant of the BDZ algorithm.
+     */
+    public static class CompactBDZFallback extends Fallback {
+
+        @Override
+        public int getType() {
+            return COMPACT_BDZ;
+        }
+
+        @Override
+        public <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> keys,
+                Settings settings, ConcurrencyTool pool) {
+            return CompactBDZ.generate(hash, keys, pool);
+        }
+
+        @Override
+        public <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+                Settings settings) {
+            CompactBDZ<T> bdz = CompactBDZ.load(hash, data);
+            return bdz::evaluate;
+        }
+
+    }
+
+    /**
+     * The BDZ algorithm with interleaved blocks.
+     */
+    public static class InterleavedBDZFallback extends Fallback {
+
+        @Override
+        public int getType() {
+            return INTERLEAVED_BDZ;
+        }
+
+        @Override
+        public int getAlignment(Settings settings) {
+            return InterleavedBDZ.BLOCK_BITS;
+        }
+
+        @Override
+        public <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> keys,
+                Settings settings, ConcurrencyTool pool) {
+            return InterleavedBDZ.generate(hash, keys, pool);
+        }
+
+        @Override
+        public <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+                Settings settings) {
+            InterleavedBDZ<T> bdz = InterleavedBDZ.load(hash, data);
+            return bdz::evaluate;
+        }
+
+    }
+
+    /**
+     * RecSplit, using a different universal hash function index range (so
+     * that the keys are distributed differently), and with rebalancing.
+     */
+    public static class RecSplitFallback extends Fallback {
+
+        /**
+         * The value that is added to the universal hash function index.
+         */
+        private static final long SEED = 1L << 62;
+
+        @Override
+        public int getType() {
+            return RECSPLIT;
+        }
+
+        /**
+         * With the bucket directory, the blocks are aligned relative to the
+         * start of this description, which is therefore aligned as well.
+         */
+        @Override
+        public int getAlignment(Settings settings) {
+            return settings.isBucketDirectory() ? BucketDirectory.BLOCK_BITS : 1;
+        }
+
+        private static <T> Settings getSettings(UniversalHash<T> hash, Settings settings) {
+            return new Settings(RecSplitBuilder.newInstance(hash).
+                    settings(settings).rebalanceBuckets(true));
+        }
+
+        @Override
+        public <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> keys,
+                Settings settings, ConcurrencyTool pool) {
+            Generator<T> g = new Generator<T>(pool, new SeededHash<T>(hash),
+                    getSettings(hash, settings), true, Integer.MAX_VALUE);
+            return g.generate(keys);
+        }
+
+        @Override
+        public <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+                Settings settings) {
+            RecSplitEvaluator<T> evaluator = new RecSplitEvaluator<T>(data,
+                    new SeededHash<T>(hash), getSettings(hash, settings), true);
+            return evaluator::evaluate;
+        }
+
+    }
+
+    /**
+     * A universal hash function that uses a different index range.
+     *
+     * @param <T> the key type
+     */
+    static class SeededHash<T> implements UniversalHash<T> {
+
+        private final UniversalHash<T> hash;
+
+        SeededHash(UniversalHash<T> hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public long universalHash(T key, long index) {
+            return hash.universalHash(key, index + RecSplitFallback.SEED);
+        }
+
+    }
+
+}
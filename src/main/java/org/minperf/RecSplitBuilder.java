@@ -1,9 +1,18 @@
 package org.minperf;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.minperf.generator.ConcurrencyTool;
 import org.minperf.generator.Generator;
+import org.minperf.generator.KeySerializer;
+import org.minperf.monotoneList.MonotoneList;
+import org.minperf.universal.LongHash;
+import org.minperf.universal.Signature;
+import org.minperf.universal.SignatureFunction;
+import org.minperf.universal.SignatureHash;
 import org.minperf.universal.UniversalHash;
 
 /**
@@ -16,9 +25,16 @@ public class RecSplitBuilder<T> {
     private final UniversalHash<T> hash;
     private int averageBucketSize = 256;
     private int leafSize = 10;
-    private boolean eliasFanoMonotoneLists = true;
+    private int monotoneListType = MonotoneList.ELIAS_FANO;
+    private boolean leafRotation;
+    private boolean rebalanceBuckets;
+    private boolean bucketDirectory;
     private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ExecutorService pool;
     private int maxChunkSize = Integer.MAX_VALUE;
+    private KeySerializer<T> keySerializer;
+    private SignatureFunction<T> signatureFunction;
+    private Fallback fallback;
 
     private RecSplitBuilder(UniversalHash<T> hash) {
         this.hash = hash;
@@ -44,15 +60,124 @@ public class RecSplitBuilder<T> {
     }
 
     public RecSplitBuilder<T> leafSize(int leafSize) {
-        if (leafSize < 1 || leafSize > 25) {
+        if (leafSize < 1 || leafSize > 32) {
             throw new IllegalArgumentException("leafSize out of range: " + leafSize);
         }
         this.leafSize = leafSize;
         return this;
     }
 
+    /**
+     * Enable or disable leaf rotation. With leaf rotation, many candidates are
+     * tested per supplemental hash function call when searching a bijection
+     * for a leaf, which makes large leaf sizes (up to 32) practical. The same
+     * setting needs to be used for generation and evaluation.
+     *
+     * @param leafRotation whether to use leaf rotation
+     * @return this
+     */
+    public RecSplitBuilder<T> leafRotation(boolean leafRotation) {
+        this.leafRotation = leafRotation;
+        return this;
+    }
+
+    /**
+     * Enable or disable bucket rebalancing. With rebalancing, the keys of
+     * overfull buckets are moved to other buckets (using a second hash
+     * choice), instead of being encoded using the alternative algorithm, so
+     * that all keys are evaluated using RecSplit. This requires that all keys
+     * fit in one chunk. The same setting needs to be used for generation and
+     * evaluation.
+     *
+     * @param rebalanceBuckets whether to rebalance buckets
+     * @return this
+     */
+    public RecSplitBuilder<T> rebalanceBuckets(boolean rebalanceBuckets) {
+        this.rebalanceBuckets = rebalanceBuckets;
+        return this;
+    }
+
+    /**
+     * Enable or disable the bucket directory. With the directory, the offset
+     * and the start position of a bucket are stored together in blocks of 512
+     * bits (see BucketDirectory), so that they are read from one cache line.
+     * This needs a bit more space than the Elias-Fano monotone lists. The
+     * same setting needs to be used for generation and evaluation.
+     *
+     * @param bucketDirectory whether to use the bucket directory
+     * @return this
+     */
+    public RecSplitBuilder<T> bucketDirectory(boolean bucketDirectory) {
+        this.bucketDirectory = bucketDirectory;
+        return this;
+    }
+
+    /**
+     * Use the leaf size, the average bucket size, and the options (leaf
+     * rotation, bucket rebalancing, bucket directory) of the given settings.
+     *
+     * @param settings the settings
+     * @return this
+     */
+    RecSplitBuilder<T> settings(Settings settings) {
+        this.leafSize = settings.getLeafSize();
+        this.averageBucketSize = settings.getAverageBucketSize();
+        this.leafRotation = settings.isLeafRotation();
+        this.rebalanceBuckets = settings.isRebalanceBuckets();
+        this.bucketDirectory = settings.isBucketDirectory();
+        return this;
+    }
+
+    int getLeafSize() {
+        return leafSize;
+    }
+
+    int getAverageBucketSize() {
+        return averageBucketSize;
+    }
+
+    boolean isLeafRotation() {
+        return leafRotation;
+    }
+
+    boolean isRebalanceBuckets() {
+        return rebalanceBuckets;
+    }
+
+    boolean isBucketDirectory() {
+        return bucketDirectory;
+    }
+
+    /**
+     * Set the algorithm that is used for the keys of buckets that are too
+     * large (see Fallback). The type of the algorithm is stored in the
+     * description. A custom algorithm (one that is not built in) also needs
+     * to be set for evaluation.
+     *
+     * @param fallback the algorithm, or null for the default (BDZ)
+     * @return this
+     */
+    public RecSplitBuilder<T> fallback(Fallback fallback) {
+        this.fallback = fallback;
+        return this;
+    }
+
     public RecSplitBuilder<T> eliasFanoMonotoneLists(boolean eliasFano) {
-        this.eliasFanoMonotoneLists = eliasFano;
+        this.monotoneListType = eliasFano ? MonotoneList.ELIAS_FANO : MonotoneList.MULTI_STAGE;
+        return this;
+    }
+
+    /**
+     * Set the type of the monotone lists of the bucket offsets and start
+     * positions (see MonotoneList), for example MonotoneList.ALIGNED, where
+     * a lookup reads one cache line. The default is Elias-Fano. The same
+     * setting needs to be used for generation and evaluation.
+     *
+     * @param monotoneListType the type
+     * @return this
+     */
+    public RecSplitBuilder<T> monotoneListType(int monotoneListType) {
+        this.monotoneListType = monotoneListType;
         return this;
     }
 
@@ -61,11 +186,75 @@ public class RecSplitBuilder<T> {
         return this;
     }
 
+    /**
+     * Set the serializer that is used to write keys to temporary files, if
+     * the set is larger than the maximum chunk size. This is only needed if
+     * the keys are neither longs nor strings; without a serializer, the set
+     * is iterated once per chunk.
+     *
+     * @param keySerializer the serializer
+     * @return this
+     */
+    public RecSplitBuilder<T> keySerializer(KeySerializer<T> keySerializer) {
+        this.keySerializer = keySerializer;
+        return this;
+    }
+
+    /**
+     * Enable or disable signature mode. In signature mode, each key is
+     * reduced once to a 128 bit signature, and the hash function is generated
+     * and evaluated on the signature. This requires that the universal hash
+     * function is also a SignatureFunction. The same setting needs to be used
+     * for generation and evaluation.
+     *
+     * @param signatures whether to use signature mode
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
+    public RecSplitBuilder<T> signatures(boolean signatures) {
+        if (!signatures) {
+            signatureFunction = null;
+        } else if (hash instanceof SignatureFunction) {
+            signatureFunction = (SignatureFunction<T>) hash;
+        } else {
+            throw new IllegalArgumentException("Not a signature function: " + hash);
+        }
+        return this;
+    }
+
     public RecSplitBuilder<T> parallelism(int parallelism) {
         this.parallelism = parallelism;
         return this;
     }
 
+    /**
+     * Use the given pool to generate. Otherwise, a new ForkJoinPool is
+     * created for each call to generate, and shut down afterwards. The pool is
+     * not shut down, so it can be shared, for example when generating many
+     * hash functions.
+     * <p>
+     * For a ForkJoinPool, the parallelism setting is ignored. Any other
+     * executor is used for at most parallelism - 1 helper tasks; the thread
+     * that calls generate also does part of the work, so that a bounded or
+     * busy executor can not deadlock (see ConcurrencyTool).
+     *
+     * @param pool the pool, or null to create a new pool for each call
+     * @return this
+     */
+    public RecSplitBuilder<T> pool(ExecutorService pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    private ConcurrencyTool newConcurrencyTool() {
+        if (pool instanceof ForkJoinPool) {
+            return new ConcurrencyTool((ForkJoinPool) pool);
+        } else if (pool != null) {
+            return new ConcurrencyTool(pool, Math.max(1, parallelism));
+        }
+        return new ConcurrencyTool(parallelism);
+    }
+
     /**
      * Generate the hash function description for a collection.
      * The entries in the collection must be unique.
@@ -73,19 +262,160 @@ public class RecSplitBuilder<T> {
      * @param collection the collection
      * @return the hash function description
      */
-    public BitBuffer generate(Collection<T> collection) {
-        Settings s = new Settings(leafSize, averageBucketSize);
-        ConcurrencyTool pool = new ConcurrencyTool(parallelism);
-        Generator<T> g = new Generator<T>(
-                pool, hash, s,
-                eliasFanoMonotoneLists, maxChunkSize);
-        BitBuffer result = g.generate(collection);
-        return result;
+    public BitBuffer generate(final Collection<T> collection) {
+        if (signatureFunction != null) {
+            return generateSignatures(collection, collection.size());
+        }
+        return generate(hash, keySerializer, new GenerateCall<T>() {
+
+            @Override
+            public BitBuffer generate(Generator<T> g) {
+                return g.generate(collection);
+            }
+
+        });
+    }
+
+    /**
+     * Generate the hash function description for a set of keys that is
+     * possibly larger than 2^31 entries. If the size is larger than the
+     * maximum chunk size, the keys are partitioned into chunks using
+     * temporary files (see keySerializer). The entries must be unique.
+     *
+     * @param keys the keys
+     * @param size the number of keys
+     * @return the hash function description
+     */
+    public BitBuffer generate(final Iterable<T> keys, final long size) {
+        if (signatureFunction != null) {
+            return generateSignatures(keys, size);
+        }
+        return generate(hash, keySerializer, new GenerateCall<T>() {
+
+            @Override
+            public BitBuffer generate(Generator<T> g) {
+                return g.generate(keys, size);
+            }
+
+        });
+    }
+
+    /**
+     * Generate the hash function description for an array of long keys. This
+     * avoids boxing, but requires that the universal hash function of this
+     * builder is LongHash. The entries in the array must be unique.
+     *
+     * @param keys the keys
+     * @return the hash function description
+     */
+    @SuppressWarnings("unchecked")
+    public BitBuffer generate(final long[] keys) {
+        if (!(hash instanceof LongHash)) {
+            throw new IllegalArgumentException("Long keys require LongHash, got " + hash);
+        }
+        return generate((UniversalHash<Long>) hash, null, new GenerateCall<Long>() {
+
+            @Override
+            public BitBuffer generate(Generator<Long> g) {
+                return g.generate(keys);
+            }
+
+        });
+    }
+
+    private BitBuffer generateSignatures(final Iterable<T> keys, final long size) {
+        return generate(new SignatureHash(), null, new GenerateCall<Signature>() {
+
+            @Override
+            public BitBuffer generate(Generator<Signature> g) {
+                return generateSignatures(g, keys, size);
+            }
+
+        });
+    }
+
+    /**
+     * Run one generate call with a new generator.
+     *
+     * @param <K> the key type of the generator
+     * @param h the universal hash function
+     * @param serializer the key serializer, or null
+     * @param call the call
+     * @return the hash function description
+     */
+    private <K> BitBuffer generate(UniversalHash<K> h,
+            KeySerializer<K> serializer, GenerateCall<K> call) {
+        Settings s = new Settings(this);
+        ConcurrencyTool pool = newConcurrencyTool();
+        try {
+            Generator<K> g = new Generator<K>(
+                    pool, h, s,
+                    monotoneListType, maxChunkSize);
+            if (serializer != null) {
+                g.setKeySerializer(serializer);
+            }
+            if (fallback != null) {
+                g.setFallback(fallback);
+            }
+            return call.generate(g);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A generate call.
+     *
+     * @param <K> the key type
+     */
+    private interface GenerateCall<K> {
+
+        BitBuffer generate(Generator<K> g);
+
+    }
+
+    private BitBuffer generateSignatures(Generator<Signature> g,
+            final Iterable<T> keys, long size) {
+        if (size <= maxChunkSize && size <= Integer.MAX_VALUE / 2) {
+            long[] signatures = new long[(int) (2 * size)];
+            int i = 0;
+            for (T t : keys) {
+                signatureFunction.signature(t, signatures, i);
+                i += 2;
+            }
+            return g.generateSignatures(signatures);
+        }
+        // the signatures are written to temporary files
+        Iterable<Signature> signatures = new Iterable<Signature>() {
+
+            @Override
+            public Iterator<Signature> iterator() {
+                final Iterator<T> it = keys.iterator();
+                final long[] sig = new long[2];
+                return new Iterator<Signature>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Signature next() {
+                        signatureFunction.signature(it.next(), sig, 0);
+                        return new Signature(sig[0], sig[1]);
+                    }
+
+                };
+            }
+
+        };
+        return g.generate(signatures, size);
     }
 
     public RecSplitEvaluator<T> buildEvaluator(BitBuffer description) {
-        Settings s = new Settings(leafSize, averageBucketSize);
-        return new RecSplitEvaluator<T>(new BitBuffer(description), hash, s, eliasFanoMonotoneLists);
+        Settings s = new Settings(this);
+        return new RecSplitEvaluator<T>(new BitBuffer(description), hash, s,
+                monotoneListType, signatureFunction, fallback);
     }
 
 }
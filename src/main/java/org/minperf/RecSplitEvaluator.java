@@ -1,8 +1,12 @@
 package org.minperf;
 
-import org.minperf.bdz.BDZ;
 import org.minperf.generator.Generator;
+import org.minperf.monotoneList.BucketDirectory;
 import org.minperf.monotoneList.MonotoneList;
+import org.minperf.universal.LongHash;
+import org.minperf.universal.Signature;
+import org.minperf.universal.SignatureFunction;
+import org.minperf.universal.SignatureHash;
 import org.minperf.universal.UniversalHash;
 
 /**
@@ -12,90 +16,426 @@ import org.minperf.universal.UniversalHash;
  */
 public class RecSplitEvaluator<T> {
 
+    /**
+     * The number of keys that are processed at the same time by evaluateBatch.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * The signature of the key that is evaluated, per thread, so that single
+     * lookups in signature mode do not allocate an array.
+     */
+    private static final ThreadLocal<long[]> SIGNATURE = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
     private final Settings settings;
     private final UniversalHash<T> hash;
     private final BitBuffer buffer;
     private final long size;
     private final int bucketCount;
-    private final int minStartDiff;
+    private final long minStartDiff;
     private final MonotoneList startList;
-    private final int minOffsetDiff;
+    private final long minOffsetDiff;
     private final MonotoneList offsetList;
-    private final int startBuckets;
-    private final int endHeader;
-    private final int endOffsetList;
-    private final BDZ<T> alternative;
+    private final boolean offsetPairs;
+    private final long startBuckets;
+    private final long endHeader;
+    private final long endOffsetList;
+    private final Fallback.Evaluator<T> alternative;
+    private final Fallback.Evaluator<Signature> signatureAlternative;
+    private final boolean longHash;
+    private final SignatureFunction<T> signatureFunction;
 
     public RecSplitEvaluator(BitBuffer buffer, UniversalHash<T> hash, Settings settings, boolean eliasFanoMonotoneLists) {
+        this(buffer, hash, settings, eliasFanoMonotoneLists, null);
+    }
+
+    /**
+     * Create an evaluator. If a signature function is set, the description
+     * needs to be generated in signature mode: each key is reduced to a 128
+     * bit signature, and the hash function is evaluated on the signature
+     * using SignatureHash.
+     *
+     * @param buffer the description
+     * @param hash the universal hash function
+     * @param settings the settings
+     * @param eliasFanoMonotoneLists whether Elias-Fano monotone lists are used
+     * @param signatureFunction the signature function, or null
+     */
+    public RecSplitEvaluator(BitBuffer buffer, UniversalHash<T> hash, Settings settings,
+            boolean eliasFanoMonotoneLists, SignatureFunction<T> signatureFunction) {
+        this(buffer, hash, settings, eliasFanoMonotoneLists, signatureFunction, null);
+    }
+
+    /**
+     * Create an evaluator. The algorithm for the keys of large buckets is
+     * stored in the header; if it is not the given fallback, a built-in
+     * algorithm is used.
+     *
+     * @param buffer the description
+     * @param hash the universal hash function
+     * @param settings the settings
+     * @param eliasFanoMonotoneLists whether Elias-Fano monotone lists are used
+     * @param signatureFunction the signature function, or null
+     * @param fallback the algorithm that was used for large buckets, or null
+     */
+    public RecSplitEvaluator(BitBuffer buffer, UniversalHash<T> hash, Settings settings,
+            boolean eliasFanoMonotoneLists, SignatureFunction<T> signatureFunction,
+            Fallback fallback) {
+        this(buffer, hash, settings, eliasFanoMonotoneLists ?
+                MonotoneList.ELIAS_FANO : MonotoneList.MULTI_STAGE,
+                signatureFunction, fallback);
+    }
+
+    /**
+     * Create an evaluator.
+     *
+     * @param buffer the description
+     * @param hash the universal hash function
+     * @param settings the settings
+     * @param monotoneListType the type of the monotone lists (see
+     *            MonotoneList)
+     * @param signatureFunction the signature function, or null
+     * @param fallback the algorithm that was used for large buckets, or null
+     */
+    public RecSplitEvaluator(BitBuffer buffer, UniversalHash<T> hash, Settings settings,
+            int monotoneListType, SignatureFunction<T> signatureFunction,
+            Fallback fallback) {
         this.settings = settings;
         this.hash = hash;
+        this.longHash = hash instanceof LongHash && signatureFunction == null;
+        this.signatureFunction = signatureFunction;
         this.buffer = buffer;
-        this.size = (int) (buffer.readEliasDelta() - 1);
+        long start = buffer.position();
+        this.size = buffer.readEliasDelta() - 1;
         this.bucketCount = Settings.getBucketCount(size, settings.getAverageBucketSize());
+        // the stored offsets are at most size, so if they fit in 31 bits,
+        // two consecutive offsets can be read at once
+        this.offsetPairs = size <= Integer.MAX_VALUE;
         boolean alternative = buffer.readBit() != 0;
-        this.minOffsetDiff = (int) (buffer.readEliasDelta() - 1);
-        this.minStartDiff = (int) (buffer.readEliasDelta() - 1);
+        int fallbackType = alternative ? (int) buffer.readEliasDelta() - 1 : -1;
+        this.minOffsetDiff = buffer.readEliasDelta() - 1;
+        this.minStartDiff = buffer.readEliasDelta() - 1;
         this.endHeader = buffer.position();
-        this.offsetList = MonotoneList.load(buffer, eliasFanoMonotoneLists);
-        this.endOffsetList = buffer.position();
-        this.startList = MonotoneList.load(buffer, eliasFanoMonotoneLists);
+        if (settings.isBucketDirectory()) {
+            BucketDirectory directory = BucketDirectory.load(buffer, start);
+            this.offsetList = directory.getList0();
+            this.endOffsetList = buffer.position();
+            this.startList = directory.getList1();
+        } else {
+            this.offsetList = MonotoneList.load(buffer, monotoneListType, start);
+            this.endOffsetList = buffer.position();
+            this.startList = MonotoneList.load(buffer, monotoneListType, start);
+        }
         this.startBuckets = buffer.position();
         if (alternative) {
             int b = bucketCount;
-            int offset = offsetList.get(b);
-            int pos = startBuckets +
+            long offset = offsetList.get(b);
+            long pos = startBuckets +
                     Generator.getMinBitCount(offset) +
                     startList.get(b) + b * minStartDiff;
-            buffer.seek(pos);
-            this.alternative = BDZ.load(hash, buffer);
+            if (fallback == null || fallback.getType() != fallbackType) {
+                fallback = Fallback.getInstance(fallbackType);
+            }
+            buffer.seek(fallback.align(start, pos, settings));
+            if (signatureFunction == null) {
+                this.alternative = fallback.load(hash, buffer, settings);
+                this.signatureAlternative = null;
+            } else {
+                this.alternative = null;
+                this.signatureAlternative = fallback.load(new SignatureHash(), buffer, settings);
+            }
         } else {
             this.alternative = null;
+            this.signatureAlternative = null;
         }
     }
 
-    public int getHeaderSize() {
+    public long getHeaderSize() {
         return endHeader;
     }
 
-    public int getOffsetListSize() {
+    public long getOffsetListSize() {
         return endOffsetList - endHeader;
     }
 
-    public int getStartListSize() {
+    public long getStartListSize() {
         return startBuckets - endOffsetList;
     }
 
-    public int evaluate(T obj) {
+    public long evaluate(T obj) {
+        if (signatureFunction != null) {
+            long[] sig = SIGNATURE.get();
+            signatureFunction.signature(obj, sig, 0);
+            return evaluate(null, sig[0], sig[1],
+                    SignatureHash.universalHash(sig[0], sig[1], 0));
+        }
+        return evaluate(obj, 0, 0, hash.universalHash(obj, 0));
+    }
+
+    /**
+     * Evaluate a long key. If the universal hash function is LongHash (and
+     * signatures are not used), the key is not boxed; otherwise, this is the
+     * same as evaluating the boxed key.
+     *
+     * @param key the key
+     * @return the index
+     */
+    @SuppressWarnings("unchecked")
+    public long evaluate(long key) {
+        if (!longHash) {
+            return evaluate((T) Long.valueOf(key));
+        }
+        return evaluate(null, key, 0, LongHash.universalHash(key, 0));
+    }
+
+    /**
+     * Evaluate a key.
+     *
+     * @param obj the key, or null if a long key or a signature is used
+     * @param key the long key, or the high part of the signature (only used
+     *            if obj is null)
+     * @param key2 the low part of the signature (only used in signature mode)
+     * @param hashCode the universal hash of the key at index 0
+     * @return the index
+     */
+    private long evaluate(T obj, long key, long key2, long hashCode) {
         int b;
-        long hashCode = hash.universalHash(obj, 0);
-//System.out.println("hashCode " + obj + " =" + hashCode);
         if (bucketCount == 1) {
             b = 0;
         } else {
             b = Settings.reduce((int) hashCode, bucketCount);
         }
-//System.out.println("bucket " + b);
-        int startPos;
-        long offsetPair = offsetList.getPair(b);
-        int offset = (int) (offsetPair >>> 32) + b * minOffsetDiff;
-        int offsetNext = ((int) offsetPair) + (b + 1) * minOffsetDiff;
+        long startPos;
+        long offset, offsetNext;
+        if (offsetPairs) {
+            long offsetPair = offsetList.getPair(b);
+            offset = (offsetPair >>> 32) + b * minOffsetDiff;
+            offsetNext = ((int) offsetPair) + (b + 1) * minOffsetDiff;
+        } else {
+            offset = getOffset(b);
+            offsetNext = getOffset(b + 1);
+        }
         if (offsetNext == offset) {
-            if (alternative == null) {
+            if (settings.isRebalanceBuckets() && bucketCount > 1) {
+                b = getRedirectedBucket(obj, key, key2, b);
+                offset = getOffset(b);
+                offsetNext = getOffset(b + 1);
+            } else if (alternative == null && signatureAlternative == null) {
                 // entry not found
                 return 0;
+            } else {
+                return getOffset(bucketCount) + evaluateAlternative(obj, key, key2);
             }
-            offset = offsetList.get(bucketCount) + bucketCount * minOffsetDiff;
-            return offset + alternative.evaluate(obj);
         }
-        int bucketSize = offsetNext - offset;
+        int bucketSize = (int) (offsetNext - offset);
         startPos = startBuckets +
                 Generator.getMinBitCount(offset) +
                 startList.get(b) + b * minStartDiff;
-//System.out.println("startPos " + startPos + " offset " + offset + " bucketSize " + bucketSize);
-        return evaluate(startPos, obj, hashCode, 0, offset, bucketSize);
+        return evaluate(startPos, obj, key, key2, hashCode, 0, offset, bucketSize);
     }
 
-    private int skip(int pos, int size) {
+    /**
+     * Evaluate a number of keys at once. The result is the same as calling
+     * evaluate for each key, but the keys are processed in groups: first the
+     * bucket of each key is calculated, then the bucket directory entries are
+     * read, and then the bucket descriptions are processed one level at a
+     * time for all keys of the group. That way, the memory accesses of
+     * multiple keys are independent of each other, so that the cache misses
+     * can overlap.
+     *
+     * @param keys the keys
+     * @param out the result array (at least as large as the keys array)
+     */
+    public void evaluateBatch(T[] keys, long[] out) {
+        int len = keys.length;
+        if (out.length < len) {
+            throw new IllegalArgumentException("Result array too small: " + out.length);
+        }
+        int groupSize = Math.min(len, BATCH_SIZE);
+        long[] hashCodes = new long[groupSize];
+        long[] indexes = new long[groupSize];
+        int[] buckets = new int[groupSize];
+        long[] positions = new long[groupSize];
+        long[] adds = new long[groupSize];
+        int[] sizes = new int[groupSize];
+        long[] offsets = new long[groupSize];
+        long[] offsetNexts = new long[groupSize];
+        long[] signatures = signatureFunction == null ? null : new long[2 * groupSize];
+        for (int start = 0; start < len; start += groupSize) {
+            int count = Math.min(groupSize, len - start);
+            for (int j = 0; j < count; j++) {
+                long hashCode;
+                if (signatures != null) {
+                    signatureFunction.signature(keys[start + j], signatures, 2 * j);
+                    hashCode = SignatureHash.universalHash(signatures[2 * j], signatures[2 * j + 1], 0);
+                } else {
+                    hashCode = hash.universalHash(keys[start + j], 0);
+                }
+                hashCodes[j] = hashCode;
+                buckets[j] = bucketCount == 1 ? 0 : Settings.reduce((int) hashCode, bucketCount);
+            }
+            for (int j = 0; j < count; j++) {
+                int b = buckets[j];
+                if (offsetPairs) {
+                    long offsetPair = offsetList.getPair(b);
+                    offsets[j] = (offsetPair >>> 32) + b * minOffsetDiff;
+                    offsetNexts[j] = ((int) offsetPair) + (b + 1) * minOffsetDiff;
+                } else {
+                    offsets[j] = getOffset(b);
+                    offsetNexts[j] = getOffset(b + 1);
+                }
+            }
+            int active = 0;
+            for (int j = 0; j < count; j++) {
+                long offset = offsets[j];
+                long offsetNext = offsetNexts[j];
+                if (offsetNext == offset && settings.isRebalanceBuckets() && bucketCount > 1) {
+                    int b;
+                    if (signatures != null) {
+                        b = getRedirectedBucket(null, signatures[2 * j],
+                                signatures[2 * j + 1], buckets[j]);
+                    } else {
+                        b = getRedirectedBucket(keys[start + j], 0, 0, buckets[j]);
+                    }
+                    buckets[j] = b;
+                    offset = getOffset(b);
+                    offsetNext = getOffset(b + 1);
+                }
+                if (offsetNext == offset) {
+                    if (alternative == null && signatureAlternative == null) {
+                        // entry not found
+                        out[start + j] = 0;
+                    } else if (signatures != null) {
+                        out[start + j] = getOffset(bucketCount) + evaluateAlternative(
+                                null, signatures[2 * j], signatures[2 * j + 1]);
+                    } else {
+                        out[start + j] = getOffset(bucketCount) +
+                                evaluateAlternative(keys[start + j], 0, 0);
+                    }
+                    sizes[j] = 0;
+                    continue;
+                }
+                adds[j] = offset;
+                sizes[j] = (int) (offsetNext - offset);
+                indexes[j] = 0;
+                active++;
+            }
+            for (int j = 0; j < count; j++) {
+                if (sizes[j] > 0) {
+                    int b = buckets[j];
+                    positions[j] = startBuckets +
+                            Generator.getMinBitCount(adds[j]) +
+                            startList.get(b) + b * minStartDiff;
+                }
+            }
+            while (active > 0) {
+                for (int j = 0; j < count; j++) {
+                    int size = sizes[j];
+                    if (size == 0) {
+                        continue;
+                    }
+                    long add = adds[j];
+                    if (size < 2) {
+                        out[start + j] = add;
+                        sizes[j] = 0;
+                        active--;
+                        continue;
+                    }
+                    long pos = positions[j];
+                    long index = indexes[j];
+                    int shift = settings.getGolombRiceShift(size);
+                    long q = buffer.readUntilZero(pos);
+                    pos += q + 1;
+                    long value = (q << shift) | buffer.readNumber(pos, shift);
+                    pos += shift;
+                    int rotation = 0;
+                    if (size <= settings.getLeafSize() && settings.isLeafRotation()) {
+                        rotation = (int) (value % size);
+                        value /= size;
+                    }
+                    long oldX = Settings.getUniversalHashIndex(index);
+                    index += value + 1;
+                    long x = Settings.getUniversalHashIndex(index);
+                    if (x != oldX) {
+                        if (signatures != null) {
+                            hashCodes[j] = SignatureHash.universalHash(
+                                    signatures[2 * j], signatures[2 * j + 1], x);
+                        } else {
+                            hashCodes[j] = hash.universalHash(keys[start + j], x);
+                        }
+                    }
+                    if (size <= settings.getLeafSize()) {
+                        out[start + j] = add + getLeafPosition(hashCodes[j], index, size, rotation);
+                        sizes[j] = 0;
+                        active--;
+                        continue;
+                    }
+                    int h = Settings.supplementalHash(hashCodes[j], index);
+                    int split = settings.getSplit(size);
+                    int firstPart, otherPart;
+                    if (split < 0) {
+                        firstPart = -split;
+                        otherPart = size - firstPart;
+                        split = 2;
+                    } else {
+                        firstPart = size / split;
+                        otherPart = firstPart;
+                    }
+                    if (firstPart != otherPart) {
+                        h = Settings.reduce(h, size);
+                        if (h < firstPart) {
+                            size = firstPart;
+                        } else {
+                            pos = skip(pos, firstPart);
+                            add += firstPart;
+                            size = otherPart;
+                        }
+                    } else {
+                        h = Settings.reduce(h, split);
+                        for (int i = 0; i < h; i++) {
+                            pos = skip(pos, firstPart);
+                            add += firstPart;
+                        }
+                        size = firstPart;
+                    }
+                    positions[j] = pos;
+                    indexes[j] = index;
+                    adds[j] = add;
+                    sizes[j] = size;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the bucket a key was moved to, if its bucket is empty (which is the
+     * case if the bucket was redirected). This is the first bucket that is
+     * not empty, using the universal hash functions with index -1, -2,...
+     *
+     * @param obj the key, or null if a long key or a signature is used
+     * @param key the long key, or the high part of the signature
+     * @param key2 the low part of the signature
+     * @param b the (empty) bucket
+     * @return the bucket that is not empty
+     */
+    private int getRedirectedBucket(T obj, long key, long key2, int b) {
+        for (int redirect = 1; getOffset(b + 1) == getOffset(b); redirect++) {
+            long h = universalHash(obj, key, key2, -redirect);
+            b = Settings.reduce((int) h, bucketCount);
+        }
+        return b;
+    }
+
+    private long getOffset(int b) {
+        return offsetList.get(b) + b * minOffsetDiff;
+    }
+
+    private long skip(long pos, int size) {
         if (size < 2) {
             return pos;
         }
@@ -121,8 +461,51 @@ public class RecSplitEvaluator<T> {
         return pos;
     }
 
-    private int evaluate(int pos, T obj, long hashCode,
-            long index, int add, int size) {
+    @SuppressWarnings("unchecked")
+    private long evaluateAlternative(T obj, long key, long key2) {
+        if (signatureAlternative != null) {
+            return signatureAlternative.evaluate(new Signature(key, key2));
+        }
+        if (obj == null) {
+            // the (rare) alternative keys are boxed
+            obj = (T) Long.valueOf(key);
+        }
+        return alternative.evaluate(obj);
+    }
+
+    private long universalHash(T obj, long key, long key2, long index) {
+        if (obj != null) {
+            return hash.universalHash(obj, index);
+        } else if (signatureFunction != null) {
+            return SignatureHash.universalHash(key, key2, index);
+        }
+        return LongHash.universalHash(key, index);
+    }
+
+    /**
+     * Get the position of a key within a leaf. With leaf rotation, the
+     * positions of keys with the highest bit of the hash code set are rotated.
+     *
+     * @param hashCode the universal hash code
+     * @param index the index
+     * @param size the leaf size
+     * @param rotation the rotation (0 if not used)
+     * @return the position
+     */
+    private static int getLeafPosition(long hashCode, long index, int size, int rotation) {
+        int h = Settings.supplementalHash(hashCode, index);
+        h = Settings.reduce(h, size);
+        if (hashCode < 0) {
+            h += rotation;
+            if (h >= size) {
+                h -= size;
+            }
+        }
+        return h;
+    }
+
+    private long evaluate(long pos, T obj, long key, long key2, long hashCode,
+            long index, long add, int size) {
         while (true) {
             if (size < 2) {
                 return add;
@@ -132,16 +515,19 @@ public class RecSplitEvaluator<T> {
             pos += q + 1;
             long value = (q << shift) | buffer.readNumber(pos, shift);
             pos += shift;
+            int rotation = 0;
+            if (size <= settings.getLeafSize() && settings.isLeafRotation()) {
+                rotation = (int) (value % size);
+                value /= size;
+            }
             long oldX = Settings.getUniversalHashIndex(index);
             index += value + 1;
             long x = Settings.getUniversalHashIndex(index);
             if (x != oldX) {
-                hashCode = hash.universalHash(obj, x);
+                hashCode = universalHash(obj, key, key2, x);
             }
             if (size <= settings.getLeafSize()) {
-                int h = Settings.supplementalHash(hashCode, index);
-                h = Settings.reduce(h, size);
-//System.out.printf("shift %d q %lld value %d oldX %d x %d size %d h %d add %d\n", shift, q, value, oldX, x, size, h, add);
+                int h = getLeafPosition(hashCode, index, size, rotation);
                 return add + h;
             }
             int split = settings.getSplit(size);
@@ -1,7 +1,9 @@
 package org.minperf;
 
 /**
- * The settings used to generate the hash function.
+ * The settings used to generate the hash function. The options (leaf
+ * rotation, bucket rebalancing, bucket directory) are set using
+ * RecSplitBuilder.
  */
 public class Settings {
 
@@ -115,6 +117,10 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
 
     private final int leafSize;
     private final int averageBucketSize;
+    private final boolean leafRotation;
+    private final boolean rebalanceBuckets;
+    private final boolean bucketDirectory;
+    private final boolean improvedSplitRules;
 
     private final int[] splits = new int[CACHE_SPLITS];
     private final int[] rice = new int[CACHE_SPLITS];
@@ -126,25 +132,40 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
      * @param averageBucketSize the load factor, at most 65536
      */
     public Settings(int leafSize, int averageBucketSize) {
-        if (IMPROVED_SPLIT_RULES) {
-            if (leafSize < 1 || leafSize > 32) {
-                throw new IllegalArgumentException("leafSize out of range: " + leafSize);
-            }
-        } else {
-            if (leafSize < 1 || leafSize > 25) {
-                throw new IllegalArgumentException("leafSize out of range: " + leafSize);
-            }
+        this(leafSize, averageBucketSize, null);
+    }
+
+    /**
+     * Constructor for settings that uses the leaf size, the average bucket
+     * size, and the options (leaf rotation, bucket rebalancing, bucket
+     * directory) of the given builder.
+     *
+     * @param builder the builder
+     */
+    Settings(RecSplitBuilder<?> builder) {
+        this(builder.getLeafSize(), builder.getAverageBucketSize(), builder);
+    }
+
+    private Settings(int leafSize, int averageBucketSize, RecSplitBuilder<?> options) {
+        if (leafSize < 1 || leafSize > 32) {
+            throw new IllegalArgumentException("leafSize out of range: " + leafSize);
         }
         if (averageBucketSize < 2 || averageBucketSize > 65536) {
             throw new IllegalArgumentException("averageBucketSize out of range: " + averageBucketSize);
         }
         this.leafSize = leafSize;
         this.averageBucketSize = averageBucketSize;
-        if (IMPROVED_SPLIT_RULES) {
+        this.leafRotation = options != null && options.isLeafRotation();
+        this.rebalanceBuckets = options != null && options.isRebalanceBuckets();
+        this.bucketDirectory = options != null && options.isBucketDirectory();
+        // the improved split rules are only known for some leaf sizes;
+        // for other leaf sizes, the calculated rules are used
+        improvedSplitRules = IMPROVED_SPLIT_RULES &&
+                leafSize < SPLIT_RULES.length &&
+                SPLIT_RULES[leafSize].length > 0 &&
+                SPLIT_RULES[leafSize][0] != 0;
+        if (improvedSplitRules) {
             int[] splitRules = SPLIT_RULES[leafSize];
-            if (splitRules.length == 0 || splitRules[0] == 0) {
-                throw new IllegalArgumentException("No split rules for leafSize: " + leafSize);
-            }
             for (int i = 0; i < splitRules.length; i += 3) {
                 int size = splitRules[i];
                 splits[size] = splitRules[i + 1];
@@ -185,6 +206,33 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
         }
     }
 
+    /**
+     * Calculate the Rice parameter k to evenly split a set into subsets, for
+     * leaf sizes that are not listed in RICE_SPLIT_MORE. This uses the same
+     * formula that was used to calculate the table.
+     *
+     * @param size the size of the set
+     * @param parts the number of subsets
+     * @return the Rice parameter
+     */
+    static int calcRiceParamSplitEvenly(int size, int parts) {
+        // the probability that a split is even
+        double p = Math.exp(logFactorial(size) -
+                parts * logFactorial(size / parts) - size * Math.log(parts));
+        double goldenRatio = (Math.sqrt(5) + 1) / 2;
+        double k = 1 + Math.log(Math.log(goldenRatio - 1) /
+                Math.log1p(-p)) / Math.log(2);
+        return Math.max(0, (int) k);
+    }
+
+    private static double logFactorial(int n) {
+        double result = 0;
+        for (int i = 2; i <= n; i++) {
+            result += Math.log(i);
+        }
+        return result;
+    }
+
     static int calcNextSplit(int factor) {
         return Math.max(2,  (int) (1.5 + factor * .35));
     }
@@ -205,7 +253,7 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
         if (size < CACHE_SPLITS) {
             return splits[size];
         }
-        if (IMPROVED_SPLIT_RULES) {
+        if (improvedSplitRules) {
             throw new IllegalArgumentException();
         }
         return calcSplit(size, leafSize);
@@ -225,7 +273,10 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
             if (size < x) {
                 break;
             } else if (size == x) {
-                return RICE_SPLIT_MORE[leafSize][index];
+                if (leafSize < RICE_SPLIT_MORE.length) {
+                    return RICE_SPLIT_MORE[leafSize][index];
+                }
+                return calcRiceParamSplitEvenly(x, f);
             }
             index++;
         }
@@ -251,6 +302,18 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
         return leafSize;
     }
 
+    public boolean isLeafRotation() {
+        return leafRotation;
+    }
+
+    public boolean isRebalanceBuckets() {
+        return rebalanceBuckets;
+    }
+
+    public boolean isBucketDirectory() {
+        return bucketDirectory;
+    }
+
     public int getAverageBucketSize() {
         return averageBucketSize;
     }
@@ -285,7 +348,12 @@ public static final boolean IMPROVED_SPLIT_RULES = true;
     }
 
     public static int getBucketCount(long size, int averageBucketSize) {
-        return (int) ((size + averageBucketSize - 1) / averageBucketSize);
+        long bucketCount = (size + averageBucketSize - 1) / averageBucketSize;
+        if (bucketCount >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many buckets: " + bucketCount +
+                    ", use a larger average bucket size");
+        }
+        return (int) bucketCount;
     }
 
     public static int reduce(int hash, int n) {
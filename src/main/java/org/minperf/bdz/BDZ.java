@@ -1,13 +1,13 @@
 package org.minperf.bdz;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.function.IntConsumer;
 
 import org.minperf.BitBuffer;
 import org.minperf.Settings;
+import org.minperf.generator.ConcurrencyTool;
 import org.minperf.rank.VerySimpleRank;
 import org.minperf.universal.UniversalHash;
 
@@ -24,10 +24,27 @@ import org.minperf.universal.UniversalHash;
 public class BDZ<T> {
 
     // needs 3.66 bits/key
-    private static final int HASHES = 3;
+    static final int HASHES = 3;
     private static final int FACTOR_TIMES_100 = 123;
     private static final int BITS_PER_ENTRY = 2;
 
+    /**
+     * The number of keys per task when calculating the vertices in parallel.
+     */
+    private static final int PARALLEL_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of keys for which multiple hash indexes are tried
+     * in parallel (each thread needs its own graph).
+     */
+    private static final int PARALLEL_SEEDS_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of keys (the vertices of all keys are stored in one
+     * array).
+     */
+    static final int MAX_SIZE = (Integer.MAX_VALUE - 8) / HASHES;
+
     // needs 3.78 bits/key
     // private static final int HASHES = 4;
     // private static final int FACTOR_TIMES_100 = 132;
@@ -43,7 +60,7 @@ public class BDZ<T> {
     private final int hashIndex;
     private final int arrayLength;
     private final int size;
-    private final int startPos;
+    private final long startPos;
     private final VerySimpleRank rank;
 
     private BDZ(UniversalHash<T> hash, BitBuffer data) {
@@ -54,7 +71,7 @@ public class BDZ<T> {
         this.hashIndex = (int) data.readEliasDelta() - 1;
         this.rank = VerySimpleRank.load(data);
         this.startPos = data.position();
-        data.seek(startPos + size * BITS_PER_ENTRY);
+        data.seek(startPos + (long) size * BITS_PER_ENTRY);
     }
 
     public int evaluate(T x) {
@@ -63,7 +80,7 @@ public class BDZ<T> {
             int h = getHash(x, hash, hashIndex, hi, arrayLength);
             if (rank.get(h)) {
                 int pos = (int) rank.rank(h);
-                sum += data.readNumber(startPos + pos * BITS_PER_ENTRY, BITS_PER_ENTRY);
+                sum += data.readNumber(startPos + (long) pos * BITS_PER_ENTRY, BITS_PER_ENTRY);
             }
         }
         int h = getHash(x, hash, hashIndex, sum % HASHES, arrayLength);
@@ -75,123 +92,319 @@ public class BDZ<T> {
         return new BDZ<T>(hash, data);
     }
 
-    @SuppressWarnings("unchecked")
     public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set) {
+        return generate(hash, set, null);
+    }
+
+    /**
+     * Generate the description, possibly using multiple threads. The result
+     * is the same as when using one thread.
+     *
+     * @param hash the universal hash function
+     * @param set the keys
+     * @param pool the pool, or null to use the current thread
+     * @return the description
+     */
+    public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set,
+            ConcurrencyTool pool) {
         int size = set.size();
         int arrayLength = getArrayLength(size);
-        BitBuffer data = new BitBuffer(100 + arrayLength * (BITS_PER_ENTRY  + 2));
+        BitBuffer data = new BitBuffer(100 + (long) arrayLength * (BITS_PER_ENTRY  + 2));
         data.writeEliasDelta(size + 1);
-
-        ArrayList<T> list = new ArrayList<T>(set);
         int m = arrayLength;
-        ArrayList<T> order = new ArrayList<T>();
-        HashSet<T> done = new HashSet<T>();
-        T[] at;
+        int[] g = new int[m];
+        BitSet used = new BitSet();
+        int hashIndex = assign(hash, set, g, used, pool);
+        data.writeEliasDelta(hashIndex + 1);
+        VerySimpleRank.generate(used, data);
+        for (int i = 0; i < m; i++) {
+            if (used.get(i)) {
+                data.writeNumber(g[i], BITS_PER_ENTRY);
+            } else if (g[i] != 0) {
+                throw new AssertionError();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Find a hash index so that the hypergraph can be peeled, and calculate
+     * the g values. Each key is assigned to one of its vertices (the used
+     * vertices). The g values of all other vertices are 0.
+     * <p>
+     * With a pool, the vertices of the keys are calculated in parallel, and
+     * the vertex degrees of each of the partitions (one per hash function)
+     * are filled concurrently. If peeling fails for small sets, multiple hash
+     * indexes are tried in parallel, and the lowest one that works is used,
+     * so that the result is the same as with one thread.
+     *
+     * @param hash the universal hash function
+     * @param set the keys
+     * @param g the g values (the array length needs to be
+     *            getArrayLength(set.size()))
+     * @param used the used vertices
+     * @param pool the pool, or null
+     * @return the hash index
+     */
+    @SuppressWarnings("unchecked")
+    static <T> int assign(UniversalHash<T> hash, Collection<T> set, int[] g,
+            BitSet used, ConcurrencyTool pool) {
+        T[] keys = (T[]) set.toArray();
+        int size = keys.length;
+        if (pool != null && pool.getParallelism() < 2) {
+            pool = null;
+        }
+        Graph graph = new Graph(size);
         int hashIndex = 0;
+        if (pool == null) {
+            graph.build(hash, keys, hashIndex);
+        } else {
+            graph.buildParallel(hash, keys, hashIndex, pool);
+        }
+        if (!graph.peel()) {
+            hashIndex++;
+            if (pool != null && size <= PARALLEL_SEEDS_MAX_SIZE) {
+                hashIndex = peelParallel(hash, keys, hashIndex, graph, pool);
+            } else {
+                while (true) {
+                    if (pool == null) {
+                        graph.build(hash, keys, hashIndex);
+                    } else {
+                        graph.buildParallel(hash, keys, hashIndex, pool);
+                    }
+                    if (graph.peel()) {
+                        break;
+                    }
+                    hashIndex++;
+                }
+            }
+        }
+        graph.assign(g, used);
+        return hashIndex;
+    }
+
+    /**
+     * Try multiple hash indexes at the same time, one per thread, until one
+     * works.
+     *
+     * @param hash the universal hash function
+     * @param keys the keys
+     * @param hashIndex the first hash index to try
+     * @param graph the graph that is used by the first thread, and that
+     *            contains the result afterwards
+     * @param pool the pool
+     * @return the lowest hash index that works
+     */
+    private static <T> int peelParallel(final UniversalHash<T> hash, final T[] keys,
+            int hashIndex, Graph graph, ConcurrencyTool pool) {
+        final Graph[] graphs = new Graph[pool.getParallelism()];
+        graphs[0] = graph;
+        for (int i = 1; i < graphs.length; i++) {
+            graphs[i] = new Graph(keys.length);
+        }
+        final boolean[] peeled = new boolean[graphs.length];
         while (true) {
-            order.clear();
-            done.clear();
-            at = (T[]) new Object[m];
-            ArrayList<HashSet<T>> list2 = new ArrayList<HashSet<T>>();
-            for (int i = 0; i < m; i++) {
-                list2.add(new HashSet<T>());
+            final int first = hashIndex;
+            pool.forEach(graphs.length, new IntConsumer() {
+
+                @Override
+                public void accept(int i) {
+                    graphs[i].build(hash, keys, first + i);
+                    peeled[i] = graphs[i].peel();
+                }
+
+            });
+            for (int i = 0; i < graphs.length; i++) {
+                if (peeled[i]) {
+                    if (i > 0) {
+                        graph.copyFrom(graphs[i]);
+                    }
+                    return first + i;
+                }
             }
+            hashIndex += graphs.length;
+        }
+    }
+
+    /**
+     * The hypergraph. Only arrays of primitives are used (as for xor
+     * filters): for each vertex, the number of keys and the xor of the key
+     * indexes. A vertex with one key identifies the key, which is then
+     * removed.
+     */
+    private static class Graph {
+
+        final int size;
+        final int m;
+        /**
+         * The vertices of each key.
+         */
+        final int[] edges;
+        final int[] count;
+        final int[] xor;
+        /**
+         * The vertices with one key.
+         */
+        final int[] alone;
+        /**
+         * The keys, in the order they were removed.
+         */
+        final int[] order;
+        /**
+         * The vertex that was used to remove the key.
+         */
+        final int[] at;
+
+        Graph(int size) {
+            this.size = size;
+            m = getArrayLength(size);
+            edges = new int[HASHES * size];
+            count = new int[m];
+            xor = new int[m];
+            alone = new int[m];
+            order = new int[size];
+            at = new int[size];
+        }
+
+        <T> void build(UniversalHash<T> hash, T[] keys, int hashIndex) {
+            hash(hash, keys, 0, size, hashIndex);
+            Arrays.fill(count, 0);
+            Arrays.fill(xor, 0);
             for (int i = 0; i < size; i++) {
-                T x = list.get(i);
                 for (int hi = 0; hi < HASHES; hi++) {
-                    int h = getHash(x, hash, hashIndex, hi, arrayLength);
-                    HashSet<T> l = list2.get(h);
-                    l.add(x);
+                    int h = edges[HASHES * i + hi];
+                    count[h]++;
+                    xor[h] ^= i;
                 }
             }
-            LinkedList<Integer> alone = new LinkedList<Integer>();
-            for (int i = 0; i < arrayLength; i++) {
-                if (list2.get(i).size() == 1) {
-                    alone.add(i);
+        }
+
+        <T> void buildParallel(final UniversalHash<T> hash, final T[] keys,
+                final int hashIndex, ConcurrencyTool pool) {
+            int blockCount = (size + PARALLEL_BLOCK_SIZE - 1) / PARALLEL_BLOCK_SIZE;
+            pool.forEach(blockCount, new IntConsumer() {
+
+                @Override
+                public void accept(int block) {
+                    int from = block * PARALLEL_BLOCK_SIZE;
+                    hash(hash, keys, from, Math.min(size, from + PARALLEL_BLOCK_SIZE),
+                            hashIndex);
+                }
+
+            });
+            // each hash function uses its own range of vertices
+            pool.forEach(HASHES, new IntConsumer() {
+
+                @Override
+                public void accept(int hi) {
+                    int from = (int) ((long) hi * m / HASHES);
+                    int to = hi == HASHES - 1 ? m : (int) ((long) (hi + 1) * m / HASHES);
+                    Arrays.fill(count, from, to, 0);
+                    Arrays.fill(xor, from, to, 0);
+                    for (int i = 0; i < size; i++) {
+                        int h = edges[HASHES * i + hi];
+                        count[h]++;
+                        xor[h] ^= i;
+                    }
+                }
+
+            });
+        }
+
+        private <T> void hash(UniversalHash<T> hash, T[] keys, int from, int to,
+                int hashIndex) {
+            for (int i = from; i < to; i++) {
+                T x = keys[i];
+                for (int hi = 0; hi < HASHES; hi++) {
+                    edges[HASHES * i + hi] = getHash(x, hash, hashIndex, hi, m);
                 }
             }
-            while (!alone.isEmpty()) {
-                int i = alone.removeFirst();
-                HashSet<T> l = list2.get(i);
-                if (l.isEmpty()) {
-                    continue;
+        }
+
+        /**
+         * Remove all keys, if possible.
+         *
+         * @return true if successful
+         */
+        boolean peel() {
+            int aloneCount = 0;
+            for (int v = 0; v < m; v++) {
+                if (count[v] == 1) {
+                    alone[aloneCount++] = v;
                 }
-                T x = l.iterator().next();
-                if (done.contains(x)) {
+            }
+            int orderCount = 0;
+            while (aloneCount > 0) {
+                int v = alone[--aloneCount];
+                if (count[v] == 0) {
+                    // the key was already removed using another vertex
                     continue;
                 }
-                order.add(x);
-                done.add(x);
-                boolean found = false;
+                int k = xor[v];
+                order[orderCount] = k;
+                at[orderCount++] = v;
                 for (int hi = 0; hi < HASHES; hi++) {
-                    int h = getHash(x, hash, hashIndex, hi, arrayLength);
-                    l = list2.get(h);
-                    l.remove(x);
-                    if (l.isEmpty()) {
-                        if (!found) {
-                            at[h] = x;
-                            found = true;
-                        }
-                    } else if (l.size() == 1) {
-                        alone.add(h);
+                    int h = edges[HASHES * k + hi];
+                    xor[h] ^= k;
+                    if (--count[h] == 1) {
+                        alone[aloneCount++] = h;
                     }
                 }
             }
-            if (order.size() == size) {
-                break;
-            }
-            hashIndex++;
+            return orderCount == size;
         }
-        data.writeEliasDelta(hashIndex + 1);
 
-        BitSet visited = new BitSet();
-        BitSet used = new BitSet();
-        int[] g = new int[m];
-        for (int i = order.size() - 1; i >= 0; i--) {
-            T x = order.get(i);
-            int sum = 0;
-            int change = 0;
-            int target = 0;
-            for (int hi = 0; hi < HASHES; hi++) {
-                int h = getHash(x, hash, hashIndex, hi, arrayLength);
-                if (visited.get(h)) {
-                    sum += g[h];
-                } else {
-                    visited.set(h);
-                    if (at[h] == x) {
-                        used.set(h);
-                        change = h;
+        void copyFrom(Graph other) {
+            System.arraycopy(other.edges, 0, edges, 0, edges.length);
+            System.arraycopy(other.order, 0, order, 0, size);
+            System.arraycopy(other.at, 0, at, 0, size);
+        }
+
+        /**
+         * Calculate the g values. In reverse order, the g values of the
+         * other vertices of a key are already final.
+         *
+         * @param g the g values
+         * @param used the used vertices
+         */
+        void assign(int[] g, BitSet used) {
+            Arrays.fill(g, 0);
+            for (int i = size - 1; i >= 0; i--) {
+                int k = order[i];
+                int v = at[i];
+                int sum = 0;
+                int target = 0;
+                for (int hi = 0; hi < HASHES; hi++) {
+                    int h = edges[HASHES * k + hi];
+                    if (h == v) {
                         target = hi;
+                    } else {
+                        sum += g[h];
                     }
                 }
-            }
-            int result = (HASHES + target - (sum % HASHES)) % HASHES;
-            g[change] = result;
-        }
-        VerySimpleRank.generate(used, data);
-        for (int i = 0; i < m; i++) {
-            if (used.get(i)) {
-                data.writeNumber(g[i], BITS_PER_ENTRY);
-            } else if (g[i] != 0) {
-                throw new AssertionError();
+                g[v] = (HASHES + target - (sum % HASHES)) % HASHES;
+                used.set(v);
             }
         }
-        return data;
+
     }
 
     public int getSize() {
         return size;
     }
 
-    private static int getArrayLength(int size) {
-        return HASHES + FACTOR_TIMES_100 * size / 100;
+    static int getArrayLength(int size) {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Too many keys: " + size);
+        }
+        return (int) (HASHES + FACTOR_TIMES_100 * (long) size / 100);
     }
 
-    private static <T> int getHash(T x, UniversalHash<T> hash,
+    static <T> int getHash(T x, UniversalHash<T> hash,
             int hashIndex, int index, int arrayLength) {
         long r = hash.universalHash(x, hashIndex + index);
         r = Settings.reduce((int) r, arrayLength / HASHES);
-        r = r + index * arrayLength / HASHES;
+        r = r + (long) index * arrayLength / HASHES;
         return (int) r;
     }
 
@@ -0,0 +1,156 @@
+package org.minperf.bdz;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.minperf.BitBuffer;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.universal.UniversalHash;
+
+/**
+ * A more compact variant of the BDZ algorithm. Instead of a separate rank
+ * structure and g values only for the used vertices, there is one array of 2
+ * bit values for all vertices, where unused vertices have the value 3 (which
+ * is the same as 0 modulo 3). The rank is calculated by counting the values
+ * that are not 3, starting from a sampled count. This needs around 2.6
+ * bits/key, and the three lookups and the rank read from the same array.
+ *
+ * @param <T> the type
+ */
+public class CompactBDZ<T> {
+
+    private static final int BITS_PER_ENTRY = 2;
+
+    /**
+     * The number of vertices per rank sample (8 words of 32 entries each).
+     */
+    private static final int SAMPLE_SHIFT = 8;
+
+    private static final int UNUSED = 3;
+
+    private static final long EVEN_BITS = 0x5555555555555555L;
+
+    private final UniversalHash<T> hash;
+    private final BitBuffer data;
+    private final int hashIndex;
+    private final int arrayLength;
+    private final int size;
+    private final int sampleBits;
+    private final long samplePos;
+    private final long startPos;
+
+    private CompactBDZ(UniversalHash<T> hash, BitBuffer data) {
+        this.hash = hash;
+        this.data = data;
+        this.size = (int) data.readEliasDelta() - 1;
+        this.arrayLength = BDZ.getArrayLength(size);
+        this.hashIndex = (int) data.readEliasDelta() - 1;
+        this.sampleBits = getSampleBits(size);
+        this.samplePos = data.position();
+        this.startPos = samplePos + (long) getSampleCount(arrayLength) * sampleBits;
+        data.seek(startPos + (long) arrayLength * BITS_PER_ENTRY);
+    }
+
+    public int evaluate(T x) {
+        int sum = 0;
+        for (int hi = 0; hi < BDZ.HASHES; hi++) {
+            int h = BDZ.getHash(x, hash, hashIndex, hi, arrayLength);
+            sum += data.readNumber(startPos + (long) h * BITS_PER_ENTRY, BITS_PER_ENTRY);
+        }
+        int h = BDZ.getHash(x, hash, hashIndex, sum % BDZ.HASHES, arrayLength);
+        return rank(h);
+    }
+
+    /**
+     * Get the number of used vertices before the given vertex.
+     *
+     * @param h the vertex
+     * @return the number of used vertices
+     */
+    private int rank(int h) {
+        int sample = h >>> SAMPLE_SHIFT;
+        int count = (int) data.readNumber(samplePos + (long) sample * sampleBits, sampleBits);
+        long pos = startPos + ((long) sample << SAMPLE_SHIFT) * BITS_PER_ENTRY;
+        int remaining = h - (sample << SAMPLE_SHIFT);
+        for (; remaining >= 32; remaining -= 32, pos += 64) {
+            count += 32 - Long.bitCount(getUnused(data.readLong(pos)));
+        }
+        if (remaining > 0) {
+            // read only the entries before the vertex (right aligned)
+            long x = data.readNumber(pos, 2 * remaining);
+            count += remaining - Long.bitCount(getUnused(x));
+        }
+        return count;
+    }
+
+    /**
+     * Get one bit for each unused entry (value 3) of a word of up to 32
+     * entries, where the last entry is at the lowest bits.
+     *
+     * @param x the word
+     * @return the bits
+     */
+    static long getUnused(long x) {
+        return x & (x >>> 1) & EVEN_BITS;
+    }
+
+    public static <T> CompactBDZ<T> load(UniversalHash<T> hash, BitBuffer data) {
+        return new CompactBDZ<T>(hash, data);
+    }
+
+    public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set) {
+        return generate(hash, set, null);
+    }
+
+    /**
+     * Generate the description, possibly using multiple threads. The result
+     * is the same as when using one thread.
+     *
+     * @param hash the universal hash function
+     * @param set the keys
+     * @param pool the pool, or null to use the current thread
+     * @return the description
+     */
+    public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set,
+            ConcurrencyTool pool) {
+        int size = set.size();
+        int m = BDZ.getArrayLength(size);
+        int[] g = new int[m];
+        BitSet used = new BitSet();
+        int hashIndex = BDZ.assign(hash, set, g, used, pool);
+        int sampleBits = getSampleBits(size);
+        int sampleCount = getSampleCount(m);
+        BitBuffer data = new BitBuffer(100 + (long) sampleCount * sampleBits +
+                (long) m * BITS_PER_ENTRY);
+        data.writeEliasDelta(size + 1);
+        data.writeEliasDelta(hashIndex + 1);
+        int count = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            data.writeNumber(count, sampleBits);
+            int from = i << SAMPLE_SHIFT;
+            count += used.get(from, Math.min(m, from + (1 << SAMPLE_SHIFT))).cardinality();
+        }
+        for (int i = 0; i < m; i++) {
+            data.writeNumber(used.get(i) ? g[i] : UNUSED, BITS_PER_ENTRY);
+        }
+        return data;
+    }
+
+    private static int getSampleBits(int size) {
+        return 64 - Long.numberOfLeadingZeros(size);
+    }
+
+    private static int getSampleCount(int arrayLength) {
+        return (arrayLength + (1 << SAMPLE_SHIFT) - 1) >>> SAMPLE_SHIFT;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " size " + size + " hashIndex " + hashIndex;
+    }
+
+}
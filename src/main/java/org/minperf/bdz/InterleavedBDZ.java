@@ -0,0 +1,159 @@
+package org.minperf.bdz;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.minperf.BitBuffer;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.universal.UniversalHash;
+
+/**
+ * A variant of the BDZ algorithm where the rank counts are interleaved with
+ * the g values. The data is stored in blocks of 512 bits (the size of a
+ * typical cache line): a 32 bit count of the used vertices before the block,
+ * followed by the 2 bit values of 240 vertices, where unused vertices have
+ * the value 3. That way, each of the three lookups reads one block, and the
+ * rank is calculated within the block of the selected vertex, which was
+ * already read. This needs around 2.65 bits/key.
+ * <p>
+ * The blocks are aligned to 512 bits relative to the start of the
+ * description. If the description is aligned as well (for example in a
+ * memory mapped file), each lookup reads one cache line.
+ *
+ * @param <T> the type
+ */
+public class InterleavedBDZ<T> {
+
+    /**
+     * The number of bits of a block (a power of two).
+     */
+    public static final int BLOCK_BITS = 512;
+
+    private static final int BITS_PER_ENTRY = 2;
+
+    private static final int COUNT_BITS = 32;
+
+    private static final int ENTRIES_PER_BLOCK = (BLOCK_BITS - COUNT_BITS) / BITS_PER_ENTRY;
+
+    private static final int UNUSED = 3;
+
+    private final UniversalHash<T> hash;
+    private final BitBuffer data;
+    private final int hashIndex;
+    private final int arrayLength;
+    private final int size;
+    private final long startPos;
+
+    private InterleavedBDZ(UniversalHash<T> hash, BitBuffer data) {
+        this.hash = hash;
+        this.data = data;
+        long start = data.position();
+        this.size = (int) data.readEliasDelta() - 1;
+        this.arrayLength = BDZ.getArrayLength(size);
+        this.hashIndex = (int) data.readEliasDelta() - 1;
+        this.startPos = start + getBlockOffset(data.position() - start);
+        data.seek(startPos + (long) getBlockCount(arrayLength) * BLOCK_BITS);
+    }
+
+    public int evaluate(T x) {
+        int sum = 0;
+        for (int hi = 0; hi < BDZ.HASHES; hi++) {
+            int h = BDZ.getHash(x, hash, hashIndex, hi, arrayLength);
+            sum += data.readNumber(getPos(h), BITS_PER_ENTRY);
+        }
+        int h = BDZ.getHash(x, hash, hashIndex, sum % BDZ.HASHES, arrayLength);
+        return rank(h);
+    }
+
+    private long getPos(int h) {
+        int block = h / ENTRIES_PER_BLOCK;
+        int i = h - block * ENTRIES_PER_BLOCK;
+        return startPos + (long) block * BLOCK_BITS + COUNT_BITS + i * BITS_PER_ENTRY;
+    }
+
+    /**
+     * Get the number of used vertices before the given vertex. Only the
+     * block of the vertex is read.
+     *
+     * @param h the vertex
+     * @return the number of used vertices
+     */
+    private int rank(int h) {
+        int block = h / ENTRIES_PER_BLOCK;
+        long pos = startPos + (long) block * BLOCK_BITS;
+        int count = (int) data.readNumber(pos, COUNT_BITS);
+        pos += COUNT_BITS;
+        int remaining = h - block * ENTRIES_PER_BLOCK;
+        for (; remaining >= 32; remaining -= 32, pos += 64) {
+            count += 32 - Long.bitCount(CompactBDZ.getUnused(data.readLong(pos)));
+        }
+        if (remaining > 0) {
+            long x = data.readNumber(pos, 2 * remaining);
+            count += remaining - Long.bitCount(CompactBDZ.getUnused(x));
+        }
+        return count;
+    }
+
+    public static <T> InterleavedBDZ<T> load(UniversalHash<T> hash, BitBuffer data) {
+        return new InterleavedBDZ<T>(hash, data);
+    }
+
+    public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set) {
+        return generate(hash, set, null);
+    }
+
+    /**
+     * Generate the description, possibly using multiple threads. The result
+     * is the same as when using one thread.
+     *
+     * @param hash the universal hash function
+     * @param set the keys
+     * @param pool the pool, or null to use the current thread
+     * @return the description
+     */
+    public static <T> BitBuffer generate(UniversalHash<T> hash, Collection<T> set,
+            ConcurrencyTool pool) {
+        int size = set.size();
+        int m = BDZ.getArrayLength(size);
+        int[] g = new int[m];
+        BitSet used = new BitSet();
+        int hashIndex = BDZ.assign(hash, set, g, used, pool);
+        int blockCount = getBlockCount(m);
+        BitBuffer data = new BitBuffer(2 * BLOCK_BITS + (long) blockCount * BLOCK_BITS);
+        data.writeEliasDelta(size + 1);
+        data.writeEliasDelta(hashIndex + 1);
+        data.seek(getBlockOffset(data.position()));
+        int count = 0;
+        for (int block = 0; block < blockCount; block++) {
+            data.writeNumber(count, COUNT_BITS);
+            int from = block * ENTRIES_PER_BLOCK;
+            for (int i = from; i < from + ENTRIES_PER_BLOCK; i++) {
+                if (i < m && used.get(i)) {
+                    data.writeNumber(g[i], BITS_PER_ENTRY);
+                    count++;
+                } else {
+                    data.writeNumber(UNUSED, BITS_PER_ENTRY);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static long getBlockOffset(long headerSize) {
+        return (headerSize + BLOCK_BITS - 1) & ~(BLOCK_BITS - 1L);
+    }
+
+    private static int getBlockCount(int arrayLength) {
+        return (arrayLength + ENTRIES_PER_BLOCK - 1) / ENTRIES_PER_BLOCK;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " size " + size + " hashIndex " + hashIndex;
+    }
+
+}
@@ -1,22 +1,93 @@
 package org.minperf.generator;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.LongBinaryOperator;
 
 /**
  * A tool that either runs tasks one after the other (in the caller thread), or
- * uses a ForkJoinPool to run the tasks in parallel.
+ * uses a ForkJoinPool or an ExecutorService to run the tasks in parallel.
+ * <p>
+ * With an ExecutorService, the caller thread always takes part in the work,
+ * and the tasks submitted to the executor only help. This is needed because
+ * the generator runs nested parallel operations (findFirst within a bucket
+ * task): if the caller waited for tasks that are queued behind other waiting
+ * tasks, a bounded executor could deadlock. A helper that starts after the
+ * caller is done returns immediately.
  */
 public class ConcurrencyTool {
 
     private final ForkJoinPool pool;
 
+    private final ExecutorService executor;
+
+    private final int parallelism;
+
+    /**
+     * Whether the pool was created by this tool, and so needs to be shut
+     * down.
+     */
+    private final boolean ownPool;
+
+    /**
+     * Create a tool that uses a new pool if the parallelism is larger than
+     * one. The pool needs to be shut down after use.
+     *
+     * @param parallelism the number of threads
+     */
     public ConcurrencyTool(int parallelism) {
         if (parallelism > 1) {
             pool = new ForkJoinPool(parallelism);
         } else {
             pool = null;
         }
+        ownPool = pool != null;
+        executor = null;
+        this.parallelism = pool == null ? 1 : parallelism;
+    }
+
+    /**
+     * Create a tool that uses an existing pool. The pool is not shut down by
+     * this tool, so it can be shared.
+     *
+     * @param pool the pool
+     */
+    public ConcurrencyTool(ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("No pool");
+        }
+        this.pool = pool;
+        ownPool = false;
+        executor = null;
+        parallelism = pool.getParallelism();
+    }
+
+    /**
+     * Create a tool that uses an existing executor. The executor is not shut
+     * down by this tool, so it can be shared. Tasks are run in the caller
+     * thread and in up to parallelism - 1 tasks of the executor.
+     *
+     * @param executor the executor
+     * @param parallelism the number of threads, including the caller thread
+     */
+    public ConcurrencyTool(ExecutorService executor, int parallelism) {
+        if (executor == null) {
+            throw new IllegalArgumentException("No executor");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        pool = null;
+        ownPool = false;
     }
 
     public <T> T invoke(ForkJoinTask<T> task) {
@@ -36,10 +107,271 @@ public class ConcurrencyTool {
         }
     }
 
+    /**
+     * Run a task for each index from 0 to count - 1, possibly in parallel,
+     * and wait until all are done.
+     *
+     * @param count the number of tasks
+     * @param task the task
+     */
+    public void forEach(final int count, final IntConsumer task) {
+        if (executor != null) {
+            forEachInOrder(count, task);
+            return;
+        }
+        if (pool == null || count < 2) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                RecursiveAction[] list = new RecursiveAction[count];
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    list[i] = new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            task.accept(index);
+                        }
+
+                    };
+                }
+                invokeAll(list);
+            }
+        });
+    }
+
+    /**
+     * Run a task for each index from 0 to count - 1, possibly in parallel,
+     * and wait until all are done. Unlike forEach, the tasks are started in
+     * the order of the index (each thread takes the next index), so that
+     * the most expensive tasks can be started first.
+     *
+     * @param count the number of tasks
+     * @param task the task
+     */
+    public void forEachInOrder(final int count, final IntConsumer task) {
+        if (parallelism == 1 || count < 2) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        runWorkers(Math.min(count, parallelism), new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    int x = next.getAndIncrement();
+                    if (x >= count) {
+                        return;
+                    }
+                    task.accept(x);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Get the number of threads that are used.
+     *
+     * @return the number of threads (1 if tasks are run in the caller thread)
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Find the first index in a range that matches. The range is split into
+     * blocks, and each thread searches the next block that was not searched
+     * yet, until a match was found before it. Because the blocks are taken in
+     * order, the result is the same as when searching the range sequentially.
+     *
+     * @param index the first index
+     * @param end the index after the last index
+     * @param blockSize the number of indexes per block
+     * @param search the search, which is called with the start and end of a
+     *            block, and returns the first matching index of the block, or
+     *            -1
+     * @return the first matching index, or -1 if there is none
+     */
+    public long findFirst(long index, final long end, final long blockSize,
+            final LongBinaryOperator search) {
+        if (parallelism == 1) {
+            return search.applyAsLong(index, end);
+        }
+        final AtomicLong next = new AtomicLong(index);
+        final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+        runWorkers(parallelism, new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    long from = next.getAndAdd(blockSize);
+                    if (from >= end || from > first.get()) {
+                        // all blocks before a match are searched
+                        return;
+                    }
+                    long found = search.applyAsLong(from,
+                            Math.min(end, from + blockSize));
+                    if (found >= 0) {
+                        long old;
+                        do {
+                            old = first.get();
+                        } while (found < old && !first.compareAndSet(old, found));
+                        return;
+                    }
+                }
+            }
+
+        });
+        long x = first.get();
+        return x == Long.MAX_VALUE ? -1 : x;
+    }
+
+    /**
+     * Run the given worker in the given number of threads, and wait until all
+     * are done. The worker needs to take its work from a shared counter.
+     *
+     * @param workers the number of threads
+     * @param worker the worker
+     */
+    private void runWorkers(int workers, final Runnable worker) {
+        if (executor != null) {
+            runWorkersInExecutor(workers, worker);
+            return;
+        }
+        final RecursiveAction[] list = new RecursiveAction[workers];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    worker.run();
+                }
+
+            };
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(list);
+        } else {
+            // not called from a thread of this pool
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(list);
+                }
+
+            });
+        }
+    }
+
+    private void runWorkersInExecutor(int workers, final Runnable worker) {
+        final Helpers helpers = new Helpers();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable helper = new Runnable() {
+
+            @Override
+            public void run() {
+                if (!helpers.start()) {
+                    // the caller is already done
+                    return;
+                }
+                try {
+                    worker.run();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    helpers.stop();
+                }
+            }
+
+        };
+        try {
+            for (int i = 1; i < workers; i++) {
+                executor.execute(helper);
+            }
+        } catch (RejectedExecutionException e) {
+            // the executor is saturated or shut down:
+            // the caller and the helpers that were submitted do the work
+        }
+        try {
+            worker.run();
+        } finally {
+            helpers.close();
+        }
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Shut down the pool, if it was created by this tool.
+     */
     public void shutdown() {
-        if (pool != null) {
+        if (ownPool) {
             pool.shutdown();
         }
     }
 
+    /**
+     * Keeps track of the helper tasks that are running. Once closed, no new
+     * helper can start.
+     */
+    private static class Helpers {
+
+        private int running;
+        private boolean closed;
+
+        synchronized boolean start() {
+            if (closed) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        synchronized void stop() {
+            running--;
+            notifyAll();
+        }
+
+        /**
+         * Prevent new helpers from starting, and wait until the running
+         * helpers are done.
+         */
+        synchronized void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
 }
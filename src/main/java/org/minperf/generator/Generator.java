@@ -1,19 +1,34 @@
 package org.minperf.generator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.function.LongBinaryOperator;
 
 import org.minperf.BitBuffer;
+import org.minperf.Fallback;
 import org.minperf.Settings;
-import org.minperf.bdz.BDZ;
+import org.minperf.monotoneList.BucketDirectory;
 import org.minperf.monotoneList.MonotoneList;
+import org.minperf.storage.GrowableStorage;
+import org.minperf.universal.LongHash;
+import org.minperf.universal.SignatureHash;
 import org.minperf.universal.UniversalHash;
 
 /**
  * Generator of a hybrid MPHF. It is guaranteed to use linear space, because
- * large buckets are encoded using an alternative algorithm.
+ * large buckets are encoded using an alternative algorithm. With bucket
+ * rebalancing, the keys of large buckets are instead moved to other buckets,
+ * so that all keys are encoded using RecSplit.
  *
  * @param <T> the type
  */
@@ -22,92 +37,311 @@ public class Generator<T> {
     public static final int MAX_FILL = 8;
     public static final int MAX_BITS_PER_ENTRY = 8;
 
+    private static final int CHUNK_BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final int ASSEMBLY_BLOCK_SIZE = 4 * 1024;
+
+    private static final int HASH_BLOCK_SIZE = 1024;
+
+    /**
+     * The number of bucket groups per thread (if the groups are not too
+     * large).
+     */
+    private static final int GROUPS_PER_THREAD = 16;
+
+    /**
+     * The maximum number of keys of a bucket group.
+     */
+    private static final int MAX_GROUP_KEYS = 64 * 1024;
+
+    /**
+     * The minimum expected number of supplemental hash function calls of a
+     * search for a split or leaf to be run in parallel.
+     */
+    private static final long PARALLEL_SEARCH_MIN_WORK = 1 << 17;
+
+    /**
+     * The minimum number of indexes per block of a parallel search (a power of
+     * two).
+     */
+    private static final int PARALLEL_SEARCH_MIN_BLOCK = 16;
+
+    private static final HashKernel KERNEL = HashKernel.getInstance();
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
     final ConcurrencyTool pool;
     final UniversalHash<T> hash;
     private final Settings settings;
-    private final boolean eliasFanoMonotoneLists;
+    private final int monotoneListType;
     private final int maxChunkSize;
+    private KeySerializer<T> keySerializer;
+    private Fallback fallback = Fallback.getInstance(Fallback.BDZ);
 
     public Generator(ConcurrencyTool pool,
             UniversalHash<T> hash,
             Settings settings,
             boolean eliasFanoMonotoneLists,
             int maxChunkSize) {
+        this(pool, hash, settings, eliasFanoMonotoneLists ?
+                MonotoneList.ELIAS_FANO : MonotoneList.MULTI_STAGE, maxChunkSize);
+    }
+
+    /**
+     * Create a generator.
+     *
+     * @param pool the pool
+     * @param hash the universal hash function
+     * @param settings the settings
+     * @param monotoneListType the type of the monotone lists (see
+     *            MonotoneList)
+     * @param maxChunkSize the maximum number of keys per chunk
+     */
+    public Generator(ConcurrencyTool pool,
+            UniversalHash<T> hash,
+            Settings settings,
+            int monotoneListType,
+            int maxChunkSize) {
         this.pool = pool;
         this.settings = settings;
         this.hash = hash;
-        this.eliasFanoMonotoneLists = eliasFanoMonotoneLists;
+        this.monotoneListType = monotoneListType;
         this.maxChunkSize = maxChunkSize;
+        this.keySerializer = KeySerializer.getDefault(hash);
     }
 
-    @SuppressWarnings("unchecked")
-    public void generate(T[] data, long[] hashes, long startIndex, BitBuffer buff) {
-        int size = data.length;
+    /**
+     * Set the serializer that is used to partition large sets into chunks.
+     * If no serializer is set, and the key type is not known, the set is
+     * iterated once per chunk.
+     *
+     * @param keySerializer the serializer
+     */
+    public void setKeySerializer(KeySerializer<T> keySerializer) {
+        this.keySerializer = keySerializer;
+    }
+
+    /**
+     * Set the algorithm that is used for the keys of buckets that are too
+     * large. The default is BDZ.
+     *
+     * @param fallback the algorithm
+     */
+    public void setFallback(Fallback fallback) {
+        this.fallback = fallback;
+    }
+
+    public void generate(KeyArray<T> data, long[] hashes, long startIndex, BitBuffer buff) {
+        generate(data, hashes, 0, data.size(), startIndex, buff, SCRATCH.get());
+    }
+
+    /**
+     * Generate the description of a range of keys. The keys and hashes are
+     * partitioned in place, so that the subranges are adjacent.
+     *
+     * @param data the keys
+     * @param hashes the hashes of the keys (same order)
+     * @param from the first index of the range
+     * @param size the number of keys in the range
+     * @param startIndex the start index
+     * @param buff the target buffer
+     * @param scratch the scratch buffer of the current thread
+     */
+    private void generate(KeyArray<T> data, long[] hashes, int from, int size,
+            long startIndex, BitBuffer buff, Scratch scratch) {
         if (size < 2) {
             return;
         }
         if (size <= settings.getLeafSize()) {
-            long index = getIndex(data, hashes, startIndex);
+            long value;
+            if (settings.isLeafRotation()) {
+                value = getRotationValue(data, hashes, from, size, startIndex);
+            } else {
+                value = getIndex(data, hashes, from, size, startIndex) - startIndex - 1;
+            }
             int shift = settings.getGolombRiceShift(size);
-            long value = index - startIndex - 1;
             buff.writeGolombRice(shift, value);
             return;
         }
+        int split = settings.getSplit(size);
+        int firstPart, otherPart;
+        if (split < 0) {
+            firstPart = -split;
+            otherPart = size - firstPart;
+            split = 2;
+        } else {
+            firstPart = size / split;
+            otherPart = firstPart;
+        }
         long index = startIndex + 1;
 //        num_split_count++;
         while (true) {
             if (Settings.needNewUniversalHashIndex(index)) {
                 long x = Settings.getUniversalHashIndex(index);
-                for (int i = 0; i < size; i++) {
-                    hashes[i] = hash.universalHash(data[i], x);
-                }
+                data.universalHash(from, from + size, x, hashes);
+            }
+            // the indexes up to here use the same universal hash
+            long end = (Settings.getUniversalHashIndex(index) + 1) <<
+                    Settings.SUPPLEMENTAL_HASH_SHIFT;
+            long found;
+            if (isParallelSearch(size)) {
+                final int s = split, part = firstPart;
+                found = pool.findFirst(index, end, getSearchBlockSize(size),
+                        new LongBinaryOperator() {
+
+                    @Override
+                    public long applyAsLong(long blockStart, long blockEnd) {
+                        return findSplit(hashes, from, size, s, part,
+                                blockStart, blockEnd, new int[s]);
+                    }
+
+                });
+            } else {
+                found = findSplit(hashes, from, size, split, firstPart,
+                        index, end, scratch.getCounts(split));
             }
-            if (trySplitEvenly(hashes, index)) {
+            if (found >= 0) {
+                index = found;
                 break;
             }
-            index++;
+            index = end;
         }
         int writeK = settings.getGolombRiceShift(size);
         long writeIndex = index - startIndex - 1;
         buff.writeGolombRice(writeK, writeIndex);
-        int split = settings.getSplit(size);
-        int firstPart, otherPart;
-        if (split < 0) {
-            firstPart = -split;
-            otherPart = size - firstPart;
-            split = 2;
-        } else {
-            firstPart = size / split;
-            otherPart = firstPart;
-        }
-        T[][] data2;
-        long[][] hashes2;
         if (firstPart != otherPart) {
-            data2 = (T[][]) new Object[][] { (T[]) new Object[firstPart],
-                    (T[]) new Object[otherPart] };
-            hashes2 = new long[][] { new long[firstPart], new long[otherPart] };
-        } else {
-            data2 = (T[][]) new Object[split][firstPart];
-            hashes2 = new long[split][firstPart];
+            split(data, hashes, from, size, firstPart, index);
+            generate(data, hashes, from, firstPart, index, buff, scratch);
+            generate(data, hashes, from + firstPart, otherPart, index, buff, scratch);
+            return;
+        }
+        splitEvenly(data, hashes, from, split, firstPart, index,
+                scratch.getCounts(split));
+        for (int i = 0; i < split; i++) {
+            generate(data, hashes, from + i * firstPart, firstPart, index, buff, scratch);
+        }
+    }
+
+    private static long findSplit(long[] hashes, int from, int size, int split,
+            int partSize, long index, long end, int[] count) {
+        if (partSize * split != size) {
+            return KERNEL.findSplit(hashes, from, size, partSize, index, end);
         }
-        splitEvenly(data, hashes, index, data2, hashes2);
-        for (int i = 0; i < data2.length; i++) {
-            generate(data2[i], hashes2[i], index, buff);
+        return KERNEL.findSplitEvenly(hashes, from, size, split, partSize,
+                index, end, count);
+    }
+
+    /**
+     * Whether the search for the index of a split or leaf of this size is
+     * expected to be slow enough to split the index range into blocks that
+     * are searched in parallel. This mainly helps for large leaves and large
+     * buckets, which otherwise delay the end of generation.
+     *
+     * @param size the number of keys
+     * @return true if the search should be parallel
+     */
+    private boolean isParallelSearch(int size) {
+        return pool.getParallelism() > 1 &&
+                getExpectedTrials(size) * size >= PARALLEL_SEARCH_MIN_WORK;
+    }
+
+    private long getSearchBlockSize(int size) {
+        // a few blocks per thread, so that little work is wasted after a
+        // match was found
+        long blockSize = getExpectedTrials(size) / pool.getParallelism() / 4;
+        // a multiple of the number of lanes of the kernels
+        blockSize = (blockSize + PARALLEL_SEARCH_MIN_BLOCK - 1) &
+                -PARALLEL_SEARCH_MIN_BLOCK;
+        return Math.max(PARALLEL_SEARCH_MIN_BLOCK, blockSize);
+    }
+
+    /**
+     * Get the (approximate) expected number of indexes that are tested to
+     * find a split or leaf of the given size. The Golomb-Rice parameter is
+     * about the logarithm of the stored value.
+     *
+     * @param size the number of keys
+     * @return the expected number of indexes
+     */
+    private long getExpectedTrials(int size) {
+        long trials = 1L << settings.getGolombRiceShift(size);
+        if (size <= settings.getLeafSize() && settings.isLeafRotation()) {
+            // the stored value is index * size + rotation
+            trials = Math.max(1, trials / size);
         }
+        return trials;
     }
 
-    private long getIndex(T[] data, long[] hashes, long startIndex) {
-        int size = data.length;
+    private long getIndex(KeyArray<?> data, final long[] hashes, final int from,
+            final int size, long startIndex) {
         long index = startIndex + 1;
+        int to = from + size;
 //        num_bij_counts[size]++;
         outer: while (true) {
             if (Settings.needNewUniversalHashIndex(index)) {
                 long x = Settings.getUniversalHashIndex(index);
-                for (int i = 0; i < size; i++) {
-                    hashes[i] = hash.universalHash(data[i], x);
+                data.universalHash(from, to, x, hashes);
+                // the keys are not needed in the same order any longer
+                Arrays.sort(hashes, from, to);
+                for (int i = from + 1; i < to; i++) {
+                    if (hashes[i - 1] == hashes[i]) {
+                        index++;
+                        while (!Settings.needNewUniversalHashIndex(index)) {
+                            index++;
+                        }
+                        continue outer;
+                    }
                 }
-                Arrays.sort(hashes);
-                for (int i = 1; i < size; i++) {
+            }
+            // the indexes up to here use the same universal hash
+            long end = (Settings.getUniversalHashIndex(index) + 1) <<
+                    Settings.SUPPLEMENTAL_HASH_SHIFT;
+            long found;
+            if (isParallelSearch(size)) {
+                found = pool.findFirst(index, end, getSearchBlockSize(size),
+                        new LongBinaryOperator() {
+
+                    @Override
+                    public long applyAsLong(long blockStart, long blockEnd) {
+                        return KERNEL.findLeaf(hashes, from, size, blockStart, blockEnd);
+                    }
+
+                });
+            } else {
+                found = KERNEL.findLeaf(hashes, from, size, index, end);
+            }
+            if (found >= 0) {
+                return found;
+            }
+            index = end;
+        }
+    }
+
+    /**
+     * Search a bijection for a leaf using rotation. The keys are split into
+     * two halves, depending on the highest bit of the universal hash. For each
+     * index, if there are no collisions within each half, all rotations of the
+     * positions of the second half are tested.
+     *
+     * @return the value to store: (index - startIndex - 1) * size + rotation
+     */
+    private long getRotationValue(KeyArray<?> data, final long[] hashes, final int from,
+            final int size, long startIndex) {
+        long index = startIndex + 1;
+        int to = from + size;
+        outer: while (true) {
+            if (Settings.needNewUniversalHashIndex(index)) {
+                long x = Settings.getUniversalHashIndex(index);
+                data.universalHash(from, to, x, hashes);
+                Arrays.sort(hashes, from, to);
+                for (int i = from + 1; i < to; i++) {
                     if (hashes[i - 1] == hashes[i]) {
                         index++;
                         while (!Settings.needNewUniversalHashIndex(index)) {
@@ -117,150 +351,167 @@ public class Generator<T> {
                     }
                 }
             }
-            if (tryUnique(hashes, index)) {
-                return index;
+            long end = (Settings.getUniversalHashIndex(index) + 1) <<
+                    Settings.SUPPLEMENTAL_HASH_SHIFT;
+            long found;
+            if (isParallelSearch(size)) {
+                found = pool.findFirst(index, end, getSearchBlockSize(size),
+                        new LongBinaryOperator() {
+
+                    @Override
+                    public long applyAsLong(long blockStart, long blockEnd) {
+                        return findRotation(hashes, from, size, blockStart, blockEnd);
+                    }
+
+                });
+            } else {
+                found = findRotation(hashes, from, size, index, end);
+            }
+            if (found >= 0) {
+                int rotation = tryRotation(hashes, from, size, found);
+                return (found - startIndex - 1) * size + rotation;
             }
-            index++;
+            index = end;
         }
     }
 
-    private boolean trySplitEvenly(long[] hashes, long index) {
-        int size = hashes.length;
-        int split = settings.getSplit(size);
-        int firstPart, otherPart;
-        if (split < 0) {
-            firstPart = -split;
-            otherPart = size - firstPart;
-            split = 2;
-        } else {
-            firstPart = size / split;
-            otherPart = firstPart;
+    private static long findRotation(long[] hashes, int from, int size,
+            long index, long end) {
+        for (; index < end; index++) {
+            if (tryRotation(hashes, from, size, index) >= 0) {
+                return index;
+            }
         }
-        if (firstPart != otherPart) {
-            int limit = firstPart;
-            for (int i = 0; i < size; i++) {
-                long h = hashes[i];
-                int x = Settings.supplementalHash(h, index);
-//                num_split_evals++;
-                x = Settings.reduce(x, size);
-                if (x < limit) {
-                    firstPart--;
+        return -1;
+    }
+
+    static int tryRotation(long[] hashes, int from, int size, long index) {
+        long first = 0, second = 0;
+        for (int i = from; i < from + size; i++) {
+            long x = hashes[i];
+            int h = Settings.supplementalHash(x, index);
+            long bit = 1L << Settings.reduce(h, size);
+            if (x < 0) {
+                if ((second & bit) != 0) {
+                    return -1;
+                }
+                second |= bit;
+            } else {
+                if ((first & bit) != 0) {
+                    return -1;
                 }
+                first |= bit;
             }
-            return firstPart == 0;
         }
-        int[] count = new int[split];
-        Arrays.fill(count, firstPart);
-        for (int i = 0; i < size; i++) {
-            long h = hashes[i];
-            int x = Settings.supplementalHash(h, index);
-            x = Settings.reduce(x, split);
-//            num_split_evals++;
-            count[x]--;
+        long found = (1L << size) - 1;
+        for (int r = 0; r < size; r++) {
+            long rotated = ((second << r) | (second >>> (size - r))) & found;
+            if ((first | rotated) == found) {
+                return r;
+            }
         }
-        for (int i = 0; i < split; i++) {
-            if (count[i] != 0) {
-                return false;
+        return -1;
+    }
+
+    /**
+     * Partition a range into two parts (of different size) in place.
+     */
+    private static void split(KeyArray<?> data, long[] hashes, int from, int size,
+            int firstPart, long index) {
+        int i = from, j = from + size - 1;
+        while (i <= j) {
+            int x = Settings.supplementalHash(hashes[i], index);
+            x = Settings.reduce(x, size);
+            if (x < firstPart) {
+                i++;
+            } else {
+                swap(data, hashes, i, j--);
             }
         }
-        return true;
     }
 
-    private void splitEvenly(T[] data, long[] hashes, long index, T[][] data2,
-            long[][] hashes2) {
-        int size = data.length;
-        int split = data2.length;
-        int firstPartSize = data2[0].length;
-        int otherPartSize = data2[1].length;
-        if (firstPartSize != otherPartSize) {
-            int i0 = 0, i1 = 0;
-            int limit = firstPartSize;
-            for (int i = 0; i < size; i++) {
-                T t = data[i];
-                long h = hashes[i];
-                int x = Settings.supplementalHash(h, index);
-                x = Settings.reduce(x, size);
-                if (x < limit) {
-                    data2[0][i0] = t;
-                    hashes2[0][i0] = h;
-                    i0++;
+    /**
+     * Partition a range into parts of the same size in place, one cycle at a
+     * time.
+     */
+    private static void splitEvenly(KeyArray<?> data, long[] hashes, int from,
+            int split, int partSize, long index, int[] pos) {
+        for (int i = 0; i < split; i++) {
+            pos[i] = from + i * partSize;
+        }
+        for (int bucket = 0; bucket < split; bucket++) {
+            int stop = from + (bucket + 1) * partSize;
+            while (pos[bucket] < stop) {
+                int i = pos[bucket];
+                int x = Settings.supplementalHash(hashes[i], index);
+                int target = Settings.reduce(x, split);
+                if (target == bucket) {
+                    pos[bucket]++;
                 } else {
-                    data2[1][i1] = t;
-                    hashes2[1][i1] = h;
-                    i1++;
+                    swap(data, hashes, i, pos[target]++);
                 }
             }
-            return;
-        }
-        int[] pos = new int[split];
-        for (int i = 0; i < size; i++) {
-            T t = data[i];
-            long h = hashes[i];
-            int x = Settings.supplementalHash(h, index);
-            int bucket = Settings.reduce(x, split);
-            int p = pos[bucket]++;
-            data2[bucket][p] = t;
-            hashes2[bucket][p] = h;
         }
     }
-    
+
+    private static void swap(KeyArray<?> data, long[] hashes, int i, int j) {
+        data.swap(i, j);
+        long h = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = h;
+    }
+
 //    public static long num_split_count;
 //    public static long num_split_evals;
 //    public static long[] num_bij_evals = new long[20];
 //    public static long[] num_bij_counts = new long[20];
 
-    static <T> boolean tryUnique(long[] hashes, long index) {
-        int bits = 0;
-        int size = hashes.length;
-        int found = (1 << size) - 1;
-        for (int i = 0; i < size; i++) {
-            long x = hashes[i];
-            int h = Settings.supplementalHash(x, index);
-            h = Settings.reduce(h, size);
-//            ++num_bij_evals[size];            
-//            if ((bits & (1 << h)) != 0) {
-//                return false;
-//            }
-            bits |= 1 << h;
-        }
-        return bits == found;
-//        return true;
+    public BitBuffer generate(Collection<T> collection) {
+        return generate(collection, collection.size());
     }
 
-    public BitBuffer generate(Collection<T> collection) {
-        long size = collection.size();
+    /**
+     * Generate the description for a set of keys that is possibly larger than
+     * what fits in a collection (more than 2^31 entries). In chunk mode, the
+     * keys are written to temporary files if a key serializer is available,
+     * and otherwise the keys are iterated once per chunk.
+     *
+     * @param collection the keys (must be unique)
+     * @param size the number of keys
+     * @return the hash function description
+     */
+    public BitBuffer generate(Iterable<T> collection, long size) {
         int bucketCount = Settings.getBucketCount(size, settings.getAverageBucketSize());
         ArrayList<Bucket> buckets = new ArrayList<Bucket>(bucketCount);
         int averageBucketSize = settings.getAverageBucketSize();
         if (size <= maxChunkSize || bucketCount == 1) {
-            for (int i = 0; i < bucketCount; i++) {
-                buckets.add(new Bucket(averageBucketSize));
+            if (size > MAX_ARRAY_SIZE) {
+                throw new IllegalArgumentException("Too many keys for one chunk: " +
+                        size + ", please set a maximum chunk size");
             }
+            FlatKeys flat = new FlatKeys((int) size, bucketCount, 0, bucketCount);
             for (T t : collection) {
-                int b;
-                if (bucketCount == 1) {
-                    b = 0;
-                } else {
-                    long h = hash.universalHash(t, 0);
-                    b = Settings.reduce((int) h, bucketCount);
-                    if (b >= bucketCount || b < 0) {
-                        throw new AssertionError();
-                    }
-                }
-                buckets.get(b).add(t);
+                flat.add(t, hash.universalHash(t, 0));
             }
+            buckets = flat.sortIntoBuckets();
             processBuckets(size, bucketCount, buckets);
+        } else if (settings.isRebalanceBuckets()) {
+            // keys can be moved to buckets of other chunks
+            throw new IllegalArgumentException(
+                    "Rebalancing requires that all keys fit in one chunk: " + size);
+        } else if (keySerializer != null) {
+            int bucketsPerChunk = Math.max(1, maxChunkSize / averageBucketSize);
+            generateChunks(collection, size, bucketCount, bucketsPerChunk, buckets);
         } else {
-            // split into chunks
+            // split into chunks, iterating over the set once per chunk
             int bucketsPerChunk = Math.max(1, maxChunkSize / averageBucketSize);
             int remaining = bucketCount;
             for (int bucketOffset = 0; bucketOffset < bucketCount; bucketOffset += bucketsPerChunk) {
                 int chunkSize = Math.min(bucketsPerChunk, remaining);
                 remaining -= chunkSize;
-                ArrayList<Bucket> buckets2 = new ArrayList<Bucket>(chunkSize);
-                for (int i = 0; i < chunkSize; i++) {
-                    buckets2.add(new Bucket(averageBucketSize));
-                }
+                int capacity = (int) Math.min(MAX_ARRAY_SIZE,
+                        (long) chunkSize * averageBucketSize * 11 / 10);
+                FlatKeys flat = new FlatKeys(capacity, bucketCount, bucketOffset, chunkSize);
                 for (T t : collection) {
                     int b;
                     long h = hash.universalHash(t, 0);
@@ -269,9 +520,11 @@ public class Generator<T> {
                         throw new AssertionError();
                     }
                     if (b >= bucketOffset && b < bucketOffset + bucketsPerChunk) {
-                        buckets2.get(b - bucketOffset).add(t);
+                        flat.add(t, h);
                     }
                 }
+                ArrayList<Bucket> buckets2 = flat.sortIntoBuckets();
+                flat = null;
                 processBuckets(size, bucketCount, buckets2);
                 for (Bucket b2 : buckets2) {
                     buckets.add(b2);
@@ -279,79 +532,363 @@ public class Generator<T> {
                 buckets2.clear();
             }
         }
-        ArrayList<T> alternativeList = new ArrayList<T>();
+        return generate(size, buckets);
+    }
+
+    /**
+     * Generate the description for an array of long keys, without boxing. The
+     * universal hash function that is used is LongHash, so the generator needs
+     * to be constructed with LongHash (which is also used for the alternative
+     * algorithm). The keys are first sorted into buckets using a counting
+     * sort; the array itself is not modified. The entries in the array must be
+     * unique.
+     *
+     * @param keys the keys
+     * @return the hash function description
+     */
+    public BitBuffer generate(long[] keys) {
+        if (!(hash instanceof LongHash)) {
+            throw new IllegalStateException("Long keys require LongHash, got " + hash);
+        }
+        int size = keys.length;
+        int bucketCount = Settings.getBucketCount(size, settings.getAverageBucketSize());
+        int[] bucketIds = new int[size];
+        if (bucketCount > 1) {
+            long[] block = new long[Math.min(size, HASH_BLOCK_SIZE)];
+            for (int i = 0; i < size; i += block.length) {
+                int len = Math.min(block.length, size - i);
+                KERNEL.universalHash(keys, i, len, 0, block, 0);
+                for (int j = 0; j < len; j++) {
+                    bucketIds[i + j] = Settings.reduce((int) block[j], bucketCount);
+                }
+            }
+        }
+        ArrayList<Bucket> buckets = sortIntoBuckets(keys, 1, bucketIds, size, bucketCount);
+        bucketIds = null;
+        processBuckets(size, bucketCount, buckets);
+        return generate(size, buckets);
+    }
+
+    /**
+     * Generate the description for an array of 128 bit signatures, where each
+     * signature is stored as two consecutive longs. The universal hash
+     * function needs to be SignatureHash. The signatures must be unique.
+     *
+     * @param signatures the signatures
+     * @return the hash function description
+     */
+    public BitBuffer generateSignatures(long[] signatures) {
+        if (!(hash instanceof SignatureHash)) {
+            throw new IllegalStateException("Signatures require SignatureHash, got " + hash);
+        }
+        int size = signatures.length / 2;
+        int bucketCount = Settings.getBucketCount(size, settings.getAverageBucketSize());
+        int[] bucketIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            int b;
+            if (bucketCount == 1) {
+                b = 0;
+            } else {
+                long h = SignatureHash.universalHash(signatures[2 * i], signatures[2 * i + 1], 0);
+                b = Settings.reduce((int) h, bucketCount);
+            }
+            bucketIds[i] = b;
+        }
+        ArrayList<Bucket> buckets = sortIntoBuckets(signatures, 2, bucketIds, size, bucketCount);
+        bucketIds = null;
+        processBuckets(size, bucketCount, buckets);
+        return generate(size, buckets);
+    }
+
+    /**
+     * Sort long keys or signatures into buckets, using a counting sort. The
+     * keys array itself is not modified.
+     *
+     * @param keys the keys
+     * @param width the number of longs per key (1 for long keys, 2 for
+     *            signatures)
+     * @param bucketIds the bucket of each key
+     * @param size the number of keys
+     * @param bucketCount the number of buckets
+     * @return the list of buckets
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<Bucket> sortIntoBuckets(long[] keys, int width,
+            int[] bucketIds, int size, int bucketCount) {
+        int[] pos = new int[bucketCount + 1];
+        for (int i = 0; i < size; i++) {
+            pos[bucketIds[i] + 1]++;
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            pos[i + 1] += pos[i];
+        }
+        ArrayList<Bucket> buckets = new ArrayList<Bucket>(bucketCount);
+        long[] sorted = new long[width * size];
+        for (int i = 0; i < bucketCount; i++) {
+            KeyArray<?> k;
+            if (width == 1) {
+                k = new LongKeyArray(sorted, pos[i], pos[i + 1] - pos[i]);
+            } else {
+                k = new SignatureKeyArray(sorted, pos[i], pos[i + 1] - pos[i]);
+            }
+            buckets.add(new Bucket((KeyArray<T>) k));
+        }
+        if (width == 1) {
+            for (int i = 0; i < size; i++) {
+                sorted[pos[bucketIds[i]]++] = keys[i];
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int p = 2 * pos[bucketIds[i]]++;
+                sorted[p] = keys[2 * i];
+                sorted[p + 1] = keys[2 * i + 1];
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Split a large set into chunks, in a single pass. Each key is hashed
+     * once, and the universal hash (index 0) and the key are appended to the
+     * temporary file of the chunk. Then the buckets of each chunk are
+     * generated, reading only the file of this chunk.
+     *
+     * @param collection the keys
+     * @param size the number of keys
+     * @param bucketCount the number of buckets
+     * @param bucketsPerChunk the number of buckets per chunk
+     * @param buckets the target list of buckets
+     */
+    private void generateChunks(Iterable<T> collection, long size,
+            int bucketCount, int bucketsPerChunk, ArrayList<Bucket> buckets) {
+        int chunkCount = (bucketCount + bucketsPerChunk - 1) / bucketsPerChunk;
+        File[] files = new File[chunkCount];
+        int[] counts = new int[chunkCount];
+        try {
+            DataOutputStream[] out = new DataOutputStream[chunkCount];
+            try {
+                for (int i = 0; i < chunkCount; i++) {
+                    files[i] = File.createTempFile("minperf", ".chunk");
+                    out[i] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(files[i]), CHUNK_BUFFER_SIZE));
+                }
+                for (T t : collection) {
+                    long h = hash.universalHash(t, 0);
+                    int b = Settings.reduce((int) h, bucketCount);
+                    int chunk = b / bucketsPerChunk;
+                    out[chunk].writeLong(h);
+                    keySerializer.write(out[chunk], t);
+                    counts[chunk]++;
+                }
+            } finally {
+                for (DataOutputStream o : out) {
+                    if (o != null) {
+                        o.close();
+                    }
+                }
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                int chunkSize = Math.min(bucketsPerChunk, bucketCount - i * bucketsPerChunk);
+                ArrayList<Bucket> buckets2 = readChunk(files[i], counts[i],
+                        bucketCount, i * bucketsPerChunk, chunkSize);
+                files[i].delete();
+                processBuckets(size, bucketCount, buckets2);
+                buckets.addAll(buckets2);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (File f : files) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private ArrayList<Bucket> readChunk(File file, int count, int bucketCount,
+            int bucketOffset, int chunkSize) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), CHUNK_BUFFER_SIZE));
+        try {
+            if (hash instanceof LongHash) {
+                // avoid boxing
+                long[] keys = new long[count];
+                int[] bucketIds = new int[count];
+                for (int i = 0; i < count; i++) {
+                    long h = in.readLong();
+                    bucketIds[i] = Settings.reduce((int) h, bucketCount) - bucketOffset;
+                    keys[i] = in.readLong();
+                }
+                return sortIntoBuckets(keys, 1, bucketIds, count, chunkSize);
+            }
+            FlatKeys flat = new FlatKeys(count, bucketCount, bucketOffset, chunkSize);
+            for (int i = 0; i < count; i++) {
+                long h = in.readLong();
+                flat.add(keySerializer.read(in), h);
+            }
+            return flat.sortIntoBuckets();
+        } finally {
+            in.close();
+        }
+    }
+
+    private BitBuffer generate(long size, final ArrayList<Bucket> buckets) {
+        final ArrayList<T> alternativeList = new ArrayList<T>();
         for (int i = 0; i < buckets.size(); i++) {
             Bucket b = buckets.get(i);
             // move all buckets first, so overlap is not affected
             b.moveToAlternative(alternativeList);
         }
 
-        int[] startList = new int[buckets.size() + 1];
-        int[] offsetList = new int[buckets.size() + 1];
-        int start = 0, offset = 0;
-        for (int i = 0; i < buckets.size(); i++) {
-            Bucket b = buckets.get(i);
-            if (start - offset < 0) {
-                throw new AssertionError();
-            }
-            int pos = b.buff.position();
-            // possible overlap
-            if (i < buckets.size() - 1) {
-                Bucket next = buckets.get(i + 1);
-                int maxOverlap = Math.min(16, next.buff.position());
-                // at least one bit per entry
-                int minBitCount = getMinBitCount(b.entryCount);
-                maxOverlap = Math.min(maxOverlap, b.buff.position() - minBitCount);
-                int overlap = 0;
-                for (; overlap < maxOverlap; overlap++) {
-                    if (next.buff.readNumber(0, overlap + 1) !=
-                            b.buff.readNumber(pos - overlap - 1, overlap + 1)) {
-                        break;
-                    }
+        // the bucket lengths (after removing the overlap) and the number of
+        // entries are summed up in blocks, in parallel
+        final int bucketCount = buckets.size();
+        final int blockCount = (bucketCount + ASSEMBLY_BLOCK_SIZE - 1) / ASSEMBLY_BLOCK_SIZE;
+        final long[] startList = new long[bucketCount + 1];
+        final long[] offsetList = new long[bucketCount + 1];
+        pool.forEach(blockCount, new IntConsumer() {
+            @Override
+            public void accept(int block) {
+                int from = block * ASSEMBLY_BLOCK_SIZE;
+                int to = Math.min(bucketCount, from + ASSEMBLY_BLOCK_SIZE);
+                long start = 0, offset = 0;
+                for (int i = from; i < to; i++) {
+                    Bucket b = buckets.get(i);
+                    start += getLengthWithoutOverlap(b,
+                            i < bucketCount - 1 ? buckets.get(i + 1) : null);
+                    offset += b.entryCount;
+                    startList[i + 1] = start;
+                    offsetList[i + 1] = offset;
                 }
-                pos -= overlap;
-                b.buff.seek(pos);
             }
-            start += pos;
-            offset += b.entryCount;
-            startList[i + 1] = start;
-            offsetList[i + 1] = offset;
+        });
+        final long[] blockStart = new long[blockCount + 1];
+        final long[] blockOffset = new long[blockCount + 1];
+        for (int block = 0; block < blockCount; block++) {
+            int last = Math.min(bucketCount, (block + 1) * ASSEMBLY_BLOCK_SIZE);
+            blockStart[block + 1] = blockStart[block] + startList[last];
+            blockOffset[block + 1] = blockOffset[block] + offsetList[last];
         }
+        pool.forEach(blockCount, new IntConsumer() {
+            @Override
+            public void accept(int block) {
+                int from = block * ASSEMBLY_BLOCK_SIZE;
+                int to = Math.min(bucketCount, from + ASSEMBLY_BLOCK_SIZE);
+                for (int i = from; i < to; i++) {
+                    startList[i + 1] += blockStart[block];
+                    offsetList[i + 1] += blockOffset[block];
+                    if (startList[i + 1] - offsetList[i + 1] < 0) {
+                        throw new AssertionError();
+                    }
+                }
+            }
+        });
+        // the bucket positions, before the lists are shrunk
+        final long[] bucketPos = startList.clone();
+        long start = startList[bucketCount];
         shrinkList(startList, offsetList);
-        int minOffsetDiff = shrinkList(offsetList);
-        int minStartDiff = shrinkList(startList);
+        long minOffsetDiff = shrinkList(offsetList);
+        long minStartDiff = shrinkList(startList);
         if (minStartDiff < 0) {
             throw new AssertionError();
         }
 
-        BitBuffer alt = null;
+        long headerBits = BitBuffer.getEliasDeltaSize(size + 1);
+        headerBits += 1;
         if (!alternativeList.isEmpty()) {
-            alt = BDZ.generate(hash, alternativeList);
+            headerBits += BitBuffer.getEliasDeltaSize(fallback.getType() + 1);
         }
+        headerBits += BitBuffer.getEliasDeltaSize(minOffsetDiff + 1);
+        headerBits += BitBuffer.getEliasDeltaSize(minStartDiff + 1);
+        final long origin = -headerBits;
+
+        // the monotone lists (encoded once) and the alternative; with the
+        // bucket directory or aligned lists, both lists are stored in the
+        // first part, aligned relative to the start of the description
+        final BitBuffer[] parts = new BitBuffer[3];
+        pool.forEach(3, new IntConsumer() {
+            @Override
+            public void accept(int i) {
+                if (i == 2) {
+                    if (!alternativeList.isEmpty()) {
+                        parts[i] = fallback.generate(hash, alternativeList, settings, pool);
+                    }
+                    return;
+                }
+                parts[i] = new BitBuffer(new GrowableStorage());
+                if (settings.isBucketDirectory()) {
+                    if (i == 0) {
+                        BucketDirectory.generate(offsetList, startList, parts[i], origin);
+                    }
+                } else if (monotoneListType == MonotoneList.ALIGNED) {
+                    // the alignment of the second list depends on the
+                    // size of the first
+                    if (i == 0) {
+                        MonotoneList.generate(offsetList, parts[i], monotoneListType, origin);
+                        MonotoneList.generate(startList, parts[i], monotoneListType, origin);
+                    }
+                } else {
+                    MonotoneList.generate(i == 0 ? offsetList : startList,
+                            parts[i], monotoneListType);
+                }
+            }
+        });
+        BitBuffer alt = parts[2];
 
-        int bitCount = BitBuffer.getEliasDeltaSize(size + 1);
-        bitCount += 1;
-        bitCount += BitBuffer.getEliasDeltaSize(minOffsetDiff + 1);
-        bitCount += BitBuffer.getEliasDeltaSize(minStartDiff + 1);
-        bitCount += MonotoneList.getSize(offsetList, eliasFanoMonotoneLists);
-        bitCount += MonotoneList.getSize(startList, eliasFanoMonotoneLists);
+        long bitCount = headerBits;
+        bitCount += parts[0].position();
+        bitCount += parts[1].position();
+        final long startBuckets = bitCount;
         bitCount += start;
         if (alt != null) {
+            bitCount = fallback.align(0, bitCount, settings);
             bitCount += alt.position();
         }
 
-        BitBuffer all = new BitBuffer(bitCount);
+        final BitBuffer all = new BitBuffer(bitCount);
         all.writeEliasDelta(size + 1);
         all.writeBit(alternativeList.isEmpty() ? 0 : 1);
+        if (alt != null) {
+            all.writeEliasDelta(fallback.getType() + 1);
+        }
         all.writeEliasDelta(minOffsetDiff + 1);
         all.writeEliasDelta(minStartDiff + 1);
-        MonotoneList.generate(offsetList, all, eliasFanoMonotoneLists);
-        MonotoneList.generate(startList, all, eliasFanoMonotoneLists);
-        for (int i = 0; i < buckets.size(); i++) {
-            Bucket b = buckets.get(i);
-            all.write(b.buff);
+        all.write(parts[0]);
+        all.write(parts[1]);
+        if (all.position() != startBuckets) {
+            throw new AssertionError();
+        }
+        // copy the buckets in parallel; each block only writes the words
+        // that are fully within its range, and the words at the boundaries
+        // are written afterwards
+        final long[] boundary = new long[2 * blockCount];
+        pool.forEach(blockCount, new IntConsumer() {
+            @Override
+            public void accept(int block) {
+                int from = block * ASSEMBLY_BLOCK_SIZE;
+                int to = Math.min(bucketCount, from + ASSEMBLY_BLOCK_SIZE);
+                long lo = (startBuckets + bucketPos[from] + 63) & ~63L;
+                long hi = (startBuckets + bucketPos[to]) & ~63L;
+                hi = Math.max(lo, hi);
+                boundary[2 * block] = lo;
+                boundary[2 * block + 1] = hi;
+                copyBuckets(all, startBuckets, buckets, bucketPos, from, to, lo, hi);
+            }
+        });
+        for (int block = 0; block < blockCount; block++) {
+            int from = block * ASSEMBLY_BLOCK_SIZE;
+            int to = Math.min(bucketCount, from + ASSEMBLY_BLOCK_SIZE);
+            long lo = boundary[2 * block];
+            long hi = boundary[2 * block + 1];
+            copyBuckets(all, startBuckets, buckets, bucketPos, from, to,
+                    startBuckets + bucketPos[from], lo);
+            copyBuckets(all, startBuckets, buckets, bucketPos, from, to,
+                    hi, startBuckets + bucketPos[to]);
         }
+        all.seek(startBuckets + start);
         if (alt != null) {
+            all.seek(fallback.align(0, all.position(), settings));
             all.write(alt);
         }
         if (bitCount != all.position()) {
@@ -360,40 +897,337 @@ public class Generator<T> {
         return all;
     }
 
+    /**
+     * Get the number of bits of a bucket, without the bits that overlap with
+     * the next bucket. This does not change the buckets.
+     *
+     * @param b the bucket
+     * @param next the next bucket, or null
+     * @return the number of bits
+     */
+    private static int getLengthWithoutOverlap(Generator<?>.Bucket b, Generator<?>.Bucket next) {
+        int pos = (int) b.buff.position();
+        if (next == null) {
+            return pos;
+        }
+        int maxOverlap = (int) Math.min(16, next.buff.position());
+        // at least one bit per entry
+        int minBitCount = (int) getMinBitCount(b.entryCount);
+        maxOverlap = Math.min(maxOverlap, pos - minBitCount);
+        int overlap = 0;
+        for (; overlap < maxOverlap; overlap++) {
+            if (next.buff.readNumber(0, overlap + 1) !=
+                    b.buff.readNumber(pos - overlap - 1, overlap + 1)) {
+                break;
+            }
+        }
+        return pos - overlap;
+    }
+
+    /**
+     * Copy the bits of a range of buckets, but only the bits that are within
+     * the given target range.
+     *
+     * @param all the target buffer
+     * @param startBuckets the position of the first bucket in the target
+     * @param buckets the buckets
+     * @param bucketPos the position of each bucket, relative to the first
+     * @param from the first bucket
+     * @param to the last bucket (exclusive)
+     * @param lo the start of the target range
+     * @param hi the end of the target range (exclusive)
+     */
+    private static void copyBuckets(BitBuffer all, long startBuckets,
+            ArrayList<? extends Generator<?>.Bucket> buckets, long[] bucketPos,
+            int from, int to, long lo, long hi) {
+        if (lo >= hi) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            long s = startBuckets + bucketPos[i];
+            long e = startBuckets + bucketPos[i + 1];
+            if (s >= hi) {
+                break;
+            }
+            long a = Math.max(s, lo), b = Math.min(e, hi);
+            if (a < b) {
+                all.write(a, buckets.get(i).buff, a - s, b - a);
+            }
+        }
+    }
+
+    /**
+     * Get the maximum number of bits of a bucket description. Larger buckets
+     * are encoded using the alternative algorithm, except with bucket
+     * rebalancing.
+     *
+     * @param maxBucketSize the maximum size of a bucket
+     * @return the maximum number of bits
+     */
+    protected int getMaxBits(int maxBucketSize) {
+        return maxBucketSize * MAX_BITS_PER_ENTRY;
+    }
+
     private void processBuckets(long size, int bucketCount, final ArrayList<Bucket> buckets) {
 
         int averageBucketSize = (int) (size / bucketCount);
-        final int maxBucketSize = averageBucketSize * MAX_FILL;
-        final int maxBits = maxBucketSize * MAX_BITS_PER_ENTRY;
+        int max = averageBucketSize * MAX_FILL;
+        if (settings.isRebalanceBuckets()) {
+            // afterwards, no bucket is larger than the maximum
+            rebalance(buckets, max);
+        }
+        final int maxBucketSize = max;
+        // with rebalancing, all keys are encoded using RecSplit, as the
+        // evaluator does not look up the alternative for empty buckets
+        final int maxBits = settings.isRebalanceBuckets() ?
+                Integer.MAX_VALUE : getMaxBits(maxBucketSize);
 
-        pool.invoke(new RecursiveAction() {
-            private static final long serialVersionUID = 1L;
+        // the largest buckets are processed first, so that they don't delay
+        // the end of this phase
+        final int[] order = getLargestFirst(buckets);
+        final int[] groups = getGroups(buckets, order);
+        pool.forEachInOrder(groups.length - 1, new IntConsumer() {
 
             @Override
-            protected void compute() {
-                RecursiveAction[] list = new RecursiveAction[buckets.size()];
-                for (int i = 0; i < buckets.size(); i++) {
-                    final Bucket b = buckets.get(i);
-                    list[i] = new RecursiveAction() {
-
-                        private static final long serialVersionUID = 1L;
+            public void accept(int group) {
+                for (int i = groups[group]; i < groups[group + 1]; i++) {
+                    buckets.get(order[i]).generateBucket(hash, maxBucketSize, maxBits);
+                }
+            }
 
-                        @Override
-                        protected void compute() {
-                            b.generateBucket(hash, maxBucketSize, maxBits);
-                        }
+        });
+    }
 
-                    };
+    /**
+     * Move the keys of buckets that are larger than the maximum size to other
+     * buckets. For each key of such a (redirected) bucket, the universal hash
+     * functions with index -1, -2,... are used to calculate further buckets,
+     * and the key is moved to the first one that is not redirected. If a
+     * target bucket gets too large, it is redirected as well, together with
+     * the keys that were already moved there (each key continues with the
+     * next index of its own sequence). Redirected buckets are empty
+     * afterwards, so the evaluator can follow the same sequence until it finds
+     * a bucket that is not empty.
+     *
+     * @param buckets all buckets
+     * @param maxBucketSize the maximum size of a bucket
+     */
+    @SuppressWarnings("unchecked")
+    private void rebalance(ArrayList<Bucket> buckets, int maxBucketSize) {
+        int bucketCount = buckets.size();
+        if (bucketCount < 2) {
+            return;
+        }
+        KeyArray<T>[] original = new KeyArray[bucketCount];
+        int[] size = new int[bucketCount];
+        int[] todo = new int[16];
+        int todoCount = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            original[i] = buckets.get(i).keys;
+            size[i] = original[i].size();
+            if (size[i] > maxBucketSize) {
+                todo = append(todo, todoCount++, i);
+            }
+        }
+        if (todoCount == 0) {
+            return;
+        }
+        Moved moved = new Moved(bucketCount);
+        boolean[] redirected = new boolean[bucketCount];
+        int redirectedCount = 0;
+        while (todoCount > 0) {
+            int i = todo[--todoCount];
+            if (++redirectedCount == bucketCount) {
+                throw new IllegalStateException("All buckets are redirected");
+            }
+            redirected[i] = true;
+            // the keys of this bucket, and then the keys moved here
+            int originalCount = original[i].size();
+            int e = moved.head[i];
+            moved.head[i] = -1;
+            size[i] = 0;
+            for (int j = 0; e >= 0 || j < originalCount; j++) {
+                int array, index, redirect;
+                int next = e;
+                if (j < originalCount) {
+                    array = i;
+                    index = j;
+                    redirect = 0;
+                } else {
+                    array = moved.array[e];
+                    index = moved.index[e];
+                    redirect = moved.redirect[e];
+                    next = moved.next[e];
+                }
+                int target;
+                do {
+                    redirect++;
+                    long h = original[array].universalHash(index, -redirect);
+                    target = Settings.reduce((int) h, bucketCount);
+                } while (redirected[target]);
+                moved.add(target, array, index, redirect);
+                if (++size[target] == maxBucketSize + 1) {
+                    todo = append(todo, todoCount++, target);
                 }
-                pool.invokeAll(list);
+                e = next;
             }
-        });
+        }
+        int[] array = new int[0], index = new int[0];
+        for (int i = 0; i < bucketCount; i++) {
+            if (!redirected[i] && moved.head[i] < 0) {
+                continue;
+            }
+            int count = size[i];
+            if (array.length < count) {
+                array = new int[count];
+                index = new int[count];
+            }
+            int n = 0;
+            if (!redirected[i]) {
+                for (int j = 0; j < original[i].size(); j++) {
+                    array[n] = i;
+                    index[n++] = j;
+                }
+            }
+            for (int e = moved.head[i]; e >= 0; e = moved.next[e]) {
+                array[n] = moved.array[e];
+                index[n++] = moved.index[e];
+            }
+            Bucket b = buckets.get(i);
+            b.keys = original[i].gather(original, array, index, n);
+            b.hashes = null;
+        }
+    }
+
+    private static int[] append(int[] list, int size, int x) {
+        if (size == list.length) {
+            list = Arrays.copyOf(list, size * 2);
+        }
+        list[size] = x;
+        return list;
+    }
+
+    /**
+     * The keys that were moved to other buckets during rebalancing, as a
+     * linked list per target bucket.
+     */
+    static class Moved {
+
+        /**
+         * The first entry of each bucket, or -1.
+         */
+        final int[] head;
+
+        /**
+         * The next entry in the same bucket, or -1.
+         */
+        int[] next = new int[16];
+
+        /**
+         * The original bucket of the key.
+         */
+        int[] array = new int[16];
+
+        /**
+         * The index of the key within the original bucket.
+         */
+        int[] index = new int[16];
+
+        /**
+         * The number of redirects.
+         */
+        int[] redirect = new int[16];
+
+        private int size;
+
+        Moved(int bucketCount) {
+            head = new int[bucketCount];
+            Arrays.fill(head, -1);
+        }
+
+        void add(int bucket, int a, int i, int r) {
+            if (size == next.length) {
+                int len = size * 2;
+                next = Arrays.copyOf(next, len);
+                array = Arrays.copyOf(array, len);
+                index = Arrays.copyOf(index, len);
+                redirect = Arrays.copyOf(redirect, len);
+            }
+            next[size] = head[bucket];
+            array[size] = a;
+            index[size] = i;
+            redirect[size] = r;
+            head[bucket] = size++;
+        }
+
+    }
+
+    /**
+     * Get the indexes of the buckets, ordered by size (largest first).
+     *
+     * @param buckets the buckets
+     * @return the indexes
+     */
+    private int[] getLargestFirst(ArrayList<Bucket> buckets) {
+        int count = buckets.size();
+        int maxSize = 0;
+        for (int i = 0; i < count; i++) {
+            maxSize = Math.max(maxSize, buckets.get(i).keys.size());
+        }
+        // counting sort
+        int[] pos = new int[maxSize + 2];
+        for (int i = 0; i < count; i++) {
+            pos[maxSize - buckets.get(i).keys.size() + 1]++;
+        }
+        for (int i = 1; i < pos.length; i++) {
+            pos[i] += pos[i - 1];
+        }
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[pos[maxSize - buckets.get(i).keys.size()]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Split the ordered buckets into groups of about the same number of keys,
+     * so that there are a few groups per thread, but not too many tasks. As
+     * the buckets are ordered largest first, the first groups contain few
+     * buckets, and the last ones many.
+     *
+     * @param buckets the buckets
+     * @param order the order of the buckets
+     * @return the start index (within the order) of each group, followed by
+     *         the number of buckets
+     */
+    private int[] getGroups(ArrayList<Bucket> buckets, int[] order) {
+        long total = 0;
+        for (Bucket b : buckets) {
+            total += b.keys.size();
+        }
+        long grain = total / pool.getParallelism() / GROUPS_PER_THREAD;
+        grain = Math.max(1, Math.min(MAX_GROUP_KEYS, grain));
+        int[] groups = new int[order.length + 1];
+        int count = 0;
+        long keys = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (keys == 0) {
+                groups[count++] = i;
+            }
+            // empty buckets also need some time
+            keys += Math.max(1, buckets.get(order[i]).keys.size());
+            if (keys >= grain) {
+                keys = 0;
+            }
+        }
+        groups[count++] = order.length;
+        return Arrays.copyOf(groups, count);
     }
 
-    public static void shrinkList(int[] targetList, int[] sourceList) {
-        int sum = 0;
+    public static void shrinkList(long[] targetList, long[] sourceList) {
+        long sum = 0;
         for (int i = 1; i < sourceList.length; i++) {
-            int d = sourceList[i] - sourceList[i - 1];
+            long d = sourceList[i] - sourceList[i - 1];
             sum += d;
             targetList[i] -= getMinBitCount(sum);
             if (targetList[i] < targetList[i - 1]) {
@@ -402,10 +1236,10 @@ public class Generator<T> {
         }
     }
 
-    public static int shrinkList(int[] list) {
-        int min = Integer.MAX_VALUE;
+    public static long shrinkList(long[] list) {
+        long min = Long.MAX_VALUE;
         for (int i = 0; i < list.length - 1; i++) {
-            int d = list[i + 1] - list[i];
+            long d = list[i + 1] - list[i];
             min = Math.min(min, d);
         }
         for (int i = 1; i < list.length; i++) {
@@ -414,22 +1248,156 @@ public class Generator<T> {
         return min;
     }
 
-    public static int getMinBitCount(int size) {
+    public static long getMinBitCount(long size) {
         // at least 1.375 bits per key (if it is less, fill with zeroes)
         return (size  * 11 + 7) >> 3;
     }
 
+    /**
+     * Keys in iteration order, together with their universal hash (index 0).
+     * The keys are sorted into buckets in place, using a counting sort, so
+     * that all buckets share one flat key array and one flat hash array.
+     */
+    class FlatKeys {
+        private final int bucketCount;
+        private final int bucketOffset;
+        private final int chunkSize;
+        private T[] keys;
+        private long[] hashes;
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        FlatKeys(int capacity, int bucketCount, int bucketOffset, int chunkSize) {
+            this.bucketCount = bucketCount;
+            this.bucketOffset = bucketOffset;
+            this.chunkSize = chunkSize;
+            keys = (T[]) new Object[capacity];
+            hashes = new long[capacity];
+        }
+
+        void add(T key, long h) {
+            if (size == keys.length) {
+                int len = (int) Math.min(MAX_ARRAY_SIZE, Math.max(16, size + (size >> 1)));
+                if (len == size) {
+                    throw new IllegalArgumentException("Too many keys for one chunk");
+                }
+                keys = Arrays.copyOf(keys, len);
+                hashes = Arrays.copyOf(hashes, len);
+            }
+            keys[size] = key;
+            hashes[size++] = h;
+        }
+
+        private int getBucket(long h) {
+            if (bucketCount == 1) {
+                return 0;
+            }
+            return Settings.reduce((int) h, bucketCount) - bucketOffset;
+        }
+
+        ArrayList<Bucket> sortIntoBuckets() {
+            int[] pos = new int[chunkSize];
+            int[] stop = new int[chunkSize];
+            for (int i = 0; i < size; i++) {
+                pos[getBucket(hashes[i])]++;
+            }
+            int sum = 0;
+            for (int i = 0; i < chunkSize; i++) {
+                int count = pos[i];
+                pos[i] = sum;
+                sum += count;
+                stop[i] = sum;
+            }
+            ArrayList<Bucket> buckets = new ArrayList<Bucket>(chunkSize);
+            for (int i = 0; i < chunkSize; i++) {
+                KeyArray<T> k = new ObjectKeyArray<T>(hash, keys, pos[i], stop[i] - pos[i]);
+                buckets.add(new Bucket(k, hashes, pos[i]));
+            }
+            // permute in place, one cycle at a time
+            for (int bucket = 0; bucket < chunkSize; bucket++) {
+                while (pos[bucket] < stop[bucket]) {
+                    int i = pos[bucket];
+                    T key = keys[i];
+                    long h = hashes[i];
+                    int target = getBucket(h);
+                    while (target != bucket) {
+                        int j = pos[target]++;
+                        T k2 = keys[j];
+                        long h2 = hashes[j];
+                        keys[j] = key;
+                        hashes[j] = h;
+                        key = k2;
+                        h = h2;
+                        target = getBucket(h);
+                    }
+                    keys[i] = key;
+                    hashes[i] = h;
+                    pos[bucket]++;
+                }
+            }
+            keys = null;
+            hashes = null;
+            return buckets;
+        }
+
+    }
+
+    /**
+     * Buffers that are reused across buckets, so that generating a bucket
+     * only allocates the resulting bit buffer. There is one instance per
+     * thread.
+     */
+    static class Scratch {
+        private int[] counts = new int[0];
+        private long[] hashes = new long[0];
+        private BitBuffer buffer = new BitBuffer(0);
+        private long bufferSize;
+
+        int[] getCounts(int size) {
+            if (counts.length < size) {
+                counts = new int[size];
+            }
+            return counts;
+        }
+
+        long[] getHashes(int size) {
+            if (hashes.length < size) {
+                hashes = new long[Math.max(size, hashes.length * 2)];
+            }
+            return hashes;
+        }
+
+        BitBuffer getBuffer(long bits) {
+            if (bufferSize < bits) {
+                bufferSize = Math.max(bits, bufferSize * 2);
+                buffer = new BitBuffer(bufferSize);
+            }
+            buffer.clear();
+            buffer.seek(0);
+            return buffer;
+        }
+
+    }
+
     /**
      * A bucket.
      */
     class Bucket {
-        ArrayList<T> list;
+        KeyArray<T> keys;
+        long[] hashes;
+        int hashOffset;
         BitBuffer buff;
         int entryCount;
         boolean alternative;
 
-        Bucket(int averageBucketSize) {
-            list = new ArrayList<T>(averageBucketSize * 11 / 10);
+        Bucket(KeyArray<T> keys) {
+            this.keys = keys;
+        }
+
+        Bucket(KeyArray<T> keys, long[] hashes, int hashOffset) {
+            this.keys = keys;
+            this.hashes = hashes;
+            this.hashOffset = hashOffset;
         }
 
         @Override
@@ -439,27 +1407,26 @@ public class Generator<T> {
 
         public void moveToAlternative(ArrayList<T> alternativeList) {
             if (alternative) {
-                alternativeList.addAll(list);
-                list = null;
+                for (int i = 0; i < keys.size(); i++) {
+                    alternativeList.add(keys.get(i));
+                }
+                keys = null;
                 entryCount = 0;
                 buff = new BitBuffer(0);
             }
         }
 
-        void add(T obj) {
-            list.add(obj);
-        }
-
         void generateBucket(UniversalHash<T> hash, int maxBucketSize, int maxBits) {
-            int size = list.size();
+            int size = keys.size();
             entryCount = size;
-            int minSize = getMinBitCount(size);
+            int minSize = (int) getMinBitCount(size);
             if (size <= 1) {
                 // zero or one entry
                 buff = new BitBuffer(minSize);
                 while (buff.position() < minSize) {
                     buff.writeBit(1);
                 }
+                keys = null;
                 return;
             }
             if (size > maxBucketSize) {
@@ -467,29 +1434,33 @@ public class Generator<T> {
                 buff = new BitBuffer(0);
                 return;
             }
-            @SuppressWarnings("unchecked")
-            T[] data = list.toArray((T[]) new Object[0]);
-            list = null;
-            long[] hashes = new long[size];
+            Scratch scratch = SCRATCH.get();
+            long[] hashes = scratch.getHashes(size);
             long startIndex = 0;
-            for (int i = 0; i < size; i++) {
-                hashes[i] = hash.universalHash(data[i],
-                        Settings.getUniversalHashIndex(startIndex));
+            if (this.hashes != null) {
+                // the universal hash with index 0 was already calculated
+                System.arraycopy(this.hashes, hashOffset, hashes, 0, size);
+                this.hashes = null;
+            } else {
+                keys.universalHash(0, size,
+                        Settings.getUniversalHashIndex(startIndex), hashes);
             }
             // this is very conservative; less memory could be allocated
             int bufferSize = 8 * size;
             if (settings.getLeafSize() < 6) {
                 bufferSize *= 4;
             }
-            buff = new BitBuffer(bufferSize);
-            generate(data, hashes, startIndex, buff);
-            if (buff.position() < minSize) {
-                while (buff.position() < minSize) {
-                    buff.writeBit(1);
-                }
+            BitBuffer temp = scratch.getBuffer(bufferSize);
+            generate(keys, hashes, 0, size, startIndex, temp, scratch);
+            while (temp.position() < minSize) {
+                temp.writeBit(1);
             }
+            buff = new BitBuffer(temp.position());
+            buff.write(temp);
             if (buff.position() > maxBits) {
                 alternative = true;
+            } else {
+                keys = null;
             }
         }
 
@@ -0,0 +1,306 @@
+package org.minperf.generator;
+
+import java.util.Arrays;
+
+import org.minperf.Settings;
+import org.minperf.universal.LongHash;
+
+/**
+ * The inner loops of generation: the universal hash of many long keys, and the
+ * search for the index of a leaf or of a split. This is the portable (Java 8)
+ * implementation.
+ * <p>
+ * The jar is a multi-release jar: for Java 17 and newer, it also contains an
+ * implementation that uses the incubating Vector API, and tests multiple
+ * indexes per instruction. It is used if the module is available, that is, if
+ * the JVM is started with "--add-modules jdk.incubator.vector", and can be
+ * disabled using the system property "minperf.vector=false". Both
+ * implementations return the same results.
+ */
+public class HashKernel {
+
+    /**
+     * The number of indexes that are tested in one pass when searching a
+     * split.
+     */
+    static final int SPLIT_LANES = 4;
+
+    /**
+     * The number of keys after which the split search checks whether all
+     * indexes of the current pass failed.
+     */
+    static final int SPLIT_CHECK_INTERVAL = 16;
+
+    private static final String VECTOR_KERNEL = "org.minperf.generator.VectorHashKernel";
+
+    private static final HashKernel PORTABLE = new HashKernel();
+
+    private static final HashKernel INSTANCE = createInstance();
+
+    protected HashKernel() {
+        // only the vector implementation extends this class
+    }
+
+    /**
+     * Get the fastest implementation that is available.
+     *
+     * @return the implementation
+     */
+    public static HashKernel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the portable implementation.
+     *
+     * @return the implementation
+     */
+    public static HashKernel getPortableInstance() {
+        return PORTABLE;
+    }
+
+    private static HashKernel createInstance() {
+        if (!Boolean.parseBoolean(System.getProperty("minperf.vector", "true"))) {
+            return PORTABLE;
+        }
+        try {
+            Class<?> c = Class.forName(VECTOR_KERNEL);
+            return (HashKernel) c.getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            // older JVM, or the module jdk.incubator.vector is not available,
+            // or no suitable hardware support
+            return PORTABLE;
+        }
+    }
+
+    /**
+     * Calculate the universal hash (LongHash) of a range of long keys.
+     *
+     * @param keys the keys
+     * @param offset the index of the first key
+     * @param len the number of keys
+     * @param index the universal hash index
+     * @param target the target array
+     * @param targetOffset the index of the first hash in the target array
+     */
+    public void universalHash(long[] keys, int offset, int len, long index,
+            long[] target, int targetOffset) {
+        for (int i = 0; i < len; i++) {
+            target[targetOffset + i] = LongHash.universalHash(keys[offset + i], index);
+        }
+    }
+
+    /**
+     * Find the first index (in the given range) that maps the keys of a leaf
+     * to distinct positions.
+     *
+     * @param hashes the hashes
+     * @param from the first index of the range of keys
+     * @param size the number of keys (at most 32)
+     * @param index the first index to test
+     * @param end the index after the last index to test
+     * @return the index, or -1 if none was found
+     */
+    public long findLeaf(long[] hashes, int from, int size, long index, long end) {
+        for (; index < end; index++) {
+            if (tryUnique(hashes, from, size, index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    static boolean tryUnique(long[] hashes, int from, int size, long index) {
+        long bits = 0;
+        long found = (1L << size) - 1;
+        for (int i = from; i < from + size; i++) {
+            long x = hashes[i];
+            int h = Settings.supplementalHash(x, index);
+            h = Settings.reduce(h, size);
+            bits |= 1L << h;
+        }
+        return bits == found;
+    }
+
+    /**
+     * Find the first index (in the given range) that splits the keys into two
+     * parts of the given sizes. Multiple indexes are tested in one pass over
+     * the hashes, and the pass is stopped as soon as all of them failed.
+     *
+     * @param hashes the hashes
+     * @param from the first index of the range of keys
+     * @param size the number of keys
+     * @param firstPart the size of the first part
+     * @param index the first index to test
+     * @param end the index after the last index to test
+     * @return the index, or -1 if none was found
+     */
+    public long findSplit(long[] hashes, int from, int size, int firstPart,
+            long index, long end) {
+        int otherPart = size - firstPart;
+        int to = from + size;
+        // reduce(x, size) < firstPart exactly if the unsigned x is below
+        // this limit
+        long limit = (((long) firstPart << 32) + size - 1) / size;
+        for (; index < end; index += SPLIT_LANES) {
+            // lanes after the end are also tested, but not used
+            long i1 = index + 1, i2 = index + 2, i3 = index + 3;
+            // the number of keys in the first part, for each lane
+            int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            int i = from;
+            while (i < to) {
+                int stop = Math.min(to, i + SPLIT_CHECK_INTERVAL);
+                for (; i < stop; i++) {
+                    long h = hashes[i];
+                    c0 += (Settings.supplementalHash(h, index) & 0xffffffffL) < limit ? 1 : 0;
+                    c1 += (Settings.supplementalHash(h, i1) & 0xffffffffL) < limit ? 1 : 0;
+                    c2 += (Settings.supplementalHash(h, i2) & 0xffffffffL) < limit ? 1 : 0;
+                    c3 += (Settings.supplementalHash(h, i3) & 0xffffffffL) < limit ? 1 : 0;
+                }
+                int count = i - from;
+                // a lane failed if one of the parts is too large
+                int otherMin = count - otherPart;
+                if ((c0 > firstPart || c0 < otherMin) &&
+                        (c1 > firstPart || c1 < otherMin) &&
+                        (c2 > firstPart || c2 < otherMin) &&
+                        (c3 > firstPart || c3 < otherMin)) {
+                    break;
+                }
+            }
+            if (i < to) {
+                continue;
+            }
+            if (c0 == firstPart) {
+                return index;
+            } else if (c1 == firstPart && i1 < end) {
+                return i1;
+            } else if (c2 == firstPart && i2 < end) {
+                return i2;
+            } else if (c3 == firstPart && i3 < end) {
+                return i3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first index (in the given range) that evenly splits the keys
+     * into the given number of parts. If possible, the counters of all parts
+     * are packed into one long, with a guard bit per counter that is set if
+     * the part is too large. Multiple indexes are tested in one pass over the
+     * hashes, and the pass is stopped as soon as all of them failed.
+     *
+     * @param hashes the hashes
+     * @param from the first index of the range of keys
+     * @param size the number of keys
+     * @param split the number of parts
+     * @param partSize the size of each part
+     * @param index the first index to test
+     * @param end the index after the last index to test
+     * @param count a scratch array (with at least split entries)
+     * @return the index, or -1 if none was found
+     */
+    public long findSplitEvenly(long[] hashes, int from, int size, int split,
+            int partSize, long index, long end, int[] count) {
+        if (split == 2) {
+            // reduce(x, 2) == 0 exactly if reduce(x, size) < size / 2
+            return findSplit(hashes, from, size, partSize, index, end);
+        }
+        int width = 64 / split;
+        if (partSize >= (1 << (width - 1))) {
+            // does not fit
+            for (; index < end; index++) {
+                if (trySplitEvenly(hashes, from, size, split, partSize, index, count)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+        // each counter starts at a value such that the guard bit (the
+        // highest bit of the counter) is set if the part is too large
+        long start = getPackedStart(split, partSize);
+        long guard = getPackedGuard(split);
+        int to = from + size;
+        for (; index < end; index += SPLIT_LANES) {
+            long i1 = index + 1, i2 = index + 2, i3 = index + 3;
+            long p0 = start, p1 = start, p2 = start, p3 = start;
+            // a counter can overflow into the next one after the guard bit
+            // was set, so the guard bits are combined for each key
+            long f0 = 0, f1 = 0, f2 = 0, f3 = 0;
+            int i = from;
+            while (i < to) {
+                int stop = Math.min(to, i + SPLIT_CHECK_INTERVAL);
+                for (; i < stop; i++) {
+                    long h = hashes[i];
+                    p0 += 1L << (width * Settings.reduce(Settings.supplementalHash(h, index), split));
+                    p1 += 1L << (width * Settings.reduce(Settings.supplementalHash(h, i1), split));
+                    p2 += 1L << (width * Settings.reduce(Settings.supplementalHash(h, i2), split));
+                    p3 += 1L << (width * Settings.reduce(Settings.supplementalHash(h, i3), split));
+                    f0 |= p0;
+                    f1 |= p1;
+                    f2 |= p2;
+                    f3 |= p3;
+                }
+                if ((f0 & guard) != 0 && (f1 & guard) != 0 &&
+                        (f2 & guard) != 0 && (f3 & guard) != 0) {
+                    break;
+                }
+            }
+            if (i < to) {
+                continue;
+            }
+            // the total is fixed, so if no part is too large, all parts
+            // have the same size
+            if ((f0 & guard) == 0) {
+                return index;
+            } else if ((f1 & guard) == 0 && i1 < end) {
+                return i1;
+            } else if ((f2 & guard) == 0 && i2 < end) {
+                return i2;
+            } else if ((f3 & guard) == 0 && i3 < end) {
+                return i3;
+            }
+        }
+        return -1;
+    }
+
+    static long getPackedStart(int split, int partSize) {
+        int width = 64 / split;
+        long start = 0;
+        for (int i = 0; i < split; i++) {
+            start |= ((1L << (width - 1)) - 1 - partSize) << (i * width);
+        }
+        return start;
+    }
+
+    static long getPackedGuard(int split) {
+        int width = 64 / split;
+        long guard = 0;
+        for (int i = 0; i < split; i++) {
+            guard |= 1L << (i * width + width - 1);
+        }
+        return guard;
+    }
+
+    static boolean trySplitEvenly(long[] hashes, int from, int size,
+            int split, int partSize, long index, int[] count) {
+        Arrays.fill(count, 0, split, partSize);
+        for (int i = from; i < from + size; i++) {
+            long h = hashes[i];
+            int x = Settings.supplementalHash(h, index);
+            x = Settings.reduce(x, split);
+            // the total is fixed, so it is enough to check that
+            // no part is too large
+            if (--count[x] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "portable";
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.minperf.generator;
+
+/**
+ * An array of keys, together with the universal hash function for them. This
+ * allows to store keys of a primitive type (for example long), so that no
+ * boxing is needed.
+ *
+ * @param <T> the key type
+ */
+public abstract class KeyArray<T> {
+
+    /**
+     * Get the number of keys.
+     *
+     * @return the number of keys
+     */
+    public abstract int size();
+
+    /**
+     * Calculate the universal hash of a key.
+     *
+     * @param i the index within the array
+     * @param index the hash function index
+     * @return the hash value
+     */
+    public abstract long universalHash(int i, long index);
+
+    /**
+     * Calculate the universal hash of a range of keys.
+     *
+     * @param from the index of the first key
+     * @param to the index after the last key
+     * @param index the hash function index
+     * @param hashes the target array (at the same positions as the keys)
+     */
+    public void universalHash(int from, int to, long index, long[] hashes) {
+        for (int i = from; i < to; i++) {
+            hashes[i] = universalHash(i, index);
+        }
+    }
+
+    /**
+     * Get the key at the given position. For primitive keys, this will box the
+     * value, so it should only be used if really needed.
+     *
+     * @param i the index within the array
+     * @return the key
+     */
+    public abstract T get(int i);
+
+    /**
+     * Swap two keys.
+     *
+     * @param i the index of the first key
+     * @param j the index of the second key
+     */
+    public abstract void swap(int i, int j);
+
+    /**
+     * Create a new array of the same type, with keys that are copied from
+     * arrays of the same type. This does not box primitive keys.
+     *
+     * @param arrays the source arrays
+     * @param array the index of the source array, for each key
+     * @param index the index within the source array, for each key
+     * @param count the number of keys
+     * @return the new array
+     */
+    public abstract KeyArray<T> gather(KeyArray<T>[] arrays, int[] array, int[] index, int count);
+
+}
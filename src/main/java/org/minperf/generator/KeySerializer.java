@@ -0,0 +1,114 @@
+package org.minperf.generator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.minperf.universal.LongHash;
+import org.minperf.universal.Signature;
+import org.minperf.universal.SignatureHash;
+import org.minperf.universal.StringHash;
+import org.minperf.universal.UniversalHash;
+
+/**
+ * Writes keys to, and reads keys from, a temporary file. This is used to
+ * partition large sets into chunks, so that each key is only hashed once.
+ *
+ * @param <T> the key type
+ */
+public abstract class KeySerializer<T> {
+
+    /**
+     * Write a key.
+     *
+     * @param out the output
+     * @param key the key
+     */
+    public abstract void write(DataOutput out, T key) throws IOException;
+
+    /**
+     * Read a key.
+     *
+     * @param in the input
+     * @return the key
+     */
+    public abstract T read(DataInput in) throws IOException;
+
+    /**
+     * Get the serializer for keys of the given universal hash function, if
+     * the key type is known.
+     *
+     * @param <T> the key type
+     * @param hash the universal hash function
+     * @return the serializer, or null if the key type is not known
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> KeySerializer<T> getDefault(UniversalHash<T> hash) {
+        if (hash instanceof LongHash) {
+            return (KeySerializer<T>) new LongSerializer();
+        } else if (hash instanceof StringHash) {
+            return (KeySerializer<T>) new StringSerializer();
+        } else if (hash instanceof SignatureHash) {
+            return (KeySerializer<T>) new SignatureSerializer();
+        }
+        return null;
+    }
+
+    /**
+     * A serializer for long keys.
+     */
+    public static class LongSerializer extends KeySerializer<Long> {
+
+        @Override
+        public void write(DataOutput out, Long key) throws IOException {
+            out.writeLong(key);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+
+    }
+
+    /**
+     * A serializer for string keys.
+     */
+    public static class StringSerializer extends KeySerializer<String> {
+
+        @Override
+        public void write(DataOutput out, String key) throws IOException {
+            byte[] b = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    /**
+     * A serializer for signatures.
+     */
+    public static class SignatureSerializer extends KeySerializer<Signature> {
+
+        @Override
+        public void write(DataOutput out, Signature key) throws IOException {
+            out.writeLong(key.getHigh());
+            out.writeLong(key.getLow());
+        }
+
+        @Override
+        public Signature read(DataInput in) throws IOException {
+            return new Signature(in.readLong(), in.readLong());
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.minperf.generator;
+
+import org.minperf.universal.LongHash;
+
+/**
+ * A range of a long array. The hash function is LongHash.
+ */
+public class LongKeyArray extends KeyArray<Long> {
+
+    private final long[] data;
+    private final int offset;
+    private final int size;
+
+    public LongKeyArray(long[] data, int offset, int size) {
+        this.data = data;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long universalHash(int i, long index) {
+        return LongHash.universalHash(data[offset + i], index);
+    }
+
+    @Override
+    public void universalHash(int from, int to, long index, long[] hashes) {
+        HashKernel.getInstance().universalHash(data, offset + from, to - from,
+                index, hashes, from);
+    }
+
+    @Override
+    public Long get(int i) {
+        return data[offset + i];
+    }
+
+    @Override
+    public void swap(int i, int j) {
+        long x = data[offset + i];
+        data[offset + i] = data[offset + j];
+        data[offset + j] = x;
+    }
+
+    @Override
+    public KeyArray<Long> gather(KeyArray<Long>[] arrays, int[] array, int[] index, int count) {
+        long[] x = new long[count];
+        for (int i = 0; i < count; i++) {
+            LongKeyArray a = (LongKeyArray) arrays[array[i]];
+            x[i] = a.data[a.offset + index[i]];
+        }
+        return new LongKeyArray(x, 0, count);
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.minperf.generator;
+
+import org.minperf.universal.UniversalHash;
+
+/**
+ * A range of an array of objects.
+ *
+ * @param <T> the key type
+ */
+public class ObjectKeyArray<T> extends KeyArray<T> {
+
+    private final UniversalHash<T> hash;
+    private final T[] data;
+    private final int offset;
+    private final int size;
+
+    public ObjectKeyArray(UniversalHash<T> hash, T[] data) {
+        this(hash, data, 0, data.length);
+    }
+
+    public ObjectKeyArray(UniversalHash<T> hash, T[] data, int offset, int size) {
+        this.hash = hash;
+        this.data = data;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long universalHash(int i, long index) {
+        return hash.universalHash(data[offset + i], index);
+    }
+
+    @Override
+    public T get(int i) {
+        return data[offset + i];
+    }
+
+    @Override
+    public void swap(int i, int j) {
+        T x = data[offset + i];
+        data[offset + i] = data[offset + j];
+        data[offset + j] = x;
+    }
+
+    @Override
+    public KeyArray<T> gather(KeyArray<T>[] arrays, int[] array, int[] index, int count) {
+        @SuppressWarnings("unchecked")
+        T[] x = (T[]) new Object[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = arrays[array[i]].get(index[i]);
+        }
+        return new ObjectKeyArray<T>(hash, x);
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.minperf.generator;
+
+import org.minperf.universal.Signature;
+import org.minperf.universal.SignatureHash;
+
+/**
+ * A range of an array of 128 bit signatures, where each signature is stored
+ * as two consecutive longs. The hash function is SignatureHash.
+ */
+public class SignatureKeyArray extends KeyArray<Signature> {
+
+    private final long[] data;
+    private final int offset;
+    private final int size;
+
+    public SignatureKeyArray(long[] data, int offset, int size) {
+        this.data = data;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long universalHash(int i, long index) {
+        int p = 2 * (offset + i);
+        return SignatureHash.universalHash(data[p], data[p + 1], index);
+    }
+
+    @Override
+    public Signature get(int i) {
+        int p = 2 * (offset + i);
+        return new Signature(data[p], data[p + 1]);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+        int p = 2 * (offset + i);
+        int q = 2 * (offset + j);
+        long high = data[p], low = data[p + 1];
+        data[p] = data[q];
+        data[p + 1] = data[q + 1];
+        data[q] = high;
+        data[q + 1] = low;
+    }
+
+    @Override
+    public KeyArray<Signature> gather(KeyArray<Signature>[] arrays, int[] array, int[] index, int count) {
+        long[] x = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            SignatureKeyArray a = (SignatureKeyArray) arrays[array[i]];
+            int p = 2 * (a.offset + index[i]);
+            x[2 * i] = a.data[p];
+            x[2 * i + 1] = a.data[p + 1];
+        }
+        return new SignatureKeyArray(x, 0, count);
+    }
+
+}
@@ -277,7 +277,7 @@ public class Murmur3 {
                 ((data[pos] & 0xffL));
     }
 
-    private static long fmix64(long k) {
+    public static long fmix64(long k) {
         k ^= k >>> 33;
         k *= 0xff51afd7ed558ccdL;
         k ^= k >>> 33;
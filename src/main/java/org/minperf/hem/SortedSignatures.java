@@ -106,7 +106,7 @@ public class SortedSignatures {
                 public long nextLong() {
                     long x = buffer.readGolombRice(shift);
                     last += x;
-                    int pos = buffer.position();
+                    int pos = (int) buffer.position();
                     if (pos > BUFFER_SIZE) {
                         System.arraycopy(bytes, BUFFER_SIZE / 8, bytes, 0, OVERLAP / 8);
                         int readBytes = (int) Math.min(BUFFER_SIZE / 8, size - position());
@@ -162,7 +162,7 @@ public class SortedSignatures {
         }
 
         void writeBlock(BitBuffer buff) {
-            int pos = buff.position();
+            int pos = (int) buff.position();
             write(ByteBuffer.wrap(buff.toByteArray(), 0, BUFFER_SIZE / 8));
             BitBuffer buff2 = new BitBuffer(OVERLAP);
             buff.seek(BUFFER_SIZE);
@@ -244,7 +244,7 @@ public class SortedSignatures {
         }
 
         void writeBitBuffer(BitBuffer buff, boolean always) {
-            int remaining = 8 * BUFFER_SIZE - buff.position();
+            int remaining = 8 * BUFFER_SIZE - (int) buff.position();
             if (always) {
                 remaining = 0;
             }
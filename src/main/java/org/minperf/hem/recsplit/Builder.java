@@ -2,6 +2,7 @@ package org.minperf.hem.recsplit;
 
 import org.minperf.BitBuffer;
 import org.minperf.hash.Mix;
+import org.minperf.monotoneList.MonotoneList;
 
 public class Builder {
 
@@ -11,6 +12,7 @@ public class Builder {
 
     private int averageBucketSize = 16;
     private int leafSize = 5;
+    private int monotoneListType = MonotoneList.MULTI_STAGE;
 
     public Builder leafSize(int leafSize) {
         this.leafSize = leafSize;
@@ -22,16 +24,29 @@ public class Builder {
         return this;
     }
 
+    /**
+     * Set the type of the monotone lists (see MonotoneList). The default is
+     * MULTI_STAGE. The same setting needs to be used for generation and
+     * evaluation.
+     *
+     * @param monotoneListType the type
+     * @return this
+     */
+    public Builder monotoneListType(int monotoneListType) {
+        this.monotoneListType = monotoneListType;
+        return this;
+    }
+
     public BitBuffer generate(long[] keys) {
-        return new FastGenerator(leafSize, averageBucketSize).generate(keys);
+        return new FastGenerator(leafSize, averageBucketSize, monotoneListType).generate(keys);
     }
 
     public BitBuffer generate(long[] keys, int len) {
-        return new FastGenerator(leafSize, averageBucketSize).generate(keys, len);
+        return new FastGenerator(leafSize, averageBucketSize, monotoneListType).generate(keys, len);
     }
 
     public FastEvaluator evaluator(BitBuffer buff) {
-        return new FastEvaluator(buff, averageBucketSize, leafSize, 0);
+        return new FastEvaluator(buff, averageBucketSize, leafSize, 0, monotoneListType);
     }
 
     public static int supplementalHash(long x, int index) {
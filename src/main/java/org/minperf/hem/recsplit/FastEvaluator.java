@@ -1,7 +1,7 @@
 package org.minperf.hem.recsplit;
 
 import org.minperf.BitBuffer;
-import org.minperf.monotoneList.MultiStageMonotoneList;
+import org.minperf.monotoneList.MonotoneList;
 
 public class FastEvaluator {
 
@@ -10,19 +10,20 @@ public class FastEvaluator {
     private final int leafSize;
     private final int bucketCount;
     private final int bucketShift;
-    private final MultiStageMonotoneList startList;
-    private final MultiStageMonotoneList offsetList;
-    private final int startBuckets;
+    private final MonotoneList startList;
+    private final MonotoneList offsetList;
+    private final long startBuckets;
 
-    FastEvaluator(BitBuffer buffer, int averageBucketSize, int leafSize, int shift) {
+    FastEvaluator(BitBuffer buffer, int averageBucketSize, int leafSize, int shift,
+            int monotoneListType) {
         this.buffer = buffer;
         this.size = (int) (buffer.readEliasDelta() - 1);
         this.bucketCount = Builder.getBucketCount(size, averageBucketSize);
         this.leafSize = leafSize;
         int bucketBitCount = 31 - Integer.numberOfLeadingZeros(bucketCount);
         this.bucketShift = 64 - bucketBitCount - shift;
-        this.startList = MultiStageMonotoneList.load(buffer);
-        this.offsetList = MultiStageMonotoneList.load(buffer);
+        this.startList = MonotoneList.load(buffer, monotoneListType);
+        this.offsetList = MonotoneList.load(buffer, monotoneListType);
         this.startBuckets = buffer.position();
     }
 
@@ -33,7 +34,7 @@ public class FastEvaluator {
         } else {
             b = (int) (hashCode >>> bucketShift);
         }
-        int startPos;
+        long startPos;
         long offsetPair = offsetList.getPair(b);
         int offset = (int) (offsetPair >>> 32);
         int offsetNext = (int) offsetPair;
@@ -46,7 +47,7 @@ public class FastEvaluator {
         return evaluate(startPos, hashCode, 0, offset, bucketSize);
     }
 
-    private int skip(int pos, int size) {
+    private long skip(long pos, int size) {
         if (size < 2) {
             return pos;
         }
@@ -60,7 +61,7 @@ public class FastEvaluator {
         return pos;
     }
 
-    private int evaluate(int pos, long hashCode,
+    private int evaluate(long pos, long hashCode,
             int index, int add, int size) {
         while (true) {
             if (size < 2) {
@@ -3,19 +3,22 @@ package org.minperf.hem.recsplit;
 import java.util.Arrays;
 
 import org.minperf.BitBuffer;
-import org.minperf.monotoneList.MultiStageMonotoneList;
+import org.minperf.monotoneList.MonotoneList;
 
 public class FastGenerator {
 
     private static final int MAX_BUCKET_SIZE = 64;
+    private static final FastLeafKernel KERNEL = FastLeafKernel.getInstance();
     private final int leafSize;
     private final int averageBucketSize;
+    private final int monotoneListType;
     private BitBuffer buff;
     private BitBuffer bucketBuff;
 
-    FastGenerator(int leafSize, int averageBucketSize) {
+    FastGenerator(int leafSize, int averageBucketSize, int monotoneListType) {
         this.leafSize = leafSize;
         this.averageBucketSize = averageBucketSize;
+        this.monotoneListType = monotoneListType;
     }
 
     BitBuffer generate(long[] keys) {
@@ -44,10 +47,15 @@ public class FastGenerator {
             generateBucket(keys, startBucket, endBucket, startList, i);
             startBucket = endBucket;
         }
-        BitBuffer buff2 = new BitBuffer(len * 10);
+        long[] starts = MonotoneList.toLongArray(startList);
+        long[] offsets = MonotoneList.toLongArray(offsetList);
+        // each aligned list may need up to one block of padding
+        BitBuffer buff2 = new BitBuffer(64 + buff.position() +
+                MonotoneList.getSize(starts, monotoneListType) +
+                MonotoneList.getSize(offsets, monotoneListType) + 2 * 512);
         buff2.writeEliasDelta(len + 1);
-        MultiStageMonotoneList.generate(startList, buff2);
-        MultiStageMonotoneList.generate(offsetList, buff2);
+        MonotoneList.generate(starts, buff2, monotoneListType);
+        MonotoneList.generate(offsets, buff2, monotoneListType);
         buff2.write(buff);
         buff = buff2;
         return buff;
@@ -115,7 +123,7 @@ public class FastGenerator {
 
     private void generateBucket(long[] keys, int start, int end, int[] startList, int bucketId) {
         if (end == start) {
-            startList[bucketId] = buff.position();
+            startList[bucketId] = (int) buff.position();
             return;
         }
         bucketBuff.clear();
@@ -134,11 +142,11 @@ public class FastGenerator {
                 }
             }
         }
-        startList[bucketId] = buff.position();
+        startList[bucketId] = (int) buff.position();
         while (bucketId > 0) {
             bucketId--;
             if (startList[bucketId] > buff.position()) {
-                startList[bucketId] = buff.position();
+                startList[bucketId] = (int) buff.position();
             } else {
                 break;
             }
@@ -154,19 +162,11 @@ public class FastGenerator {
             case 1:
                 return;
             case 2:
-                generateBucket2(keys, start, index);
-                return;
             case 3:
-                generateBucket3(keys, start, index);
-                return;
             case 4:
-                generateBucket4(keys, start, index);
-                return;
             case 5:
-                generateBucket5(keys, start, index);
-                return;
             case 6:
-                generateBucket6(keys, start, index);
+                emit(len, KERNEL.findFastLeaf(keys, start, len, index) - index);
                 return;
             }
         }
@@ -237,74 +237,4 @@ public class FastGenerator {
         bucketBuff.writeGolombRice(shift, indexDiff);
     }
 
-    private void generateBucket2(long[] keys, int start, int index) {
-        int oldIndex = index;
-        for (;; index++) {
-            int a = Builder.supplementalHash(keys[start], index) & 1;
-            int b = Builder.supplementalHash(keys[start + 1], index) & 1;
-            if (a != b) {
-                break;
-            }
-        }
-        emit(2, index - oldIndex);
-    }
-
-    private void generateBucket3(long[] keys, int start, int index) {
-        int oldIndex = index;
-        for (;; index++) {
-            int a = Builder.reduce(Builder.supplementalHash(keys[start], index), 3);
-            int b = Builder.reduce(Builder.supplementalHash(keys[start + 1], index), 3);
-            int c = Builder.reduce(Builder.supplementalHash(keys[start + 2], index), 3);
-            if (a != b && a != c && b != c) {
-                break;
-            }
-        }
-        emit(3, index - oldIndex);
-    }
-
-    private void generateBucket4(long[] keys, int start, int index) {
-        int oldIndex = index;
-        for (;; index++) {
-            int a = Builder.supplementalHash(keys[start], index) & 3;
-            int b = Builder.supplementalHash(keys[start + 1], index) & 3;
-            int c = Builder.supplementalHash(keys[start + 2], index) & 3;
-            int d = Builder.supplementalHash(keys[start + 3], index) & 3;
-            if (((1 << a) | (1 << b) | (1 << c) | (1 << d)) == 0xf) {
-                break;
-            }
-        }
-        emit(4, index - oldIndex);
-    }
-
-    private void generateBucket5(long[] keys, int start, int index) {
-        int oldIndex = index;
-        for (;; index++) {
-            int a = Builder.reduce(Builder.supplementalHash(keys[start], index), 5);
-            int b = Builder.reduce(Builder.supplementalHash(keys[start + 1], index), 5);
-            int c = Builder.reduce(Builder.supplementalHash(keys[start + 2], index), 5);
-            int d = Builder.reduce(Builder.supplementalHash(keys[start + 3], index), 5);
-            int e = Builder.reduce(Builder.supplementalHash(keys[start + 4], index), 5);
-            if (((1 << a) | (1 << b) | (1 << c) | (1 << d) | (1 << e)) == 0x1f) {
-                break;
-            }
-        }
-        emit(5, index - oldIndex);
-    }
-
-    private void generateBucket6(long[] keys, int start, int index) {
-        int oldIndex = index;
-        for (;; index++) {
-            int a = Builder.reduce(Builder.supplementalHash(keys[start], index), 6);
-            int b = Builder.reduce(Builder.supplementalHash(keys[start + 1], index), 6);
-            int c = Builder.reduce(Builder.supplementalHash(keys[start + 2], index), 6);
-            int d = Builder.reduce(Builder.supplementalHash(keys[start + 3], index), 6);
-            int e = Builder.reduce(Builder.supplementalHash(keys[start + 4], index), 6);
-            int f = Builder.reduce(Builder.supplementalHash(keys[start + 5], index), 6);
-            if (((1 << a) | (1 << b) | (1 << c) | (1 << d) | (1 << e) | (1 << f)) == 0x3f) {
-                break;
-            }
-        }
-        emit(6, index - oldIndex);
-    }
-
 }
@@ -0,0 +1,154 @@
+package org.minperf.hem.recsplit;
+
+import org.minperf.Settings;
+import org.minperf.hash.Mix;
+
+/**
+ * The leaf search of the FastGenerator, which uses the hash function of the
+ * hem package (Mix.supplementalHashWeyl). This is the portable (Java 8)
+ * implementation.
+ * <p>
+ * Like HashKernel, the multi-release jar also contains an implementation that
+ * uses the incubating Vector API (Java 17 and newer), which is used if the
+ * module jdk.incubator.vector is available, unless the system property
+ * "minperf.vector" is set to false. Both implementations return the same
+ * results.
+ */
+class FastLeafKernel {
+
+    private static final String VECTOR_KERNEL = "org.minperf.hem.recsplit.VectorFastLeafKernel";
+
+    private static final FastLeafKernel PORTABLE = new FastLeafKernel();
+
+    private static final FastLeafKernel INSTANCE = createInstance();
+
+    FastLeafKernel() {
+        // only the vector implementation extends this class
+    }
+
+    /**
+     * Get the fastest implementation that is available.
+     *
+     * @return the implementation
+     */
+    static FastLeafKernel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the portable implementation.
+     *
+     * @return the implementation
+     */
+    static FastLeafKernel getPortableInstance() {
+        return PORTABLE;
+    }
+
+    private static FastLeafKernel createInstance() {
+        if (!Boolean.parseBoolean(System.getProperty("minperf.vector", "true"))) {
+            return PORTABLE;
+        }
+        try {
+            Class<?> c = Class.forName(VECTOR_KERNEL);
+            return (FastLeafKernel) c.getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            // older JVM, or the module jdk.incubator.vector is not available,
+            // or no suitable hardware support
+            return PORTABLE;
+        }
+    }
+
+    /**
+     * Find the first index that maps the keys of a leaf to distinct positions.
+     * Sizes that are a power of two use a mask instead of the reduce
+     * operation.
+     *
+     * @param keys the keys
+     * @param start the index of the first key
+     * @param size the number of keys (2 to 6)
+     * @param index the first index to test
+     * @return the index
+     */
+    int findFastLeaf(long[] keys, int start, int size, int index) {
+        switch (size) {
+        case 2:
+            return findFastLeaf2(keys, start, index);
+        case 3:
+            return findFastLeaf3(keys, start, index);
+        case 4:
+            return findFastLeaf4(keys, start, index);
+        case 5:
+            return findFastLeaf5(keys, start, index);
+        case 6:
+            return findFastLeaf6(keys, start, index);
+        default:
+            throw new IllegalArgumentException("size " + size);
+        }
+    }
+
+    private static int findFastLeaf2(long[] keys, int start, int index) {
+        for (;; index++) {
+            int a = Mix.supplementalHashWeyl(keys[start], index) & 1;
+            int b = Mix.supplementalHashWeyl(keys[start + 1], index) & 1;
+            if (a != b) {
+                return index;
+            }
+        }
+    }
+
+    private static int findFastLeaf3(long[] keys, int start, int index) {
+        for (;; index++) {
+            int a = Settings.reduce(Mix.supplementalHashWeyl(keys[start], index), 3);
+            int b = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 1], index), 3);
+            int c = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 2], index), 3);
+            if (a != b && a != c && b != c) {
+                return index;
+            }
+        }
+    }
+
+    private static int findFastLeaf4(long[] keys, int start, int index) {
+        for (;; index++) {
+            int a = Mix.supplementalHashWeyl(keys[start], index) & 3;
+            int b = Mix.supplementalHashWeyl(keys[start + 1], index) & 3;
+            int c = Mix.supplementalHashWeyl(keys[start + 2], index) & 3;
+            int d = Mix.supplementalHashWeyl(keys[start + 3], index) & 3;
+            if (((1 << a) | (1 << b) | (1 << c) | (1 << d)) == 0xf) {
+                return index;
+            }
+        }
+    }
+
+    private static int findFastLeaf5(long[] keys, int start, int index) {
+        for (;; index++) {
+            int a = Settings.reduce(Mix.supplementalHashWeyl(keys[start], index), 5);
+            int b = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 1], index), 5);
+            int c = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 2], index), 5);
+            int d = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 3], index), 5);
+            int e = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 4], index), 5);
+            if (((1 << a) | (1 << b) | (1 << c) | (1 << d) | (1 << e)) == 0x1f) {
+                return index;
+            }
+        }
+    }
+
+    private static int findFastLeaf6(long[] keys, int start, int index) {
+        for (;; index++) {
+            int a = Settings.reduce(Mix.supplementalHashWeyl(keys[start], index), 6);
+            int b = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 1], index), 6);
+            int c = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 2], index), 6);
+            int d = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 3], index), 6);
+            int e = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 4], index), 6);
+            int f = Settings.reduce(Mix.supplementalHashWeyl(keys[start + 5], index), 6);
+            if (((1 << a) | (1 << b) | (1 << c) | (1 << d) | (1 << e) | (1 << f)) == 0x3f) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "portable";
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.minperf.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.minperf.BitBuffer;
+import org.minperf.RecSplitBuilder;
+import org.minperf.RecSplitEvaluator;
+import org.minperf.storage.GrowableStorage;
+import org.minperf.universal.LongHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the evaluation time of single key lookups with batch lookups, for
+ * descriptions stored in a long array (heap), a growable array, or a direct
+ * byte buffer. Before measuring, evaluators for all storage types are used,
+ * so that the storage access is not optimized for just one type.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JmhBenchEvaluate {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({ "1000000", "10000000" })
+    int size;
+
+    @Param({ "heap", "growable", "direct" })
+    String storage;
+
+    private RecSplitEvaluator<Long> evaluator;
+    private Long[] keys;
+    private long[] result;
+    private int next;
+
+    public static void main(String... args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JmhBenchEvaluate.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        HashSet<Long> set = new HashSet<Long>(size);
+        while (set.size() < size) {
+            set.add(r.nextLong());
+        }
+        LongHash hash = new LongHash();
+        BitBuffer buff = RecSplitBuilder.newInstance(hash).
+                leafSize(8).averageBucketSize(100).generate(set);
+        byte[] bytes = buff.toByteArray();
+        BitBuffer heap = new BitBuffer(bytes);
+        BitBuffer growable = new BitBuffer(new GrowableStorage());
+        heap.seek(bytes.length * 8L);
+        growable.write(heap);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        keys = set.toArray(new Long[0]);
+        for (String s : new String[] { "heap", "growable", "direct" }) {
+            BitBuffer b = s.equals("heap") ? heap :
+                    s.equals("growable") ? growable : new BitBuffer(direct);
+            b.seek(0);
+            RecSplitEvaluator<Long> e = RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(100).buildEvaluator(b);
+            for (int i = 0; i < 100000; i++) {
+                e.evaluate(keys[i % keys.length]);
+            }
+            if (s.equals(storage)) {
+                evaluator = e;
+            }
+        }
+        // random order, so that lookups are not cache friendly
+        for (int i = keys.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            Long t = keys[i];
+            keys[i] = keys[j];
+            keys[j] = t;
+        }
+        result = new long[LOOKUPS];
+    }
+
+    private Long[] nextKeys() {
+        if (next + LOOKUPS > keys.length) {
+            next = 0;
+        }
+        Long[] batch = new Long[LOOKUPS];
+        System.arraycopy(keys, next, batch, 0, LOOKUPS);
+        next += LOOKUPS;
+        return batch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long evaluate() {
+        Long[] batch = nextKeys();
+        long sum = 0;
+        for (Long x : batch) {
+            sum += evaluator.evaluate(x);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public long evaluateBatch() {
+        Long[] batch = nextKeys();
+        evaluator.evaluateBatch(batch, result);
+        long sum = 0;
+        for (long x : result) {
+            sum += x;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.minperf.jmh;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.minperf.BitBuffer;
+import org.minperf.RecSplitBuilder;
+import org.minperf.universal.LongHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the generation time and the allocation rate (with the GC
+ * profiler, "gc.alloc.rate.norm" is the number of bytes allocated per
+ * generated hash function).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JmhBenchGenerate {
+
+    @Param({ "100000" })
+    int size;
+
+    @Param({ "8", "12" })
+    int leafSize;
+
+    @Param({ "100", "1000" })
+    int averageBucketSize;
+
+    private HashSet<Long> set;
+
+    public static void main(String... args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JmhBenchGenerate.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        set = new HashSet<Long>(size);
+        while (set.size() < size) {
+            set.add(r.nextLong());
+        }
+    }
+
+    @Benchmark
+    public long generate() {
+        BitBuffer buff = RecSplitBuilder.newInstance(new LongHash()).
+                leafSize(leafSize).averageBucketSize(averageBucketSize).
+                parallelism(1).generate(set);
+        return buff.position();
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.minperf.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.minperf.BitBuffer;
+import org.minperf.Settings;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.generator.Generator;
+import org.minperf.generator.LongKeyArray;
+import org.minperf.universal.LongHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the time to generate the description of one bucket (the split
+ * search and the leaves), for different bucket sizes and leaf sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JmhBenchSplit {
+
+    private static final int BUCKETS = 64;
+
+    @Param({ "256", "1000", "2000" })
+    int bucketSize;
+
+    @Param({ "8", "12" })
+    int leafSize;
+
+    private Generator<Long> generator;
+    private long[][] buckets;
+    private long[] keys;
+    private long[] hashes;
+    private BitBuffer buff;
+    private int next;
+
+    public static void main(String... args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JmhBenchSplit.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() {
+        Settings settings = new Settings(leafSize, bucketSize);
+        generator = new Generator<Long>(new ConcurrencyTool(1), new LongHash(),
+                settings, true, Integer.MAX_VALUE);
+        Random r = new Random(1);
+        buckets = new long[BUCKETS][bucketSize];
+        for (long[] b : buckets) {
+            for (int i = 0; i < bucketSize; i++) {
+                b[i] = r.nextLong();
+            }
+        }
+        keys = new long[bucketSize];
+        hashes = new long[bucketSize];
+        buff = new BitBuffer(100L * bucketSize);
+    }
+
+    @Benchmark
+    public long generateBucket() {
+        long[] b = buckets[next++ % BUCKETS];
+        // the keys and hashes are reordered by the generator
+        System.arraycopy(b, 0, keys, 0, bucketSize);
+        for (int i = 0; i < bucketSize; i++) {
+            hashes[i] = LongHash.universalHash(keys[i], 0);
+        }
+        buff.clear();
+        buff.seek(0);
+        generator.generate(new LongKeyArray(keys, 0, bucketSize), hashes, 0, buff);
+        return buff.position();
+    }
+
+}
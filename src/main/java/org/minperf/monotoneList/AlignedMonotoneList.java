@@ -0,0 +1,262 @@
+package org.minperf.monotoneList;
+
+import org.minperf.BitBuffer;
+
+/**
+ * A variant of the MultiStageMonotoneList where the offsets are stored in
+ * blocks of 512 bits (the size of a typical cache line). Like in the
+ * MultiStageMonotoneList, the expected value is calculated using a linear
+ * regression. Each block contains the base offset of the block, followed by
+ * the fixed width offsets of its entries (relative to the base). The number
+ * of entries per block is the largest that fits.
+ * <p>
+ * The blocks are aligned to 512 bits relative to the given origin (the start
+ * of the description, as for the BucketDirectory), so that if the
+ * description is aligned, a lookup reads one cache line. Decoding does not
+ * need branches.
+ */
+public class AlignedMonotoneList extends MonotoneList {
+
+    /**
+     * The number of bits of a block (a power of two).
+     */
+    public static final int BLOCK_BITS = 512;
+
+    private static final int BLOCK_SHIFT = 9;
+
+    private final BitBuffer buffer;
+    private final int count;
+    private final long quotient;
+    private final long factor;
+    private final long add;
+    private final int entriesPerBlock;
+    private final int baseBits;
+    private final int bitCount;
+    private final long startPos;
+
+    private AlignedMonotoneList(BitBuffer buffer, long origin) {
+        this.buffer = buffer;
+        this.count = (int) buffer.readEliasDelta() - 1;
+        long diff = buffer.readEliasDelta() - 1;
+        this.quotient = MultiStageMonotoneList.getQuotient(diff, count);
+        this.factor = MultiStageMonotoneList.getScaleFactor(diff, count);
+        this.add = BitBuffer.unfoldSigned(buffer.readEliasDelta() - 1);
+        this.entriesPerBlock = (int) buffer.readEliasDelta();
+        this.baseBits = (int) buffer.readEliasDelta() - 1;
+        this.bitCount = (int) buffer.readEliasDelta() - 1;
+        this.startPos = align(origin, buffer.position());
+        buffer.seek(getEnd(startPos, count, entriesPerBlock));
+    }
+
+    public static AlignedMonotoneList generate(int[] data, BitBuffer buffer) {
+        return generate(toLongArray(data), buffer);
+    }
+
+    /**
+     * Generate a list, with the blocks aligned relative to the start of the
+     * buffer.
+     *
+     * @param data the data
+     * @param buffer the target buffer
+     * @return the list
+     */
+    public static AlignedMonotoneList generate(long[] data, BitBuffer buffer) {
+        return generate(data, buffer, 0L);
+    }
+
+    /**
+     * Generate a list.
+     *
+     * @param data the data
+     * @param buffer the target buffer
+     * @param origin the position of the start of the description, relative to
+     *            the buffer (may be negative if the description starts with
+     *            data that is not in the buffer); the blocks are aligned
+     *            relative to this position
+     * @return the list
+     */
+    public static AlignedMonotoneList generate(long[] data, BitBuffer buffer, long origin) {
+        long start = buffer.position();
+        Layout layout = new Layout(data);
+        int count = data.length;
+        int entriesPerBlock = layout.entriesPerBlock;
+        long[] offsets = layout.offsets;
+        buffer.writeEliasDelta(count + 1);
+        buffer.writeEliasDelta(layout.diff + 1);
+        buffer.writeEliasDelta(BitBuffer.foldSigned(layout.add) + 1);
+        buffer.writeEliasDelta(entriesPerBlock);
+        buffer.writeEliasDelta(layout.baseBits + 1);
+        buffer.writeEliasDelta(layout.bitCount + 1);
+        long startPos = align(origin, buffer.position());
+        for (int from = 0; from < count; from += entriesPerBlock) {
+            int to = Math.min(count, from + entriesPerBlock);
+            long base = getMin(offsets, from, to);
+            buffer.seek(startPos + ((long) (from / entriesPerBlock) << BLOCK_SHIFT));
+            buffer.writeNumber(base, layout.baseBits);
+            for (int i = from; i < to; i++) {
+                buffer.writeNumber(offsets[i] - base, layout.bitCount);
+            }
+        }
+        buffer.seek(start);
+        return new AlignedMonotoneList(buffer, origin);
+    }
+
+    /**
+     * The parameters of a list: the linear regression, the offsets relative
+     * to the expected values, and the size of the entries.
+     */
+    private static class Layout {
+
+        final long diff;
+        final long add;
+        final long[] offsets;
+        final int baseBits;
+        final int bitCount;
+        final int entriesPerBlock;
+
+        Layout(long[] data) {
+            int count = data.length;
+            // verify it is monotone
+            for (int i = 1; i < count; i++) {
+                if (data[i - 1] > data[i]) {
+                    throw new IllegalArgumentException();
+                }
+            }
+            diff = data[count - 1] - data[0];
+            long quotient = MultiStageMonotoneList.getQuotient(diff, count);
+            long factor = MultiStageMonotoneList.getScaleFactor(diff, count);
+            long a = data[0];
+            for (int i = 1; i < count; i++) {
+                a = Math.min(a, data[i] - MultiStageMonotoneList.getExpected(i, quotient, factor));
+            }
+            add = a;
+            offsets = new long[count];
+            long max = 0;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = data[i] - MultiStageMonotoneList.getExpected(i, quotient, factor) - add;
+                max = Math.max(max, offsets[i]);
+            }
+            baseBits = getBitCount(max);
+            // the smallest entry size where the offsets fit results in the
+            // largest number of entries per block
+            int bits = 1;
+            int entries;
+            while (true) {
+                entries = (BLOCK_BITS - baseBits) / bits;
+                if (getBitCount(getMaxLocal(offsets, entries)) <= bits) {
+                    break;
+                }
+                bits++;
+            }
+            bitCount = bits;
+            entriesPerBlock = entries;
+        }
+
+        long getHeaderBits() {
+            return BitBuffer.getEliasDeltaSize(offsets.length + 1) +
+                    BitBuffer.getEliasDeltaSize(diff + 1) +
+                    BitBuffer.getEliasDeltaSize(BitBuffer.foldSigned(add) + 1) +
+                    BitBuffer.getEliasDeltaSize(entriesPerBlock) +
+                    BitBuffer.getEliasDeltaSize(baseBits + 1) +
+                    BitBuffer.getEliasDeltaSize(bitCount + 1);
+        }
+
+    }
+
+    /**
+     * Get the largest difference between an offset and the smallest offset
+     * of its block.
+     */
+    private static long getMaxLocal(long[] offsets, int entriesPerBlock) {
+        long result = 0;
+        for (int from = 0; from < offsets.length; from += entriesPerBlock) {
+            int to = Math.min(offsets.length, from + entriesPerBlock);
+            long min = getMin(offsets, from, to);
+            for (int i = from; i < to; i++) {
+                result = Math.max(result, offsets[i] - min);
+            }
+        }
+        return result;
+    }
+
+    private static long getMin(long[] offsets, int from, int to) {
+        long min = Long.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, offsets[i]);
+        }
+        return min;
+    }
+
+    private static int getBitCount(long x) {
+        return 64 - Long.numberOfLeadingZeros(x);
+    }
+
+    private static long align(long origin, long pos) {
+        return origin + ((pos - origin + BLOCK_BITS - 1) & ~(BLOCK_BITS - 1L));
+    }
+
+    /**
+     * Get the end of the list. There are 64 bits of padding after the last
+     * block, because each read also reads the next word.
+     */
+    private static long getEnd(long startPos, int count, int entriesPerBlock) {
+        int blockCount = (count + entriesPerBlock - 1) / entriesPerBlock;
+        return startPos + ((long) blockCount << BLOCK_SHIFT) + 64;
+    }
+
+    public static int getSize(int[] data) {
+        return (int) getSize(toLongArray(data));
+    }
+
+    /**
+     * Get the number of bits needed, if the list starts at an aligned
+     * position.
+     *
+     * @param data the data
+     * @return the number of bits
+     */
+    public static long getSize(long[] data) {
+        Layout layout = new Layout(data);
+        long startPos = align(0, layout.getHeaderBits());
+        return getEnd(startPos, data.length, layout.entriesPerBlock);
+    }
+
+    /**
+     * Load a list, where the blocks are aligned relative to the start of the
+     * buffer.
+     *
+     * @param buffer the buffer
+     * @return the list
+     */
+    public static AlignedMonotoneList load(BitBuffer buffer) {
+        return load(buffer, 0L);
+    }
+
+    /**
+     * Load a list.
+     *
+     * @param buffer the buffer
+     * @param origin the position of the start of the description (the same
+     *            as used for generation)
+     * @return the list
+     */
+    public static AlignedMonotoneList load(BitBuffer buffer, long origin) {
+        return new AlignedMonotoneList(buffer, origin);
+    }
+
+    @Override
+    public long get(int i) {
+        int block = i / entriesPerBlock;
+        long pos = startPos + ((long) block << BLOCK_SHIFT);
+        long base = buffer.readNumberBranchless(pos, baseBits);
+        long offset = buffer.readNumberBranchless(
+                pos + baseBits + (long) (i - block * entriesPerBlock) * bitCount, bitCount);
+        return MultiStageMonotoneList.getExpected(i, quotient, factor) + add + base + offset;
+    }
+
+    @Override
+    public long getPair(int i) {
+        return (get(i) << 32) | get(i + 1);
+    }
+
+}
@@ -0,0 +1,248 @@
+package org.minperf.monotoneList;
+
+import org.minperf.BitBuffer;
+
+/**
+ * Two monotone lists of the same length (the bucket offsets and the bucket
+ * start positions) that are stored together, so that both values of a bucket
+ * are read from the same block. The data is stored in blocks of 512 bits (the
+ * size of a typical cache line): the two base values of the first entry of
+ * the block, followed by the pairs of local values (relative to the base) of
+ * the next entries. The last pair of a block is also the base of the next
+ * block, so that getPair never reads two blocks.
+ * <p>
+ * The blocks are aligned to 512 bits relative to the start of the
+ * description. This needs more space than two Elias-Fano lists, but a lookup
+ * reads one cache line instead of four to six.
+ */
+public class BucketDirectory {
+
+    /**
+     * The number of bits of a block (a power of two).
+     */
+    public static final int BLOCK_BITS = 512;
+
+    private final BitBuffer buffer;
+    private final int count;
+    private final int entriesPerBlock;
+    private final int baseBits0, baseBits1;
+    private final int localBits0, localBits1;
+    private final long startPos;
+
+    private BucketDirectory(BitBuffer buffer, long origin) {
+        this.buffer = buffer;
+        this.count = (int) buffer.readEliasDelta() - 1;
+        this.entriesPerBlock = (int) buffer.readEliasDelta();
+        this.baseBits0 = (int) buffer.readEliasDelta() - 1;
+        this.baseBits1 = (int) buffer.readEliasDelta() - 1;
+        this.localBits0 = (int) buffer.readEliasDelta() - 1;
+        this.localBits1 = (int) buffer.readEliasDelta() - 1;
+        this.startPos = align(origin, buffer.position());
+        buffer.seek(startPos + (long) getBlockCount(count, entriesPerBlock) * BLOCK_BITS);
+    }
+
+    /**
+     * Write the directory. Both lists need to be monotone, and have the same
+     * length.
+     *
+     * @param list0 the first list (the offsets)
+     * @param list1 the second list (the start positions)
+     * @param buffer the target buffer
+     * @param origin the position of the start of the description, relative to
+     *            the buffer (may be negative if the description starts with
+     *            data that is not in the buffer)
+     */
+    public static void generate(long[] list0, long[] list1, BitBuffer buffer, long origin) {
+        int count = list0.length;
+        if (list1.length != count || count == 0) {
+            throw new IllegalArgumentException();
+        }
+        int baseBits0 = getBitCount(list0[count - 1]);
+        int baseBits1 = getBitCount(list1[count - 1]);
+        int entriesPerBlock = 0;
+        int localBits0 = 0, localBits1 = 0;
+        // use the largest number of entries per block that fits (one entry
+        // always fits); with count - 1 entries, there is only one block
+        for (int k = 1; k == 1 || k < count; k++) {
+            int l0 = getBitCount(getMaxLocal(list0, k));
+            int l1 = getBitCount(getMaxLocal(list1, k));
+            if (k > 1 && baseBits0 + baseBits1 + k * (l0 + l1) > BLOCK_BITS) {
+                break;
+            }
+            entriesPerBlock = k;
+            localBits0 = l0;
+            localBits1 = l1;
+        }
+        buffer.writeEliasDelta(count + 1);
+        buffer.writeEliasDelta(entriesPerBlock);
+        buffer.writeEliasDelta(baseBits0 + 1);
+        buffer.writeEliasDelta(baseBits1 + 1);
+        buffer.writeEliasDelta(localBits0 + 1);
+        buffer.writeEliasDelta(localBits1 + 1);
+        long start = align(origin, buffer.position());
+        buffer.seek(start);
+        int blockCount = getBlockCount(count, entriesPerBlock);
+        for (int block = 0; block < blockCount; block++) {
+            int from = block * entriesPerBlock;
+            long base0 = list0[from];
+            long base1 = list1[from];
+            buffer.writeNumber(base0, baseBits0);
+            buffer.writeNumber(base1, baseBits1);
+            for (int j = 1; j <= entriesPerBlock; j++) {
+                int i = from + j;
+                if (i < count) {
+                    buffer.writeNumber(list0[i] - base0, localBits0);
+                    buffer.writeNumber(list1[i] - base1, localBits1);
+                }
+            }
+            buffer.seek(start + (long) (block + 1) * BLOCK_BITS);
+        }
+    }
+
+    /**
+     * Get the largest difference between an entry and the base of its block,
+     * where the last entry of a block is the base of the next block.
+     */
+    private static long getMaxLocal(long[] list, int entriesPerBlock) {
+        long max = 0;
+        for (int from = 0; from < list.length; from += entriesPerBlock) {
+            int last = Math.min(from + entriesPerBlock, list.length - 1);
+            max = Math.max(max, list[last] - list[from]);
+        }
+        return max;
+    }
+
+    private static int getBitCount(long x) {
+        return 64 - Long.numberOfLeadingZeros(x);
+    }
+
+    private static int getBlockCount(int count, int entriesPerBlock) {
+        return (count - 1) / entriesPerBlock + 1;
+    }
+
+    private static long align(long origin, long pos) {
+        return origin + ((pos - origin + BLOCK_BITS - 1) & ~(BLOCK_BITS - 1L));
+    }
+
+    /**
+     * Load a directory.
+     *
+     * @param buffer the buffer, positioned at the start of the directory
+     * @param origin the position of the start of the description
+     * @return the directory
+     */
+    public static BucketDirectory load(BitBuffer buffer, long origin) {
+        return new BucketDirectory(buffer, origin);
+    }
+
+    /**
+     * Get the value at the given index of the first list.
+     *
+     * @param i the index
+     * @return the value
+     */
+    public long get0(int i) {
+        int block = i / entriesPerBlock;
+        int j = i - block * entriesPerBlock;
+        long pos = startPos + (long) block * BLOCK_BITS;
+        long x = buffer.readNumber(pos, baseBits0);
+        if (j > 0) {
+            x += buffer.readNumber(getLocalPos(pos, j), localBits0);
+        }
+        return x;
+    }
+
+    /**
+     * Get the value at the given index of the second list.
+     *
+     * @param i the index
+     * @return the value
+     */
+    public long get1(int i) {
+        int block = i / entriesPerBlock;
+        int j = i - block * entriesPerBlock;
+        long pos = startPos + (long) block * BLOCK_BITS;
+        long x = buffer.readNumber(pos + baseBits0, baseBits1);
+        if (j > 0) {
+            x += buffer.readNumber(getLocalPos(pos, j) + localBits0, localBits1);
+        }
+        return x;
+    }
+
+    /**
+     * Get the values at index i and i + 1 of the first list, in the format of
+     * MonotoneList.getPair. Both values are in the same block.
+     *
+     * @param i the index
+     * @return the pair of values
+     */
+    public long getPair0(int i) {
+        int block = i / entriesPerBlock;
+        int j = i - block * entriesPerBlock;
+        long pos = startPos + (long) block * BLOCK_BITS;
+        long base = buffer.readNumber(pos, baseBits0);
+        long a = base;
+        if (j > 0) {
+            a += buffer.readNumber(getLocalPos(pos, j), localBits0);
+        }
+        long b = base + buffer.readNumber(getLocalPos(pos, j + 1), localBits0);
+        return (a << 32) | b;
+    }
+
+    private long getLocalPos(long blockPos, int j) {
+        return blockPos + baseBits0 + baseBits1 + (long) (j - 1) * (localBits0 + localBits1);
+    }
+
+    /**
+     * Get the first list (the offsets) as a monotone list.
+     *
+     * @return the list
+     */
+    public MonotoneList getList0() {
+        return new MonotoneList() {
+
+            @Override
+            public long get(int i) {
+                return get0(i);
+            }
+
+            @Override
+            public long getPair(int i) {
+                return getPair0(i);
+            }
+
+        };
+    }
+
+    /**
+     * Get the second list (the start positions) as a monotone list.
+     *
+     * @return the list
+     */
+    public MonotoneList getList1() {
+        return new MonotoneList() {
+
+            @Override
+            public long get(int i) {
+                return get1(i);
+            }
+
+            @Override
+            public long getPair(int i) {
+                return (get1(i) << 32) | get1(i + 1);
+            }
+
+        };
+    }
+
+    public int getEntriesPerBlock() {
+        return entriesPerBlock;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " count " + count +
+                " entriesPerBlock " + entriesPerBlock;
+    }
+
+}
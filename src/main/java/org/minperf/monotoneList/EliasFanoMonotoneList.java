@@ -13,11 +13,11 @@ import org.minperf.select.Select;
 public class EliasFanoMonotoneList extends MonotoneList {
 
     private final BitBuffer buffer;
-    private final int start;
+    private final long start;
     private final int lowBitCount;
     private final Select select;
 
-    private EliasFanoMonotoneList(BitBuffer buffer, int start, int lowBitCount, Select select) {
+    private EliasFanoMonotoneList(BitBuffer buffer, long start, int lowBitCount, Select select) {
         this.buffer = buffer;
         this.start = start;
         this.lowBitCount = lowBitCount;
@@ -25,6 +25,10 @@ public class EliasFanoMonotoneList extends MonotoneList {
     }
 
     public static EliasFanoMonotoneList generate(int[] data, BitBuffer buffer) {
+        return generate(toLongArray(data), buffer);
+    }
+
+    public static EliasFanoMonotoneList generate(long[] data, BitBuffer buffer) {
         int len = data.length;
         // verify it is monotone
         for (int i = 1; i < len; i++) {
@@ -33,16 +37,16 @@ public class EliasFanoMonotoneList extends MonotoneList {
             }
         }
         buffer.writeEliasDelta(len + 1);
-        int max = data[len - 1];
-        int lowBitCount = 32 - Integer.numberOfLeadingZeros(Integer.highestOneBit(max / len));
+        long max = data[len - 1];
+        int lowBitCount = getLowBitCount(max, len);
         buffer.writeEliasDelta(lowBitCount + 1);
-        int start = buffer.position();
+        long start = buffer.position();
         BitSet set = new BitSet();
         for (int i = 0; i < len; i++) {
-            int x = i + (data[i] >>> lowBitCount);
-            set.set(x);
+            long x = i + (data[i] >>> lowBitCount);
+            set.set((int) x);
         }
-        int mask = (1 << lowBitCount) - 1;
+        long mask = (1L << lowBitCount) - 1;
         for (int i = 0; i < len; i++) {
             buffer.writeNumber(data[i] & mask, lowBitCount);
         }
@@ -51,40 +55,48 @@ public class EliasFanoMonotoneList extends MonotoneList {
     }
 
     public static int getSize(int[] data) {
+        return (int) getSize(toLongArray(data));
+    }
+
+    public static long getSize(long[] data) {
         int len = data.length;
-        int result = BitBuffer.getEliasDeltaSize(len + 1);
-        int max = data[len - 1];
-        int lowBitCount = 32 - Integer.numberOfLeadingZeros(Integer.highestOneBit(max / len));
+        long result = BitBuffer.getEliasDeltaSize(len + 1);
+        long max = data[len - 1];
+        int lowBitCount = getLowBitCount(max, len);
         result += BitBuffer.getEliasDeltaSize(lowBitCount + 1);
         BitSet set = new BitSet();
         for (int i = 0; i < len; i++) {
-            int x = i + (data[i] >>> lowBitCount);
-            set.set(x);
+            long x = i + (data[i] >>> lowBitCount);
+            set.set((int) x);
         }
-        result += lowBitCount * len;
+        result += (long) lowBitCount * len;
         result += Select.getSize(set);
         return result;
     }
 
+    static int getLowBitCount(long max, int len) {
+        return 64 - Long.numberOfLeadingZeros(Long.highestOneBit(max / len));
+    }
+
     public static EliasFanoMonotoneList load(BitBuffer buffer) {
         int len = (int) (buffer.readEliasDelta() - 1);
         int lowBitCount = (int) (buffer.readEliasDelta() - 1);
-        int start = buffer.position();
-        buffer.seek(start + len * lowBitCount);
+        long start = buffer.position();
+        buffer.seek(start + (long) len * lowBitCount);
         Select select = Select.load(buffer);
         return new EliasFanoMonotoneList(buffer, start, lowBitCount, select);
     }
 
     @Override
-    public int get(int i) {
-        int low = (int) buffer.readNumber(start + i * lowBitCount, lowBitCount);
-        int high = (int) select.select(i) - i;
+    public long get(int i) {
+        long low = buffer.readNumber(start + (long) i * lowBitCount, lowBitCount);
+        long high = select.select(i) - i;
         return (high << lowBitCount) + low;
     }
 
     @Override
     public long getPair(int i) {
-        long lowPair = buffer.readNumber(start + i * lowBitCount, lowBitCount + lowBitCount);
+        long lowPair = buffer.readNumber(start + (long) i * lowBitCount, lowBitCount + lowBitCount);
         int low1 = (int) (lowPair >>> lowBitCount);
         int low2 = (int) (lowPair - ((long) low1 << lowBitCount));
         long highPair = select.selectPair(i);
@@ -95,4 +107,37 @@ public class EliasFanoMonotoneList extends MonotoneList {
         return ((long) result1 << 32) | result2;
     }
 
+    @Override
+    public void getRange(int from, int to, long[] out) {
+        if (from >= to) {
+            return;
+        }
+        // the upper bits are scanned sequentially, so only the first entry
+        // needs a select
+        Select.Cursor high = select.cursor(from);
+        long pos = start + (long) from * lowBitCount;
+        for (int i = from; i < to; i++, pos += lowBitCount) {
+            long low = buffer.readNumber(pos, lowBitCount);
+            out[i - from] = ((high.next() - i) << lowBitCount) + low;
+        }
+    }
+
+    @Override
+    public Cursor cursor(final int i) {
+        final Select.Cursor high = select.cursor(i);
+        return new Cursor() {
+
+            private int next = i;
+            private long pos = start + (long) i * lowBitCount;
+
+            @Override
+            public long next() {
+                long low = buffer.readNumber(pos, lowBitCount);
+                pos += lowBitCount;
+                return ((high.next() - next++) << lowBitCount) + low;
+            }
+
+        };
+    }
+
 }
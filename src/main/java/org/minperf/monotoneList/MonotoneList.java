@@ -7,14 +7,137 @@ import org.minperf.BitBuffer;
  */
 public abstract class MonotoneList {
 
-    public abstract int get(int i);
+    /**
+     * The MultiStageMonotoneList.
+     */
+    public static final int MULTI_STAGE = 0;
+
+    /**
+     * The EliasFanoMonotoneList.
+     */
+    public static final int ELIAS_FANO = 1;
+
+    /**
+     * The PartitionedEliasFanoMonotoneList.
+     */
+    public static final int PARTITIONED_ELIAS_FANO = 2;
+
+    /**
+     * The AlignedMonotoneList.
+     */
+    public static final int ALIGNED = 3;
 
+    public abstract long get(int i);
+
+    /**
+     * Get the values at index i and i + 1. The first value is stored in the
+     * upper 32 bits, and the second value in the lower 32 bits, so this can
+     * only be used if all values are smaller than 2^31.
+     *
+     * @param i the index
+     * @return the pair of values
+     */
     public abstract long getPair(int i);
 
+    /**
+     * Get the values from index from (inclusive) to to (exclusive), in one
+     * call. This is faster than calling get for each index, as the data is
+     * read sequentially.
+     *
+     * @param from the first index
+     * @param to the end index
+     * @param out the target array (the value at index from is stored at index
+     *            0)
+     */
+    public void getRange(int from, int to, long[] out) {
+        Cursor cursor = cursor(from);
+        for (int i = from; i < to; i++) {
+            out[i - from] = cursor.next();
+        }
+    }
+
+    /**
+     * Get a cursor that returns the value at index i, then the value at index
+     * i + 1, and so on.
+     *
+     * @param i the index of the first call to next
+     * @return the cursor
+     */
+    public Cursor cursor(final int i) {
+        return new Cursor() {
+
+            private int next = i;
+
+            @Override
+            public long next() {
+                return get(next++);
+            }
+
+        };
+    }
+
+    /**
+     * Iterates over the values of a list, in order. The list does not store
+     * its length, so the caller needs to stop at the end.
+     */
+    public abstract static class Cursor {
+
+        /**
+         * Get the next value.
+         *
+         * @return the value
+         */
+        public abstract long next();
+
+    }
+
     public static MonotoneList generate(int[] data, BitBuffer buffer, boolean eliasFano) {
-        return eliasFano ?
-                EliasFanoMonotoneList.generate(data, buffer) :
-                MultiStageMonotoneList.generate(data, buffer);
+        return generate(toLongArray(data), buffer, eliasFano);
+    }
+
+    public static MonotoneList generate(long[] data, BitBuffer buffer, boolean eliasFano) {
+        return generate(data, buffer, getType(eliasFano));
+    }
+
+    /**
+     * Generate a list of the given type. An aligned list is aligned relative to
+     * the start of the buffer.
+     *
+     * @param data the data
+     * @param buffer the target buffer
+     * @param type the type (MULTI_STAGE, ELIAS_FANO, PARTITIONED_ELIAS_FANO,
+     *            or ALIGNED)
+     * @return the list
+     */
+    public static MonotoneList generate(long[] data, BitBuffer buffer, int type) {
+        return generate(data, buffer, type, 0);
+    }
+
+    /**
+     * Generate a list of the given type.
+     *
+     * @param data the data
+     * @param buffer the target buffer
+     * @param type the type (MULTI_STAGE, ELIAS_FANO, PARTITIONED_ELIAS_FANO,
+     *            or ALIGNED)
+     * @param origin the position of the start of the description, relative to
+     *            the buffer, which is only used for the alignment of an
+     *            aligned list
+     * @return the list
+     */
+    public static MonotoneList generate(long[] data, BitBuffer buffer, int type, long origin) {
+        switch (type) {
+        case MULTI_STAGE:
+            return MultiStageMonotoneList.generate(data, buffer);
+        case ELIAS_FANO:
+            return EliasFanoMonotoneList.generate(data, buffer);
+        case PARTITIONED_ELIAS_FANO:
+            return PartitionedEliasFanoMonotoneList.generate(data, buffer);
+        case ALIGNED:
+            return AlignedMonotoneList.generate(data, buffer, origin);
+        default:
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
     }
 
     /**
@@ -25,15 +148,99 @@ public abstract class MonotoneList {
      * @return the number of bits
      */
     public static int getSize(int[] data, boolean eliasFano) {
-        return eliasFano ?
-                EliasFanoMonotoneList.getSize(data) :
-                MultiStageMonotoneList.getSize(data);
+        return (int) getSize(toLongArray(data), eliasFano);
+    }
+
+    /**
+     * Get the number of bits needed.
+     *
+     * @param data the data
+     * @param eliasFano whether the Elias-Fano datastructure should be used
+     * @return the number of bits
+     */
+    public static long getSize(long[] data, boolean eliasFano) {
+        return getSize(data, getType(eliasFano));
+    }
+
+    /**
+     * Get the number of bits needed (for an aligned list, if it starts at an
+     * aligned position).
+     *
+     * @param data the data
+     * @param type the type
+     * @return the number of bits
+     */
+    public static long getSize(long[] data, int type) {
+        switch (type) {
+        case MULTI_STAGE:
+            return MultiStageMonotoneList.getSize(data);
+        case ELIAS_FANO:
+            return EliasFanoMonotoneList.getSize(data);
+        case PARTITIONED_ELIAS_FANO:
+            return PartitionedEliasFanoMonotoneList.getSize(data);
+        case ALIGNED:
+            return AlignedMonotoneList.getSize(data);
+        default:
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
     }
 
     public static MonotoneList load(BitBuffer buffer, boolean eliasFano) {
-        return eliasFano ?
-                EliasFanoMonotoneList.load(buffer) :
-                MultiStageMonotoneList.load(buffer);
+        return load(buffer, getType(eliasFano));
+    }
+
+    /**
+     * Load a list of the given type. An aligned list is aligned relative to the
+     * start of the buffer.
+     *
+     * @param buffer the buffer
+     * @param type the type
+     * @return the list
+     */
+    public static MonotoneList load(BitBuffer buffer, int type) {
+        return load(buffer, type, 0);
+    }
+
+    /**
+     * Load a list of the given type.
+     *
+     * @param buffer the buffer
+     * @param type the type
+     * @param origin the position of the start of the description (the same
+     *            as used for generation)
+     * @return the list
+     */
+    public static MonotoneList load(BitBuffer buffer, int type, long origin) {
+        switch (type) {
+        case MULTI_STAGE:
+            return MultiStageMonotoneList.load(buffer);
+        case ELIAS_FANO:
+            return EliasFanoMonotoneList.load(buffer);
+        case PARTITIONED_ELIAS_FANO:
+            return PartitionedEliasFanoMonotoneList.load(buffer);
+        case ALIGNED:
+            return AlignedMonotoneList.load(buffer, origin);
+        default:
+            throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    private static int getType(boolean eliasFano) {
+        return eliasFano ? ELIAS_FANO : MULTI_STAGE;
+    }
+
+    /**
+     * Convert an int array to a long array.
+     *
+     * @param data the int array
+     * @return the long array
+     */
+    public static long[] toLongArray(int[] data) {
+        long[] result = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = data[i];
+        }
+        return result;
     }
 
 }
@@ -15,35 +15,55 @@ public class MultiStageMonotoneList extends MonotoneList {
     public static final int FACTOR2 = 16;
 
     private final BitBuffer buffer;
-    private final int startLevel1, startLevel2, startLevel3;
+    private final long startLevel1, startLevel2, startLevel3;
     private final int bitCount1, bitCount2, bitCount3;
     private final int count1, count2, count3;
+    private final long quotient;
     private final long factor;
-    private final int add;
+    private final long add;
 
     private MultiStageMonotoneList(BitBuffer buffer) {
         this.buffer = buffer;
         this.count3 = (int) buffer.readEliasDelta() - 1;
-        int diff = (int) buffer.readEliasDelta() - 1;
+        long diff = buffer.readEliasDelta() - 1;
+        this.quotient = getQuotient(diff, count3);
         this.factor = getScaleFactor(diff, count3);
-        this.add = (int) BitBuffer.unfoldSigned(buffer.readEliasDelta() - 1);
+        this.add = BitBuffer.unfoldSigned(buffer.readEliasDelta() - 1);
         this.bitCount1 = (int) buffer.readEliasDelta() - 1;
         this.bitCount2 = (int) buffer.readEliasDelta() - 1;
         this.bitCount3 = (int) buffer.readEliasDelta() - 1;
         startLevel1 = buffer.position();
         count2 = (count3 + (1 << SHIFT2) - 1) >> SHIFT2;
         count1 = (count3 + (1 << SHIFT1) - 1) >> SHIFT1;
-        startLevel2 = startLevel1 + count1 * bitCount1;
-        startLevel3 = startLevel2 + count2 * bitCount2;
-        buffer.seek(startLevel3 + bitCount3 * count3);
+        startLevel2 = startLevel1 + (long) count1 * bitCount1;
+        startLevel3 = startLevel2 + (long) count2 * bitCount2;
+        buffer.seek(startLevel3 + (long) bitCount3 * count3);
     }
 
-    private static long getScaleFactor(int multiply, int divide) {
-        return divide == 0 ? 0 : ((long) multiply << 32) / divide + 1;
+    /**
+     * The expected value at index i is i * quotient + ((i * factor) >>> 32).
+     * The scale factor is split into an integer and a fractional part, so
+     * that values larger than 2^31 can be used. For smaller values, the result
+     * is the same as ((i * ((diff << 32) / count + 1)) >>> 32).
+     */
+    static long getQuotient(long diff, int count) {
+        return count == 0 ? 0 : diff / count;
+    }
+
+    static long getScaleFactor(long diff, int count) {
+        return count == 0 ? 0 : ((diff % count) << 32) / count + 1;
+    }
+
+    static long getExpected(int i, long quotient, long factor) {
+        return i * quotient + ((i * factor) >>> 32);
     }
 
     public static MultiStageMonotoneList generate(int[] data, BitBuffer buffer) {
-         int start = buffer.position();
+        return generate(MonotoneList.toLongArray(data), buffer);
+    }
+
+    public static MultiStageMonotoneList generate(long[] data, BitBuffer buffer) {
+         long start = buffer.position();
          int count3 = data.length;
          // verify it is monotone
          for (int i = 1; i < count3; i++) {
@@ -51,12 +71,13 @@ public class MultiStageMonotoneList extends MonotoneList {
                  throw new IllegalArgumentException();
              }
          }
-         int diff = data[count3 - 1] - data[0];
+         long diff = data[count3 - 1] - data[0];
+         long quotient = getQuotient(diff, count3);
          long factor = getScaleFactor(diff, count3);
-         int add = data[0];
+         long add = data[0];
          for (int i = 1; i < count3; i++) {
-             int expected = (int) ((i * factor) >>> 32);
-             int x = data[i];
+             long expected = getExpected(i, quotient, factor);
+             long x = data[i];
              add = Math.min(add, x - expected);
          }
          buffer.writeEliasDelta(count3 + 1);
@@ -64,32 +85,32 @@ public class MultiStageMonotoneList extends MonotoneList {
          buffer.writeEliasDelta(BitBuffer.foldSigned(add) + 1);
          int count2 = (count3 + (1 << SHIFT2) - 1) >> SHIFT2;
          int count1 = (count3 + (1 << SHIFT1) - 1) >> SHIFT1;
-         int[] group1 = new int[count1];
-         int[] group2 = new int[count2];
-         int[] group3 = new int[count3];
+         long[] group1 = new long[count1];
+         long[] group2 = new long[count2];
+         long[] group3 = new long[count3];
          for (int i = 0; i < count3; i++) {
-             // int expected = (int) (i * max / count3);
-             int expected = (int) ((i * factor) >>> 32) + add;
-             int got = data[i];
-             int x = got - expected;
+             // long expected = i * max / count3;
+             long expected = getExpected(i, quotient, factor) + add;
+             long got = data[i];
+             long x = got - expected;
              if (x < 0) {
                  throw new AssertionError();
              }
              group3[i] = x;
          }
-         int a = Integer.MAX_VALUE;
+         long a = Long.MAX_VALUE;
          for (int i = 0; i < count3; i++) {
-             int x = group3[i];
+             long x = group3[i];
              a = Math.min(a, x);
              if ((i +1) >> SHIFT2 != i >> SHIFT2 || i == count3 - 1) {
                  group2[i >> SHIFT2] = a / FACTOR2;
-                 a = Integer.MAX_VALUE;
+                 a = Long.MAX_VALUE;
              }
          }
-         a = Integer.MAX_VALUE;
+         a = Long.MAX_VALUE;
          for (int i = 0; i < count3; i++) {
-             int d = group2[i >> SHIFT2] * FACTOR2;
-             int x = group3[i];
+             long d = group2[i >> SHIFT2] * FACTOR2;
+             long x = group3[i];
              group3[i] -= d;
              if (group3[i] < 0) {
                  throw new AssertionError();
@@ -97,7 +118,7 @@ public class MultiStageMonotoneList extends MonotoneList {
              a = Math.min(a, x);
              if ((i + 1) >> SHIFT1 != i >> SHIFT1 || i == count3 - 1) {
                  group1[i >> SHIFT1] = a / FACTOR1;
-                 a = Integer.MAX_VALUE;
+                 a = Long.MAX_VALUE;
              }
          }
          int last = -1;
@@ -106,11 +127,11 @@ public class MultiStageMonotoneList extends MonotoneList {
              if (i2 == last) {
                  continue;
              }
-             int d = group1[i >> SHIFT1] * FACTOR1;
+             long d = group1[i >> SHIFT1] * FACTOR1;
              group2[i2] -= d / FACTOR2;
              last = i2;
          }
-         int max1 = 0, max2 = 0, max3 = 0;
+         long max1 = 0, max2 = 0, max3 = 0;
          for (int i = 0; i < group3.length; i++) {
              max3 = Math.max(max3, group3[i]);
          }
@@ -120,19 +141,19 @@ public class MultiStageMonotoneList extends MonotoneList {
          for (int i = 0; i < group1.length; i++) {
              max1 = Math.max(max1, group1[i]);
          }
-         int bitCount1 = 32 - Integer.numberOfLeadingZeros(max1);
-         int bitCount2 = 32 - Integer.numberOfLeadingZeros(max2);
-         int bitCount3 = 32 - Integer.numberOfLeadingZeros(max3);
+         int bitCount1 = 64 - Long.numberOfLeadingZeros(max1);
+         int bitCount2 = 64 - Long.numberOfLeadingZeros(max2);
+         int bitCount3 = 64 - Long.numberOfLeadingZeros(max3);
          buffer.writeEliasDelta(bitCount1 + 1);
          buffer.writeEliasDelta(bitCount2 + 1);
          buffer.writeEliasDelta(bitCount3 + 1);
-         for (int x : group1) {
+         for (long x : group1) {
            buffer.writeNumber(x, bitCount1);
          }
-         for (int x : group2) {
+         for (long x : group2) {
              buffer.writeNumber(x, bitCount2);
          }
-         for (int x : group3) {
+         for (long x : group3) {
              buffer.writeNumber(x, bitCount3);
          }
          buffer.seek(start);
@@ -140,7 +161,11 @@ public class MultiStageMonotoneList extends MonotoneList {
     }
 
     public static int getSize(int[] data) {
-        int result = 0;
+        return (int) getSize(MonotoneList.toLongArray(data));
+    }
+
+    public static long getSize(long[] data) {
+        long result = 0;
         int count3 = data.length;
         // verify it is monotone
         for (int i = 1; i < count3; i++) {
@@ -148,12 +173,13 @@ public class MultiStageMonotoneList extends MonotoneList {
                 throw new IllegalArgumentException();
             }
         }
-        int diff = data[count3 - 1] - data[0];
+        long diff = data[count3 - 1] - data[0];
+        long quotient = getQuotient(diff, count3);
         long factor = getScaleFactor(diff, count3);
-        int add = data[0];
+        long add = data[0];
         for (int i = 1; i < count3; i++) {
-            int expected = (int) ((i * factor) >>> 32);
-            int x = data[i];
+            long expected = getExpected(i, quotient, factor);
+            long x = data[i];
             add = Math.min(add, x - expected);
         }
         result += BitBuffer.getEliasDeltaSize(count3 + 1);
@@ -161,32 +187,32 @@ public class MultiStageMonotoneList extends MonotoneList {
         result += BitBuffer.getEliasDeltaSize(BitBuffer.foldSigned(add) + 1);
         int count2 = (count3 + (1 << SHIFT2) - 1) >> SHIFT2;
         int count1 = (count3 + (1 << SHIFT1) - 1) >> SHIFT1;
-        int[] group1 = new int[count1];
-        int[] group2 = new int[count2];
-        int[] group3 = new int[count3];
+        long[] group1 = new long[count1];
+        long[] group2 = new long[count2];
+        long[] group3 = new long[count3];
         for (int i = 0; i < count3; i++) {
-            // int expected = (int) (i * max / count3);
-            int expected = (int) ((i * factor) >>> 32) + add;
-            int got = data[i];
-            int x = got - expected;
+            // long expected = i * max / count3;
+            long expected = getExpected(i, quotient, factor) + add;
+            long got = data[i];
+            long x = got - expected;
             if (x < 0) {
                 throw new AssertionError();
             }
             group3[i] = x;
         }
-        int a = Integer.MAX_VALUE;
+        long a = Long.MAX_VALUE;
         for (int i = 0; i < count3; i++) {
-            int x = group3[i];
+            long x = group3[i];
             a = Math.min(a, x);
             if ((i +1) >> SHIFT2 != i >> SHIFT2 || i == count3 - 1) {
                 group2[i >> SHIFT2] = a / FACTOR2;
-                a = Integer.MAX_VALUE;
+                a = Long.MAX_VALUE;
             }
         }
-        a = Integer.MAX_VALUE;
+        a = Long.MAX_VALUE;
         for (int i = 0; i < count3; i++) {
-            int d = group2[i >> SHIFT2] * FACTOR2;
-            int x = group3[i];
+            long d = group2[i >> SHIFT2] * FACTOR2;
+            long x = group3[i];
             group3[i] -= d;
             if (group3[i] < 0) {
                 throw new AssertionError();
@@ -194,7 +220,7 @@ public class MultiStageMonotoneList extends MonotoneList {
             a = Math.min(a, x);
             if ((i + 1) >> SHIFT1 != i >> SHIFT1 || i == count3 - 1) {
                 group1[i >> SHIFT1] = a / FACTOR1;
-                a = Integer.MAX_VALUE;
+                a = Long.MAX_VALUE;
             }
         }
         int last = -1;
@@ -203,11 +229,11 @@ public class MultiStageMonotoneList extends MonotoneList {
             if (i2 == last) {
                 continue;
             }
-            int d = group1[i >> SHIFT1] * FACTOR1;
+            long d = group1[i >> SHIFT1] * FACTOR1;
             group2[i2] -= d / FACTOR2;
             last = i2;
         }
-        int max1 = 0, max2 = 0, max3 = 0;
+        long max1 = 0, max2 = 0, max3 = 0;
         for (int i = 0; i < group3.length; i++) {
             max3 = Math.max(max3, group3[i]);
         }
@@ -217,15 +243,15 @@ public class MultiStageMonotoneList extends MonotoneList {
         for (int i = 0; i < group1.length; i++) {
             max1 = Math.max(max1, group1[i]);
         }
-        int bitCount1 = 32 - Integer.numberOfLeadingZeros(max1);
-        int bitCount2 = 32 - Integer.numberOfLeadingZeros(max2);
-        int bitCount3 = 32 - Integer.numberOfLeadingZeros(max3);
+        int bitCount1 = 64 - Long.numberOfLeadingZeros(max1);
+        int bitCount2 = 64 - Long.numberOfLeadingZeros(max2);
+        int bitCount3 = 64 - Long.numberOfLeadingZeros(max3);
         result += BitBuffer.getEliasDeltaSize(bitCount1 + 1);
         result += BitBuffer.getEliasDeltaSize(bitCount2 + 1);
         result += BitBuffer.getEliasDeltaSize(bitCount3 + 1);
-        result += bitCount1 * group1.length;
-        result += bitCount2 * group2.length;
-        result += bitCount3 * group3.length;
+        result += (long) bitCount1 * group1.length;
+        result += (long) bitCount2 * group2.length;
+        result += (long) bitCount3 * group3.length;
         return result;
     }
 
@@ -234,17 +260,66 @@ public class MultiStageMonotoneList extends MonotoneList {
     }
 
     @Override
-    public int get(int i) {
-        int expected = (int) ((i * factor) >>> 32) + add;
-        long a = buffer.readNumber(startLevel1 + (i >>> SHIFT1) * bitCount1, bitCount1);
-        long b = buffer.readNumber(startLevel2 + (i >>> SHIFT2) * bitCount2, bitCount2);
-        long c = buffer.readNumber(startLevel3 + i * bitCount3, bitCount3);
-        return (int) (expected + a * FACTOR1 + b * FACTOR2 + c);
+    public long get(int i) {
+        long expected = getExpected(i, quotient, factor) + add;
+        long a = buffer.readNumber(startLevel1 + (long) (i >>> SHIFT1) * bitCount1, bitCount1);
+        long b = buffer.readNumber(startLevel2 + (long) (i >>> SHIFT2) * bitCount2, bitCount2);
+        long c = buffer.readNumber(startLevel3 + (long) i * bitCount3, bitCount3);
+        return expected + a * FACTOR1 + b * FACTOR2 + c;
     }
 
     @Override
     public long getPair(int i) {
-        return ((long) get(i) << 32) | (get(i + 1));
+        return (get(i) << 32) | get(i + 1);
+    }
+
+    @Override
+    public void getRange(int from, int to, long[] out) {
+        // the level 1 and 2 offsets are only read when they change
+        long a = 0, b = 0;
+        long pos = startLevel3 + (long) from * bitCount3;
+        for (int i = from; i < to; i++, pos += bitCount3) {
+            if (i == from || (i & ((1 << SHIFT2) - 1)) == 0) {
+                if (i == from || (i & ((1 << SHIFT1) - 1)) == 0) {
+                    a = buffer.readNumber(startLevel1 + (long) (i >>> SHIFT1) * bitCount1,
+                            bitCount1) * FACTOR1;
+                }
+                b = buffer.readNumber(startLevel2 + (long) (i >>> SHIFT2) * bitCount2,
+                        bitCount2) * FACTOR2;
+            }
+            long c = buffer.readNumber(pos, bitCount3);
+            out[i - from] = getExpected(i, quotient, factor) + add + a + b + c;
+        }
+    }
+
+    @Override
+    public Cursor cursor(final int i) {
+        return new Cursor() {
+
+            private int next = i;
+            private long pos = startLevel3 + (long) i * bitCount3;
+            private long a = buffer.readNumber(startLevel1 + (long) (i >>> SHIFT1) * bitCount1,
+                    bitCount1) * FACTOR1;
+            private long b = buffer.readNumber(startLevel2 + (long) (i >>> SHIFT2) * bitCount2,
+                    bitCount2) * FACTOR2;
+
+            @Override
+            public long next() {
+                int j = next++;
+                if (j != i && (j & ((1 << SHIFT2) - 1)) == 0) {
+                    if ((j & ((1 << SHIFT1) - 1)) == 0) {
+                        a = buffer.readNumber(startLevel1 + (long) (j >>> SHIFT1) * bitCount1,
+                                bitCount1) * FACTOR1;
+                    }
+                    b = buffer.readNumber(startLevel2 + (long) (j >>> SHIFT2) * bitCount2,
+                            bitCount2) * FACTOR2;
+                }
+                long c = buffer.readNumber(pos, bitCount3);
+                pos += bitCount3;
+                return getExpected(j, quotient, factor) + add + a + b + c;
+            }
+
+        };
     }
 
 }
@@ -0,0 +1,232 @@
+package org.minperf.monotoneList;
+
+import org.minperf.BitBuffer;
+import org.minperf.select.VerySimpleSelect;
+import org.minperf.storage.GrowableStorage;
+
+/**
+ * An Elias-Fano list that is split into partitions of 128 entries. Each
+ * partition stores its first value (the base), its own number of low bits,
+ * the upper bits (in unary), and the low bits, so that uneven gaps only
+ * affect the partitions where they occur. The start of each partition is
+ * stored in a fixed width array; the low bits end where the next partition
+ * starts.
+ * <p>
+ * A lookup reads the partition positions, and then only the partition: there
+ * is no global select structure, instead the upper bits of the partition are
+ * scanned (typically 2 to 4 words), right after the partition header. Compared
+ * to EliasFanoMonotoneList, this needs around 0.3 bits more per entry for the
+ * partition headers, but less if the gaps are uneven.
+ */
+public class PartitionedEliasFanoMonotoneList extends MonotoneList {
+
+    private static final int PARTITION_SHIFT = 7;
+
+    private static final int PARTITION_SIZE = 1 << PARTITION_SHIFT;
+
+    /**
+     * The number of bits to store the low bit count of a partition.
+     */
+    private static final int LOW_BIT_COUNT_BITS = 6;
+
+    /**
+     * The number of bits that are scanned at once (readNumber can read at
+     * most 63 bits).
+     */
+    private static final int SCAN_BITS = 63;
+
+    private final BitBuffer buffer;
+    private final int len;
+    private final int valueBits;
+    private final int posBits;
+    private final long posStart;
+    private final long dataStart;
+
+    private PartitionedEliasFanoMonotoneList(BitBuffer buffer) {
+        this.buffer = buffer;
+        this.len = (int) (buffer.readEliasDelta() - 1);
+        this.valueBits = (int) (buffer.readEliasDelta() - 1);
+        this.posBits = (int) (buffer.readEliasDelta() - 1);
+        long dataBits = buffer.readEliasDelta() - 1;
+        this.posStart = buffer.position();
+        this.dataStart = posStart + (long) (getPartitionCount(len) + 1) * posBits;
+        buffer.seek(dataStart + dataBits);
+    }
+
+    public static PartitionedEliasFanoMonotoneList generate(int[] data, BitBuffer buffer) {
+        return generate(toLongArray(data), buffer);
+    }
+
+    public static PartitionedEliasFanoMonotoneList generate(long[] data, BitBuffer buffer) {
+        long start = buffer.position();
+        int len = data.length;
+        // verify it is monotone
+        for (int i = 1; i < len; i++) {
+            if (data[i - 1] > data[i]) {
+                throw new IllegalArgumentException();
+            }
+        }
+        int valueBits = getBitCount(data[len - 1]);
+        int partitionCount = getPartitionCount(len);
+        int[] lowBitCounts = new int[partitionCount];
+        long[] positions = new long[partitionCount + 1];
+        long pos = 0;
+        for (int p = 0; p < partitionCount; p++) {
+            int from = p << PARTITION_SHIFT;
+            int n = Math.min(PARTITION_SIZE, len - from);
+            long range = data[from + n - 1] - data[from];
+            int lowBitCount = EliasFanoMonotoneList.getLowBitCount(range, n);
+            lowBitCounts[p] = lowBitCount;
+            positions[p] = pos;
+            pos += valueBits + LOW_BIT_COUNT_BITS + (long) n * lowBitCount +
+                    n + (range >>> lowBitCount);
+        }
+        positions[partitionCount] = pos;
+        // padding, so that scanning the last partition does not read past
+        // the end
+        long dataBits = pos + SCAN_BITS;
+        int posBits = getBitCount(pos);
+        buffer.writeEliasDelta(len + 1);
+        buffer.writeEliasDelta(valueBits + 1);
+        buffer.writeEliasDelta(posBits + 1);
+        buffer.writeEliasDelta(dataBits + 1);
+        for (long x : positions) {
+            buffer.writeNumber(x, posBits);
+        }
+        long dataStart = buffer.position();
+        for (int p = 0; p < partitionCount; p++) {
+            int from = p << PARTITION_SHIFT;
+            int n = Math.min(PARTITION_SIZE, len - from);
+            int lowBitCount = lowBitCounts[p];
+            long base = data[from];
+            buffer.seek(dataStart + positions[p]);
+            buffer.writeNumber(base, valueBits);
+            buffer.writeNumber(lowBitCount, LOW_BIT_COUNT_BITS);
+            long upper = buffer.position();
+            for (int j = 0; j < n; j++) {
+                buffer.seek(upper + j + ((data[from + j] - base) >>> lowBitCount));
+                buffer.writeBit(1);
+            }
+            buffer.seek(dataStart + positions[p + 1] - (long) n * lowBitCount);
+            long mask = (1L << lowBitCount) - 1;
+            for (int j = 0; j < n; j++) {
+                buffer.writeNumber((data[from + j] - base) & mask, lowBitCount);
+            }
+        }
+        buffer.seek(start);
+        return new PartitionedEliasFanoMonotoneList(buffer);
+    }
+
+    public static int getSize(int[] data) {
+        return (int) getSize(toLongArray(data));
+    }
+
+    public static long getSize(long[] data) {
+        BitBuffer buffer = new BitBuffer(new GrowableStorage());
+        generate(data, buffer);
+        return buffer.position();
+    }
+
+    public static PartitionedEliasFanoMonotoneList load(BitBuffer buffer) {
+        return new PartitionedEliasFanoMonotoneList(buffer);
+    }
+
+    private static int getPartitionCount(int len) {
+        return (len + PARTITION_SIZE - 1) >>> PARTITION_SHIFT;
+    }
+
+    private static int getBitCount(long x) {
+        return 64 - Long.numberOfLeadingZeros(x);
+    }
+
+    private long getPartitionPos(int p) {
+        return dataStart + buffer.readNumber(posStart + (long) p * posBits, posBits);
+    }
+
+    private int getCount(int p) {
+        return Math.min(PARTITION_SIZE, len - (p << PARTITION_SHIFT));
+    }
+
+    @Override
+    public long get(int i) {
+        int p = i >>> PARTITION_SHIFT;
+        int j = i & (PARTITION_SIZE - 1);
+        long pos = getPartitionPos(p);
+        long end = getPartitionPos(p + 1);
+        long base = buffer.readNumber(pos, valueBits);
+        pos += valueBits;
+        int lowBitCount = (int) buffer.readNumber(pos, LOW_BIT_COUNT_BITS);
+        pos += LOW_BIT_COUNT_BITS;
+        long high = select(pos, j) - j;
+        long lowStart = end - (long) getCount(p) * lowBitCount;
+        long low = buffer.readNumber(lowStart + (long) j * lowBitCount, lowBitCount);
+        return base + (high << lowBitCount) + low;
+    }
+
+    @Override
+    public long getPair(int i) {
+        int p = i >>> PARTITION_SHIFT;
+        int j = i & (PARTITION_SIZE - 1);
+        int count = getCount(p);
+        if (j + 1 >= count) {
+            // the next entry is in the next partition
+            return (get(i) << 32) | get(i + 1);
+        }
+        long pos = getPartitionPos(p);
+        long end = getPartitionPos(p + 1);
+        long base = buffer.readNumber(pos, valueBits);
+        pos += valueBits;
+        int lowBitCount = (int) buffer.readNumber(pos, LOW_BIT_COUNT_BITS);
+        pos += LOW_BIT_COUNT_BITS;
+        long high1 = select(pos, j);
+        long high2 = high1 + 1 + nextOne(pos + high1 + 1);
+        // the values are smaller than 2^31, so both low parts fit in 62 bits
+        long lowStart = end - (long) count * lowBitCount;
+        long lowPair = buffer.readNumber(lowStart + (long) j * lowBitCount, lowBitCount + lowBitCount);
+        long low1 = lowPair >>> lowBitCount;
+        long low2 = lowPair & ((1L << lowBitCount) - 1);
+        long result1 = base + ((high1 - j) << lowBitCount) + low1;
+        long result2 = base + ((high2 - j - 1) << lowBitCount) + low2;
+        return (result1 << 32) | result2;
+    }
+
+    /**
+     * Get the position of the n-th one bit (0 based), relative to the given
+     * position.
+     *
+     * @param start the start position
+     * @param n the number of one bits to skip
+     * @return the relative position
+     */
+    private long select(long start, int n) {
+        long pos = start;
+        while (true) {
+            // left aligned, the lowest bit is 0
+            long x = buffer.readNumber(pos, SCAN_BITS) << 1;
+            int bitCount = Long.bitCount(x);
+            if (n < bitCount) {
+                return pos - start + VerySimpleSelect.selectBitLongReverse(x, n);
+            }
+            n -= bitCount;
+            pos += SCAN_BITS;
+        }
+    }
+
+    /**
+     * Get the position of the next one bit, relative to the given position.
+     *
+     * @param start the start position
+     * @return the relative position
+     */
+    private long nextOne(long start) {
+        long pos = start;
+        while (true) {
+            long x = buffer.readNumber(pos, SCAN_BITS) << 1;
+            if (x != 0) {
+                return pos - start + Long.numberOfLeadingZeros(x);
+            }
+            pos += SCAN_BITS;
+        }
+    }
+
+}
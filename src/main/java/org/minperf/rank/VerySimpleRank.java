@@ -3,6 +3,7 @@ package org.minperf.rank;
 import java.util.BitSet;
 
 import org.minperf.BitBuffer;
+import org.minperf.select.VerySimpleSelect;
 
 /**
  * A simple rank+select data structure implementation for a list of bits.
@@ -12,25 +13,56 @@ import org.minperf.BitBuffer;
  * constant number of log(n) numbers.
  * <p>
  * Select(x) gets the position of the xth 1 bit (positions starting at 0). It
- * takes logarithmic time (using binary search on rank).
+ * takes logarithmic time (using binary search on rank), unless select samples
+ * are stored: then the position of every 2^k-th 1 bit is stored, where k is
+ * chosen so that samples are at most around 256 bits apart (k is at most 7),
+ * and select scans the bits after the sample (a binary search is only used
+ * between samples that are far apart). The samples need around 0.1 to 0.2
+ * bits per bit.
+ * <p>
+ * With samples, the header starts with the (otherwise unused) Elias-delta
+ * value 1, so that the format without samples is unchanged.
  */
 public class VerySimpleRank {
 
+    private static final int MAX_SAMPLE_SHIFT = 7;
+
+    /**
+     * The target distance between samples, in bits.
+     */
+    private static final int SAMPLE_DISTANCE = 256;
+
+    /**
+     * The maximum number of bits to scan, if the next sample is further away
+     * a binary search is used.
+     */
+    private static final int MAX_SCAN_BITS = 1024;
+
+    /**
+     * The number of bits that are scanned at once (readNumber can read at
+     * most 63 bits).
+     */
+    private static final int SCAN_BITS = 63;
+
     private final BitBuffer buffer;
     private final int size;
-    private final int superBlockPos;
+    private final long superBlockPos;
     private final int superBlockBits;
     private final int superBlockShift;
     private final int superBlockCount;
     private final int superBlockEntrySize;
-    private final int blockPos;
+    private final long blockPos;
     private final int blockBits;
     private final int blockShift;
     private final int blockCount;
     private final int blockEntrySize;
-    private final int dataPos;
+    private final long dataPos;
+    private final long samplePos;
+    private final int sampleShift;
+    private long oneCount;
+    private int sampleCount;
 
-    private VerySimpleRank(BitBuffer buffer, int size) {
+    private VerySimpleRank(BitBuffer buffer, int size, int sampleShift) {
         this.buffer = buffer;
         this.size = size;
         superBlockPos = buffer.position();
@@ -44,8 +76,10 @@ public class VerySimpleRank {
         superBlockCount = (size + superBlockBits - 1) / superBlockBits;
         superBlockEntrySize = 32 - Integer.numberOfLeadingZeros(size - 1);
         blockEntrySize = 32 - Integer.numberOfLeadingZeros(superBlockBits);
-        blockPos = superBlockPos + superBlockEntrySize * superBlockCount;
-        dataPos = blockPos + blockEntrySize * blockCount;
+        blockPos = superBlockPos + (long) superBlockEntrySize * superBlockCount;
+        dataPos = blockPos + (long) blockEntrySize * blockCount;
+        this.sampleShift = sampleShift;
+        samplePos = sampleShift >= 0 ? dataPos + size : -1;
     }
 
     /**
@@ -56,9 +90,31 @@ public class VerySimpleRank {
      * @return the generated object
      */
     public static VerySimpleRank generate(BitSet set, BitBuffer buffer) {
+        return generate(set, buffer, false);
+    }
+
+    /**
+     * Generate a rank/select object, and store it into the provided buffer.
+     *
+     * @param set the bit set
+     * @param buffer the buffer
+     * @param selectSamples whether to store select samples
+     * @return the generated object
+     */
+    public static VerySimpleRank generate(BitSet set, BitBuffer buffer, boolean selectSamples) {
         int size = set.length() + 1;
+        int sampleShift = -1;
+        if (selectSamples) {
+            long ones = set.cardinality();
+            long perDistance = Math.max(1, ones * SAMPLE_DISTANCE / size);
+            sampleShift = Math.min(MAX_SAMPLE_SHIFT, 63 - Long.numberOfLeadingZeros(perDistance));
+            buffer.writeEliasDelta(1);
+        }
         buffer.writeEliasDelta(size + 1);
-        VerySimpleRank rank = new VerySimpleRank(buffer, size);
+        if (selectSamples) {
+            buffer.writeEliasDelta(sampleShift + 1);
+        }
+        VerySimpleRank rank = new VerySimpleRank(buffer, size, sampleShift);
         int[] superBlocks = new int[rank.superBlockCount];
         int count = 0;
         long last = 0;
@@ -96,9 +152,24 @@ public class VerySimpleRank {
         for (int i = 0; i < size; i++) {
             buffer.writeBit(set.get(i) ? 1 : 0);
         }
+        if (selectSamples) {
+            int ones = 0;
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                if ((ones & ((1 << sampleShift) - 1)) == 0) {
+                    buffer.writeNumber(i, rank.superBlockEntrySize);
+                }
+                ones++;
+            }
+            rank.oneCount = ones;
+            rank.sampleCount = rank.getSampleCount(ones);
+        }
         return rank;
     }
 
+    private int getSampleCount(long ones) {
+        return (int) ((ones + (1 << sampleShift) - 1) >>> sampleShift);
+    }
+
     /**
      * Generate a rank/select object from the provided buffer.
      *
@@ -106,9 +177,21 @@ public class VerySimpleRank {
      * @return the loaded object
      */
     public static VerySimpleRank load(BitBuffer buffer) {
-        int size = (int) (buffer.readEliasDelta() - 1);
-        VerySimpleRank result = new VerySimpleRank(buffer, size);
+        long x = buffer.readEliasDelta();
+        boolean selectSamples = x == 1;
+        if (selectSamples) {
+            x = buffer.readEliasDelta();
+        }
+        int size = (int) (x - 1);
+        int sampleShift = selectSamples ? (int) buffer.readEliasDelta() - 1 : -1;
+        VerySimpleRank result = new VerySimpleRank(buffer, size, sampleShift);
         buffer.seek(result.dataPos + size);
+        if (selectSamples) {
+            // the last bit is never set, so this is the number of 1 bits
+            result.oneCount = result.rank(size - 1);
+            result.sampleCount = result.getSampleCount(result.oneCount);
+            buffer.seek(result.getSamplePos(result.sampleCount));
+        }
         return result;
     }
 
@@ -137,9 +220,9 @@ public class VerySimpleRank {
         int s = (int) (x >>> superBlockShift);
         int b = (int) (x >>> blockShift);
         return (int) buffer.readNumber(superBlockPos +
-                    s * superBlockEntrySize, superBlockEntrySize) +
+                    (long) s * superBlockEntrySize, superBlockEntrySize) +
                 (int) buffer.readNumber(blockPos +
-                    b * blockEntrySize, blockEntrySize) +
+                    (long) b * blockEntrySize, blockEntrySize) +
                     countBits(b << blockShift, (int) x);
     }
 
@@ -155,7 +238,49 @@ public class VerySimpleRank {
      * @return the position, or -1 if x is too large
      */
     public long select(long x) {
-        int min = 0, max = size + 1;
+        if (samplePos < 0) {
+            return select(x, 0, size + 1);
+        }
+        if (x >= oneCount) {
+            return -1;
+        }
+        int s = (int) (x >>> sampleShift);
+        long pos = readSample(s);
+        long end = s + 1 < sampleCount ? readSample(s + 1) : size;
+        if (end - pos > MAX_SCAN_BITS) {
+            return select(x, (int) pos + 1, (int) end + 1);
+        }
+        int remaining = (int) (x - ((long) s << sampleShift));
+        // the sample is the position of a 1 bit, so the loop ends before end
+        for (long p = dataPos + pos;; p += SCAN_BITS) {
+            // left aligned
+            int n = (int) Math.min(SCAN_BITS, dataPos + end - p);
+            long w = buffer.readNumber(p, n) << (64 - n);
+            int count = Long.bitCount(w);
+            if (remaining < count) {
+                return p - dataPos + VerySimpleSelect.selectBitLongReverse(w, remaining);
+            }
+            remaining -= count;
+        }
+    }
+
+    private long getSamplePos(int i) {
+        return samplePos + (long) i * superBlockEntrySize;
+    }
+
+    private long readSample(int i) {
+        return buffer.readNumber(getSamplePos(i), superBlockEntrySize);
+    }
+
+    /**
+     * Get the position of the xth 1 bit, using a binary search on rank.
+     *
+     * @param x the value (starting with 0)
+     * @param min the lowest possible position + 1
+     * @param max the highest possible position + 2
+     * @return the position, or -1 if x is too large
+     */
+    private long select(long x, int min, int max) {
         while (min < max) {
             int n = (min + max) >>> 1;
             long k = rank(n);
@@ -181,7 +306,7 @@ public class VerySimpleRank {
     }
 
     public int getOverhead() {
-        return dataPos - superBlockPos - size;
+        return (int) (dataPos - superBlockPos - size);
     }
 
     public int getSize() {
@@ -63,4 +63,55 @@ public abstract class Select {
 
     public abstract long selectPair(long x);
 
+    /**
+     * Get the positions of the 1 bits from x = from (inclusive) to to
+     * (exclusive), in one call. This is faster than calling select for each
+     * value, as the bits are scanned sequentially.
+     *
+     * @param from the first value (starting with 0)
+     * @param to the end value (at most the number of 1 bits)
+     * @param out the target array (the position of the first 1 bit is stored
+     *            at index 0)
+     */
+    public void selectRange(long from, long to, long[] out) {
+        Cursor cursor = cursor(from);
+        for (int i = 0; i < to - from; i++) {
+            out[i] = cursor.next();
+        }
+    }
+
+    /**
+     * Get a cursor that returns the positions of the xth 1 bit, the (x+1)th 1
+     * bit, and so on.
+     *
+     * @param x the value of the first call to next (starting with 0)
+     * @return the cursor
+     */
+    public Cursor cursor(final long x) {
+        return new Cursor() {
+
+            private long next = x;
+
+            @Override
+            public long next() {
+                return select(next++);
+            }
+
+        };
+    }
+
+    /**
+     * Iterates over the positions of the 1 bits.
+     */
+    public abstract static class Cursor {
+
+        /**
+         * Get the position of the next 1 bit.
+         *
+         * @return the position, or -1 if there are no more 1 bits
+         */
+        public abstract long next();
+
+    }
+
 }
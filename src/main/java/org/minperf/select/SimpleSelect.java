@@ -26,6 +26,8 @@ import org.minperf.BitBuffer;
  * A select implementation with guaranteed O(1) query time. This is a copy of
  * the (very good) implementation in Sux4J it.unimi.dsi.sux4j.bits.SimpleSelect
  * by Sebastiano Vigna (see copyright), with a custom serialization format.
+ * When loaded, the data is read directly from the buffer (no copy is made), so
+ * that the buffer can be memory mapped.
  */
 public class SimpleSelect extends Select {
 
@@ -159,8 +161,16 @@ public class SimpleSelect extends Select {
     private final long numOnes;
     // The number of words
     private final int numWords;
-    // The cached result of the bits
-    private transient long[] bits;
+    // The bits (only set while generating)
+    private long[] bits;
+
+    // The buffer (only set when loaded)
+    private final BitBuffer buffer;
+    // The positions of the arrays within the buffer
+    private final long bitsPos;
+    private final long inventoryPos;
+    private final long subinventoryPos;
+    private final long exactSpillPos;
 
     /**
      * The first-level inventory containing information about one bit each
@@ -174,7 +184,7 @@ public class SimpleSelect extends Select {
      * is actually a pointer to {@link #exactSpill}, where the offsets can be
      * found.
      */
-    private final long[] inventory;
+    private long[] inventory;
     /** The logarithm of the number of ones per {@link #inventory} entry. */
     private final int log2OnesPerInventory;
     /** The number of ones per {@link #inventory} entry. */
@@ -185,7 +195,7 @@ public class SimpleSelect extends Select {
      * The second-level inventory (records the offset of each bit w.r.t. the
      * first-level inventory).
      */
-    private final long[] subinventory;
+    private long[] subinventory;
     /**
      * The logarithm of the number of longwords used in the part of the
      * subinventory associated to an inventory entry.
@@ -210,26 +220,23 @@ public class SimpleSelect extends Select {
      */
     private final int onesPerSub16Mask;
     /** The list of exact spills. */
-    private final long[] exactSpill;
+    private long[] exactSpill;
 
     private SimpleSelect(BitBuffer buffer) {
+        this.buffer = buffer;
         numOnes = buffer.readEliasDelta() - 1;
         numWords = (int) buffer.readEliasDelta() - 1;
-        bits = new long[numWords];
-        for (int i = 0; i < bits.length; i++) {
-            bits[i] = buffer.readLong();
-        }
-        inventory = new long[(int) buffer.readEliasDelta() - 1];
-        for (int i = 0; i < inventory.length; i++) {
-            inventory[i] = buffer.readLong();
-        }
+        bitsPos = buffer.position();
+        buffer.seek(bitsPos + 64L * numWords);
+        int inventoryLength = (int) buffer.readEliasDelta() - 1;
+        inventoryPos = buffer.position();
+        buffer.seek(inventoryPos + 64L * inventoryLength);
         log2OnesPerInventory = (int) buffer.readEliasDelta() - 1;
         onesPerInventory = 1 << log2OnesPerInventory;
         onesPerInventoryMask = onesPerInventory - 1;
-        subinventory = new long[(int) buffer.readEliasDelta() - 1];
-        for (int i = 0; i < subinventory.length; i++) {
-            subinventory[i] = buffer.readLong();
-        }
+        int subinventoryLength = (int) buffer.readEliasDelta() - 1;
+        subinventoryPos = buffer.position();
+        buffer.seek(subinventoryPos + 64L * subinventoryLength);
         log2LongwordsPerSubinventory = Math.min(
                 MAX_LOG2_LONGWORDS_PER_SUBINVENTORY,
                 Math.max(0, log2OnesPerInventory - 2));
@@ -239,13 +246,14 @@ public class SimpleSelect extends Select {
         log2OnesPerSub16 = Math.max(0, log2OnesPerSub64 - 2);
         onesPerSub16 = 1 << log2OnesPerSub16;
         onesPerSub16Mask = onesPerSub16 - 1;
-        exactSpill = new long[(int) buffer.readEliasDelta() - 1];
-        for (int i = 0; i < exactSpill.length; i++) {
-            exactSpill[i] = buffer.readLong();
-        }
+        int exactSpillLength = (int) buffer.readEliasDelta() - 1;
+        exactSpillPos = buffer.position();
+        buffer.seek(exactSpillPos + 64L * exactSpillLength);
     }
 
     private SimpleSelect(BitSet bitSet) {
+        buffer = null;
+        bitsPos = inventoryPos = subinventoryPos = exactSpillPos = 0;
         long length = bitSet.length();
         numWords = (int) ((length + 63) / 64);
         this.bits = new long[numWords];
@@ -379,6 +387,7 @@ public class SimpleSelect extends Select {
 
     public static SimpleSelect generate(BitSet bitSet, BitBuffer buffer) {
         SimpleSelect s = new SimpleSelect(bitSet);
+        long start = buffer.position();
         buffer.writeEliasDelta(s.numOnes + 1);
         buffer.writeEliasDelta(s.numWords + 1);
         for (long x : s.bits) {
@@ -397,7 +406,13 @@ public class SimpleSelect extends Select {
         for (long x : s.exactSpill) {
             buffer.writeNumber(x, 64);
         }
-        return s;
+        long end = buffer.position();
+        buffer.seek(start);
+        SimpleSelect result = new SimpleSelect(buffer);
+        if (buffer.position() != end) {
+            throw new AssertionError();
+        }
+        return result;
     }
 
     public static int getSize(BitSet bitSet) {
@@ -421,7 +436,25 @@ public class SimpleSelect extends Select {
     }
 
     int getSubInventory16(int index) {
-        return (short) (subinventory[index / 4] >>> (16 * (index % 4)));
+        // the 16 bit values are stored starting with the lowest bits of a word
+        return (short) buffer.readNumber(subinventoryPos + 64L * (index / 4) +
+                48 - 16 * (index % 4), 16);
+    }
+
+    private long getBits(int index) {
+        return buffer.readLong(bitsPos + 64L * index);
+    }
+
+    private long getInventory(int index) {
+        return buffer.readLong(inventoryPos + 64L * index);
+    }
+
+    private long getSubinventory(int index) {
+        return buffer.readLong(subinventoryPos + 64L * index);
+    }
+
+    private long getExactSpill(int index) {
+        return buffer.readLong(exactSpillPos + 64L * index);
     }
 
     @Override
@@ -430,7 +463,7 @@ public class SimpleSelect extends Select {
             return -1;
         }
         int inventoryIndex = (int) (rank >>> log2OnesPerInventory);
-        long inventoryRank = inventory[inventoryIndex];
+        long inventoryRank = getInventory(inventoryIndex);
         int subrank = (int) (rank & onesPerInventoryMask);
         if (subrank == 0) {
             return inventoryRank & ~(1L << 63);
@@ -444,23 +477,22 @@ public class SimpleSelect extends Select {
             residual = subrank & onesPerSub16Mask;
         } else {
             if (onesPerSub64 == 1) {
-                return subinventory[(inventoryIndex << log2LongwordsPerSubinventory) +
-                        subrank];
+                return getSubinventory((inventoryIndex << log2LongwordsPerSubinventory) +
+                        subrank);
             }
-            return exactSpill[(int) (subinventory[inventoryIndex << log2LongwordsPerSubinventory] + subrank)];
+            return getExactSpill((int) (getSubinventory(inventoryIndex << log2LongwordsPerSubinventory) + subrank));
         }
         if (residual == 0) {
             return start;
         }
-        long[] bits = this.bits;
         int wordIndex = (int) (start / 64);
-        long word = bits[wordIndex] & (-1L << start);
+        long word = getBits(wordIndex) & (-1L << start);
         for (;;) {
             int bitCount = Long.bitCount(word);
             if (residual < bitCount) {
                 break;
             }
-            word = bits[++wordIndex];
+            word = getBits(++wordIndex);
             residual -= bitCount;
         }
         return wordIndex * 64L + selectInLong(word, residual);
@@ -488,13 +520,75 @@ public class SimpleSelect extends Select {
     public long selectPair(long i) {
         long x = select(i);
         int curr = (int) (x / Long.SIZE);
-        long window = bits[curr] & -1L << x;
+        long window = getBits(curr) & -1L << x;
         window &= window - 1;
         while (window == 0) {
-            window = bits[++curr];
+            window = getBits(++curr);
         }
         long y = curr * Long.SIZE + Long.numberOfTrailingZeros(window);
         return (x << 32) | y;
     }
 
+    @Override
+    public void selectRange(long from, long to, long[] out) {
+        if (from >= to) {
+            return;
+        }
+        if (from < 0 || to > numOnes) {
+            throw new IllegalArgumentException("from " + from + " to " + to);
+        }
+        // only the first position needs the inventory, after that the bits
+        // are scanned word by word
+        long x = select(from);
+        int wordIndex = (int) (x / Long.SIZE);
+        long word = getBits(wordIndex) & -1L << x;
+        int count = (int) (to - from);
+        for (int i = 0; i < count; i++) {
+            while (word == 0) {
+                word = getBits(++wordIndex);
+            }
+            out[i] = wordIndex * 64L + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+        }
+    }
+
+    @Override
+    public Cursor cursor(long x) {
+        return new SimpleCursor(x);
+    }
+
+    /**
+     * A cursor that scans the bits word by word.
+     */
+    private class SimpleCursor extends Cursor {
+
+        private long remaining;
+        private int wordIndex;
+        private long word;
+
+        SimpleCursor(long x) {
+            remaining = x < 0 ? 0 : Math.max(0, numOnes - x);
+            if (remaining > 0) {
+                long pos = select(x);
+                wordIndex = (int) (pos / Long.SIZE);
+                word = getBits(wordIndex) & -1L << pos;
+            }
+        }
+
+        @Override
+        public long next() {
+            if (remaining == 0) {
+                return -1;
+            }
+            while (word == 0) {
+                word = getBits(++wordIndex);
+            }
+            remaining--;
+            long result = wordIndex * 64L + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            return result;
+        }
+
+    }
+
 }
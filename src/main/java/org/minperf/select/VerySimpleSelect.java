@@ -43,8 +43,8 @@ public class VerySimpleSelect extends Select {
     private final int cardinality;
     private final int bitCount;
     private final int added;
-    private final int offsetPos;
-    private final int dataPos;
+    private final long offsetPos;
+    private final long dataPos;
 
     private VerySimpleSelect(BitBuffer buffer) {
         this.buffer = buffer;
@@ -55,12 +55,12 @@ public class VerySimpleSelect extends Select {
         this.added = (int) BitBuffer.unfoldSigned(buffer.readEliasDelta() - 1);
         this.bitCount = (int) (buffer.readEliasDelta() - 1);
         this.offsetPos = buffer.position();
-        this.dataPos = offsetPos + bitCount * blockCount;
+        this.dataPos = offsetPos + (long) bitCount * blockCount;
         buffer.seek(dataPos + size);
     }
 
     public static VerySimpleSelect generate(BitSet set, BitBuffer buffer) {
-        int start = buffer.position();
+        long start = buffer.position();
         int size = set.length() + 1;
         buffer.writeEliasDelta(size + 1);
         int cardinality = set.cardinality();
@@ -160,7 +160,7 @@ public class VerySimpleSelect extends Select {
     public long select(long x) {
         int block = (int) (x >>> BITS_PER_BLOCK_SHIFT);
         int expected = (int) ((block * blockCountScale) >>> 32);
-        long read = buffer.readNumber(offsetPos + block * bitCount, bitCount);
+        long read = buffer.readNumber(offsetPos + (long) block * bitCount, bitCount);
         long result = expected + read - added;
         int remaining = (int) (x - ((long) block << BITS_PER_BLOCK_SHIFT));
         while (true) {
@@ -178,7 +178,7 @@ public class VerySimpleSelect extends Select {
     public long selectPair(long x) {
         int block = (int) (x >>> BITS_PER_BLOCK_SHIFT);
         int expected = (int) ((block * blockCountScale) >>> 32);
-        long read = buffer.readNumber(offsetPos + block * bitCount, bitCount);
+        long read = buffer.readNumber(offsetPos + (long) block * bitCount, bitCount);
         long result = expected + read - added;
         int remaining = (int) (x - ((long) block << BITS_PER_BLOCK_SHIFT));
         while (true) {
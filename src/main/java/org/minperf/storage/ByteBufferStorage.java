@@ -0,0 +1,128 @@
+package org.minperf.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage in one or more byte buffers, for example memory mapped files or
+ * direct buffers. The words are stored in big endian format, the same format as
+ * BitBuffer.toByteArray. The data is not copied.
+ */
+public class ByteBufferStorage extends Storage {
+
+    /**
+     * The size of a mapped segment is 2 ^ this number. A byte buffer can not
+     * be larger than 2 GB, so larger files are mapped in segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private final ByteBuffer[] segments;
+    private final long byteLength;
+
+    /**
+     * Create a storage for the given buffer. The data is read from the current
+     * position up to the limit of the buffer. The position and limit of the
+     * buffer are not changed.
+     *
+     * @param buffer the buffer
+     */
+    public ByteBufferStorage(ByteBuffer buffer) {
+        this(split(buffer), buffer.remaining());
+    }
+
+    private static ByteBuffer[] split(ByteBuffer buffer) {
+        int len = buffer.remaining();
+        int segmentSize = 1 << SEGMENT_SHIFT;
+        int count = Math.max(1, (int) (((long) len + segmentSize - 1) >>> SEGMENT_SHIFT));
+        ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int start = buffer.position() + i * segmentSize;
+            ByteBuffer b = buffer.duplicate();
+            b.limit(start + Math.min(segmentSize, len - i * segmentSize));
+            b.position(start);
+            segments[i] = b.slice().order(ByteOrder.BIG_ENDIAN);
+        }
+        return segments;
+    }
+
+    private ByteBufferStorage(ByteBuffer[] segments, long byteLength) {
+        this.segments = segments;
+        this.byteLength = byteLength;
+    }
+
+    /**
+     * Map a file (read-only).
+     *
+     * @param file the file
+     * @return the storage
+     */
+    public static ByteBufferStorage map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return map(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Map a region of a file (read-only). The mapping stays valid after the
+     * channel is closed.
+     *
+     * @param channel the file channel
+     * @param position the start position within the file
+     * @param size the number of bytes
+     * @return the storage
+     */
+    public static ByteBufferStorage map(FileChannel channel, long position, long size) throws IOException {
+        long segmentSize = 1L << SEGMENT_SHIFT;
+        int count = (int) ((size + segmentSize - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segments = new ByteBuffer[Math.max(1, count)];
+        if (count == 0) {
+            segments[0] = ByteBuffer.allocate(0);
+        }
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            long len = Math.min(segmentSize, size - start);
+            segments[i] = channel.map(MapMode.READ_ONLY, position + start, len).
+                    order(ByteOrder.BIG_ENDIAN);
+        }
+        return new ByteBufferStorage(segments, size);
+    }
+
+    @Override
+    public long get(int index) {
+        long p = (long) index << 3;
+        ByteBuffer b = segments[(int) (p >>> SEGMENT_SHIFT)];
+        int offset = (int) (p & ((1 << SEGMENT_SHIFT) - 1));
+        if (offset + 8 <= b.limit()) {
+            return b.getLong(offset);
+        }
+        return getPartial(b, offset);
+    }
+
+    private static long getPartial(ByteBuffer b, int offset) {
+        // the last word may be incomplete, the missing bytes are zero
+        long x = 0;
+        for (int i = 0; i < 8; i++) {
+            int p = offset + i;
+            x = (x << 8) | (p < b.limit() ? b.get(p) & 0xff : 0);
+        }
+        return x;
+    }
+
+    @Override
+    public void set(int index, long x) {
+        long p = (long) index << 3;
+        ByteBuffer b = segments[(int) (p >>> SEGMENT_SHIFT)];
+        b.putLong((int) (p & ((1 << SEGMENT_SHIFT) - 1)), x);
+    }
+
+    @Override
+    public int length() {
+        return (int) ((byteLength + 7) >>> 3);
+    }
+
+}
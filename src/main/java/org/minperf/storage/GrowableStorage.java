@@ -0,0 +1,37 @@
+package org.minperf.storage;
+
+import java.util.Arrays;
+
+/**
+ * Storage in a long array that grows as needed. This is useful if the number
+ * of bits that are written is not known in advance. Words that were not
+ * written yet are zero.
+ */
+public class GrowableStorage extends Storage {
+
+    private long[] data = new long[16];
+
+    @Override
+    public long get(int index) {
+        return index < data.length ? data[index] : 0;
+    }
+
+    @Override
+    public void set(int index, long x) {
+        if (index >= data.length) {
+            data = Arrays.copyOf(data, Math.max(index + 1, data.length * 2));
+        }
+        data[index] = x;
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, 0);
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.minperf.storage;
+
+import java.util.Arrays;
+
+/**
+ * Storage in a long array.
+ */
+public class HeapStorage extends Storage {
+
+    private final long[] data;
+
+    public HeapStorage(long[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public long get(int index) {
+        return data[index];
+    }
+
+    @Override
+    public void set(int index, long x) {
+        data[index] = x;
+    }
+
+    @Override
+    public int length() {
+        return data.length;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, 0);
+    }
+
+    public long[] getLongArray() {
+        return data;
+    }
+
+}
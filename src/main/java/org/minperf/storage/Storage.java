@@ -0,0 +1,40 @@
+package org.minperf.storage;
+
+/**
+ * The storage of a bit buffer: a list of 64 bit words.
+ */
+public abstract class Storage {
+
+    /**
+     * Get the word at the given index.
+     *
+     * @param index the index
+     * @return the value
+     */
+    public abstract long get(int index);
+
+    /**
+     * Set the word at the given index.
+     *
+     * @param index the index
+     * @param x the value
+     */
+    public abstract void set(int index, long x);
+
+    /**
+     * Get the number of words.
+     *
+     * @return the number of words
+     */
+    public abstract int length();
+
+    /**
+     * Set all words to zero.
+     */
+    public void clear() {
+        for (int i = 0, len = length(); i < len; i++) {
+            set(i, 0);
+        }
+    }
+
+}
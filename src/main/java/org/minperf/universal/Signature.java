@@ -0,0 +1,42 @@
+package org.minperf.universal;
+
+/**
+ * A 128 bit signature of a key.
+ */
+public class Signature {
+
+    private final long high, low;
+
+    public Signature(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Signature)) {
+            return false;
+        }
+        Signature other = (Signature) obj;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.minperf.universal;
+
+/**
+ * A function that reduces a key to a 128 bit signature. In signature mode,
+ * each key is hashed only once, and the hash function is then generated and
+ * evaluated on the signature, so that the cost does not depend on the key
+ * length. Two distinct keys must not have the same signature.
+ *
+ * @param <T> the type
+ */
+public interface SignatureFunction<T> {
+
+    /**
+     * Calculate the signature of a key.
+     *
+     * @param key the key
+     * @param target the array where the signature is stored (two longs)
+     * @param offset the offset within the array
+     */
+    void signature(T key, long[] target, int offset);
+
+}
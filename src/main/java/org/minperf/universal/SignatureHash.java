@@ -0,0 +1,29 @@
+package org.minperf.universal;
+
+import org.minperf.hash.Murmur3;
+
+/**
+ * The universal hash function for 128 bit signatures. The signature is
+ * already uniformly distributed, so the first hash function index uses the
+ * high part directly, and the other indexes mix the low part with the index.
+ */
+public class SignatureHash implements UniversalHash<Signature> {
+
+    public static long universalHash(long high, long low, long index) {
+        if (index == 0) {
+            return high;
+        }
+        return Murmur3.fmix64(low + index * 0x9e3779b97f4a7c15L) ^ high;
+    }
+
+    @Override
+    public long universalHash(Signature key, long index) {
+        return universalHash(key.getHigh(), key.getLow(), index);
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureHash";
+    }
+
+}
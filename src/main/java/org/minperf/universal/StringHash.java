@@ -2,10 +2,13 @@ package org.minperf.universal;
 
 import java.nio.charset.Charset;
 
+import org.minperf.hash.LongPair;
+import org.minperf.hash.Murmur3;
+
 /**
  * A hash implementation for string keys.
  */
-public class StringHash implements UniversalHash<String> {
+public class StringHash implements UniversalHash<String>, SignatureFunction<String> {
 
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
@@ -14,6 +17,15 @@ public class StringHash implements UniversalHash<String> {
         return getSipHash24(key, index, index);
     }
 
+    @Override
+    public void signature(String key, long[] target, int offset) {
+        byte[] b = key.getBytes(UTF8);
+        LongPair pair = new LongPair();
+        Murmur3.hash128(b, 0, b.length, 0, pair);
+        target[offset] = pair.val1;
+        target[offset + 1] = pair.val2;
+    }
+
     /**
      * A cryptographically relatively secure hash function. It is supposed
      * to protected against hash-flooding denial-of-service attacks.
@@ -8,6 +8,13 @@ package org.minperf.universal;
  * (the earlier the better).
  * <p>
  * The returned value does not need to be uniformly distributed.
+ * <p>
+ * With bucket rebalancing (see RecSplitBuilder.rebalanceBuckets), the negative
+ * indexes -1, -2,... are also used: they select the further buckets for the
+ * keys of an overfull bucket. For those indexes, the hash values must be
+ * independent of the values for the non-negative indexes (for example, they
+ * must not be derived from the absolute value of the index), and the
+ * generator and the evaluator need to get the same values.
  *
  * @param <T> the type
  */
@@ -17,7 +24,8 @@ public interface UniversalHash<T> {
      * Calculate the hash of the given object.
      *
      * @param key the key in the set
-     * @param index the hash function index (0, 1, 2,...)
+     * @param index the hash function index (0, 1, 2,..., and -1, -2,... for
+     *            rebalancing)
      * @return the universal hash (64 bits)
      */
     long universalHash(T key, long index);
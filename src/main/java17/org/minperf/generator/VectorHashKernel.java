@@ -0,0 +1,209 @@
+package org.minperf.generator;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * An implementation that uses the Vector API (Java 17 and newer). The leaf
+ * and split searches test one index per lane, so that the keys are read once
+ * for multiple indexes; the universal hash processes one key per lane. The
+ * results are the same as for the portable implementation.
+ */
+class VectorHashKernel extends HashKernel {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * The lane numbers 0, 1, 2,...
+     */
+    private final LongVector lane;
+
+    private final LongVector one;
+
+    VectorHashKernel() {
+        if (LANES < 4) {
+            // slower than the portable implementation
+            throw new UnsupportedOperationException("lanes: " + LANES);
+        }
+        long[] x = new long[LANES];
+        for (int i = 0; i < LANES; i++) {
+            x[i] = i;
+        }
+        lane = LongVector.fromArray(SPECIES, x, 0);
+        one = LongVector.broadcast(SPECIES, 1L);
+    }
+
+    @Override
+    public void universalHash(long[] keys, int offset, int len, long index,
+            long[] target, int targetOffset) {
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            LongVector x = LongVector.fromArray(SPECIES, keys, offset + i);
+            LongVector v0 = LongVector.broadcast(SPECIES, index ^ 0x736f6d6570736575L);
+            LongVector v1 = LongVector.broadcast(SPECIES, index ^ 0x646f72616e646f6dL);
+            LongVector v2 = LongVector.broadcast(SPECIES, index ^ 0x6c7967656e657261L);
+            LongVector v3 = x.lanewise(VectorOperators.XOR, index ^ 0x7465646279746573L);
+            for (int round = 0; round < 4; round++) {
+                v0 = v0.add(v1);
+                v2 = v2.add(v3);
+                v1 = v1.lanewise(VectorOperators.ROL, 13);
+                v3 = v3.lanewise(VectorOperators.ROL, 16);
+                v1 = v1.lanewise(VectorOperators.XOR, v0);
+                v3 = v3.lanewise(VectorOperators.XOR, v2);
+                v0 = v0.lanewise(VectorOperators.ROL, 32);
+                v2 = v2.add(v1);
+                v0 = v0.add(v3);
+                v1 = v1.lanewise(VectorOperators.ROL, 17);
+                v3 = v3.lanewise(VectorOperators.ROL, 21);
+                v1 = v1.lanewise(VectorOperators.XOR, v2);
+                v3 = v3.lanewise(VectorOperators.XOR, v0);
+                v2 = v2.lanewise(VectorOperators.ROL, 32);
+            }
+            v0 = v0.lanewise(VectorOperators.XOR, x);
+            v0.lanewise(VectorOperators.XOR, v1).
+                    lanewise(VectorOperators.XOR, v2).
+                    lanewise(VectorOperators.XOR, v3).
+                    intoArray(target, targetOffset + i);
+        }
+        super.universalHash(keys, offset + i, len - i, index, target, targetOffset + i);
+    }
+
+    /**
+     * Calculate Settings.supplementalHash for each lane, as an unsigned 32 bit
+     * value.
+     */
+    private static LongVector supplementalHash(long hash, LongVector index) {
+        LongVector x = index.add(hash);
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 30)).
+                mul(0xbf58476d1ce4e5b9L);
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 27)).
+                mul(0x94d049bb133111ebL);
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 31));
+        return x.and(0xffffffffL);
+    }
+
+    /**
+     * Calculate Settings.reduce for each lane, for an unsigned 32 bit value.
+     */
+    private static LongVector reduce(LongVector x, int n) {
+        return x.mul(n).lanewise(VectorOperators.LSHR, 32);
+    }
+
+    /**
+     * Get the first index of a lane in the mask, if it is before the end.
+     *
+     * @return the index, or -1 if no lane is set or the first one is after
+     *         the end
+     */
+    private static long getFirst(VectorMask<Long> found, long index, long end) {
+        if (!found.anyTrue()) {
+            return -1;
+        }
+        long x = index + found.firstTrue();
+        return x < end ? x : -1;
+    }
+
+    @Override
+    public long findLeaf(long[] hashes, int from, int size, long index, long end) {
+        long found = (1L << size) - 1;
+        int to = from + size;
+        for (; index < end; index += LANES) {
+            // lanes after the end are also tested, but not used
+            LongVector indexes = lane.add(index);
+            LongVector bits = LongVector.zero(SPECIES);
+            for (int i = from; i < to; i++) {
+                LongVector h = reduce(supplementalHash(hashes[i], indexes), size);
+                bits = bits.or(one.lanewise(VectorOperators.LSHL, h));
+            }
+            VectorMask<Long> ok = bits.eq(found);
+            if (ok.anyTrue()) {
+                // a later lane can not be before the end either
+                return getFirst(ok, index, end);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long findSplit(long[] hashes, int from, int size, int firstPart,
+            long index, long end) {
+        int otherPart = size - firstPart;
+        int to = from + size;
+        long limit = (((long) firstPart << 32) + size - 1) / size;
+        for (; index < end; index += LANES) {
+            LongVector indexes = lane.add(index);
+            LongVector count = LongVector.zero(SPECIES);
+            int i = from;
+            while (i < to) {
+                int stop = Math.min(to, i + SPLIT_CHECK_INTERVAL);
+                for (; i < stop; i++) {
+                    LongVector h = supplementalHash(hashes[i], indexes);
+                    count = count.add(one, h.lt(limit));
+                }
+                int otherMin = i - from - otherPart;
+                VectorMask<Long> failed = count.compare(VectorOperators.GT, firstPart).
+                        or(count.lt(otherMin));
+                if (failed.allTrue()) {
+                    break;
+                }
+            }
+            if (i < to) {
+                continue;
+            }
+            VectorMask<Long> ok = count.eq(firstPart);
+            if (ok.anyTrue()) {
+                return getFirst(ok, index, end);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long findSplitEvenly(long[] hashes, int from, int size, int split,
+            int partSize, long index, long end, int[] count) {
+        int width = 64 / split;
+        if (split == 2 || partSize >= (1 << (width - 1))) {
+            return super.findSplitEvenly(hashes, from, size, split, partSize,
+                    index, end, count);
+        }
+        long start = getPackedStart(split, partSize);
+        long guard = getPackedGuard(split);
+        int to = from + size;
+        for (; index < end; index += LANES) {
+            LongVector indexes = lane.add(index);
+            LongVector p = LongVector.broadcast(SPECIES, start);
+            LongVector f = LongVector.zero(SPECIES);
+            int i = from;
+            while (i < to) {
+                int stop = Math.min(to, i + SPLIT_CHECK_INTERVAL);
+                for (; i < stop; i++) {
+                    LongVector shift = reduce(supplementalHash(hashes[i], indexes), split).
+                            mul(width);
+                    p = p.add(one.lanewise(VectorOperators.LSHL, shift));
+                    f = f.or(p);
+                }
+                if (f.and(guard).compare(VectorOperators.NE, 0).allTrue()) {
+                    break;
+                }
+            }
+            if (i < to) {
+                continue;
+            }
+            VectorMask<Long> ok = f.and(guard).eq(0);
+            if (ok.anyTrue()) {
+                return getFirst(ok, index, end);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + LANES + " lanes)";
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.minperf.hem.recsplit;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * An implementation of the FastGenerator leaf search that uses the Vector API
+ * (Java 17 and newer). One index is tested per lane. The results are the same
+ * as for the portable implementation.
+ */
+class VectorFastLeafKernel extends FastLeafKernel {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * The lane numbers 0, 1, 2,...
+     */
+    private final LongVector lane;
+
+    private final LongVector one;
+
+    VectorFastLeafKernel() {
+        if (LANES < 4) {
+            // slower than the portable implementation
+            throw new UnsupportedOperationException("lanes: " + LANES);
+        }
+        long[] x = new long[LANES];
+        for (int i = 0; i < LANES; i++) {
+            x[i] = i;
+        }
+        lane = LongVector.fromArray(SPECIES, x, 0);
+        one = LongVector.broadcast(SPECIES, 1L);
+    }
+
+    /**
+     * Calculate Mix.supplementalHashWeyl for each lane, as an unsigned 32 bit
+     * value.
+     */
+    private static LongVector supplementalHashWeyl(long hash, LongVector index) {
+        LongVector x = index.mul(0xbf58476d1ce4e5b9L).add(hash);
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 32)).
+                mul(0xbf58476d1ce4e5b9L);
+        x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 32));
+        return x.and(0xffffffffL);
+    }
+
+    /**
+     * Calculate Settings.reduce for each lane, for an unsigned 32 bit value.
+     */
+    private static LongVector reduce(LongVector x, int n) {
+        return x.mul(n).lanewise(VectorOperators.LSHR, 32);
+    }
+
+    @Override
+    int findFastLeaf(long[] keys, int start, int size, int index) {
+        if (size < 2 || size > 6) {
+            return super.findFastLeaf(keys, start, size, index);
+        }
+        // sizes that are a power of two use a mask
+        boolean mask = (size & (size - 1)) == 0;
+        long found = (1L << size) - 1;
+        int to = start + size;
+        for (;; index += LANES) {
+            LongVector indexes = lane.add(index);
+            LongVector bits = LongVector.zero(SPECIES);
+            for (int i = start; i < to; i++) {
+                LongVector h = supplementalHashWeyl(keys[i], indexes);
+                h = mask ? h.and(size - 1) : reduce(h, size);
+                bits = bits.or(one.lanewise(VectorOperators.LSHL, h));
+            }
+            VectorMask<Long> ok = bits.eq(found);
+            if (ok.anyTrue()) {
+                return index + ok.firstTrue();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + LANES + " lanes)";
+    }
+
+}
@@ -222,7 +222,7 @@ public class BitCodes {
             buff.writeEliasDelta(val);
             assertEquals(buff.position(), BitBuffer.getEliasDeltaSize(val));
             buff.writeNumber(123, 10);
-            int pos = buff.position();
+            int pos = (int) buff.position();
             byte[] data = buff.toByteArray();
             assertEquals((pos + 7) / 8, data.length);
             buff = new BitBuffer(buff.toByteArray());
@@ -281,7 +281,7 @@ public class BitCodes {
         BitBuffer buff = new BitBuffer(8 * 1024 * 1024);
         buff.writeEliasDelta(value);
         assertEquals(buff.position(), BitBuffer.getEliasDeltaSize(value));
-        int size = buff.position();
+        int size = (int) buff.position();
         buff.seek(0);
         long test = buff.readEliasDelta();
         assertEquals(value, test);
@@ -339,6 +339,27 @@ public class BitCodes {
         }
     }
 
+    @Test
+    public void testWriteRange() {
+        Random r = new Random(1);
+        BitBuffer source = new BitBuffer(1000);
+        for (int i = 0; i < 1000; i++) {
+            source.writeBit(r.nextInt(2));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int sourcePos = r.nextInt(1000);
+            int count = r.nextInt(1000 - sourcePos + 1);
+            int targetPos = r.nextInt(200);
+            BitBuffer target = new BitBuffer(1200);
+            target.write(targetPos, source, sourcePos, count);
+            for (int j = 0; j < 1200; j++) {
+                long expected = j >= targetPos && j < targetPos + count ?
+                        source.readNumber(sourcePos + j - targetPos, 1) : 0;
+                assertEquals(expected, target.readNumber(j, 1));
+            }
+        }
+    }
+
     @Test
     public void testSeek() {
         BitBuffer buff = new BitBuffer(8000);
@@ -386,14 +407,14 @@ public class BitCodes {
             int val = r.nextInt(100000);
             buff.writeGolombRice(shift, val);
             buff.writeGolombRice(1, 10);
-            int len = buff.position();
+            int len = (int) buff.position();
             assertEquals(len, BitBuffer.getGolombRiceSize(shift, val) +
                     BitBuffer.getGolombRiceSize(1, 10));
             buff = new BitBuffer(buff.toByteArray());
-            int p = buff.position();
+            int p = (int) buff.position();
             assertEquals(val, buff.readGolombRice(shift));
             assertEquals(val, buff.readGolombRice(p, shift));
-            p = buff.position();
+            p = (int) buff.position();
             assertEquals(10, buff.readGolombRice(1));
             assertEquals(10, buff.readGolombRice(p, 1));
         }
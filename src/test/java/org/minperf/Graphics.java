@@ -98,23 +98,23 @@ public class Graphics {
         System.out.println("child[edge from parent=draw, line width=.1ex, sibling distance=30mm, level distance=0mm] {");
         bits.append(" & Header \\\\\n");
         long size2 = buff.readEliasDelta() - 1;
-        appendLastBits(bits, buff, buff.position());
+        appendLastBits(bits, buff, (int) buff.position());
         bits.append(" & size: " + size2 + " (Elias Delta code, plus 1)\\\\\n");
         boolean alternativeHashOption = buff.readBit() != 0;
         appendLastBits(bits, buff, 1);
         bits.append(" & alternativeHash: " + alternativeHashOption + " (0 false, 1 true)\\\\\n");
         int bucketCount = (size + (averageBucketSize - 1)) / averageBucketSize;
-        int start = buff.position();
+        int start = (int) buff.position();
         int minOffsetDiff = (int) (buff.readEliasDelta() - 1);
         MonotoneList offsetList = MonotoneList.load(buff, eliasFano);
-        appendLastBits(bits, buff, buff.position() - start);
+        appendLastBits(bits, buff, (int) buff.position() - start);
         bits.append(" & offset list (an EliasFano monotone list)\\\\\n");
-        start = buff.position();
+        start = (int) buff.position();
         int minStartDiff = (int) (buff.readEliasDelta() - 1);
         MonotoneList startList = MonotoneList.load(buff, eliasFano);
-        appendLastBits(bits, buff, buff.position() - start);
+        appendLastBits(bits, buff, (int) buff.position() - start);
         bits.append(" & start list (an EliasFano monotone list)\\\\\n");
-        int startBuckets = buff.position();
+        int startBuckets = (int) buff.position();
         for (int x = 0; x < bucketCount; x++) {
             int offset = 0;
             long offsetPair = offsetList.getPair(x);
@@ -122,9 +122,9 @@ public class Graphics {
             offset += o;
             int offsetNext = ((int) offsetPair) + (x + 1) * minOffsetDiff;
             int bucketSize = offsetNext - o;
-            int startPos = startBuckets +
+            int startPos = (int) (startBuckets +
                     Generator.getMinBitCount(offset) +
-                    startList.get(x) + x * minStartDiff;
+                    startList.get(x) + x * minStartDiff);
             System.out.println("  child["+getSizeTikz(bucketSize)+"] {child[level distance=8mm]{node {$b_" + x + "$}");
             System.out.println("    child[grow cyclic, rotate=-90, sibling angle=30, "+
             getSizeTikz(bucketSize)+"] {");
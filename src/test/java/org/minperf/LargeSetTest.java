@@ -1,16 +1,25 @@
 package org.minperf;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.generator.Generator;
+import org.minperf.generator.KeySerializer;
 import org.minperf.universal.LongHash;
+import org.minperf.universal.StringHash;
+import org.minperf.universal.UniversalHash;
 import org.minperf.utils.LargeLongList;
 import org.minperf.utils.LongSet;
 
@@ -48,7 +57,7 @@ public class LargeSetTest {
                     maxChunkSize(MAX_CHUNK_SIZE).
                     generate(list);
             time = System.nanoTime() - time;
-            int bitCount = buff.position();
+            int bitCount = (int) buff.position();
             buff.seek(0);
             double bitsPerKEy = (double) bitCount / len;
             System.out.println("        (" + len + ", " + bitsPerKEy + ")");
@@ -61,7 +70,7 @@ public class LargeSetTest {
             BitSet known = new BitSet();
             int i = 0;
             for (long x : list) {
-                int index = eval.evaluate(x);
+                int index = (int) eval.evaluate(x);
                 if (index > len || index < 0) {
                     Assert.fail("wrong entry: " + x + " " + index);
                 }
@@ -92,6 +101,61 @@ public class LargeSetTest {
         return set;
     }
 
+    @Test
+    public void chunkedSinglePass() {
+        HashSet<Long> longs = new HashSet<Long>();
+        HashSet<String> strings = new HashSet<String>();
+        Random r = new Random(1);
+        while (longs.size() < 100_000) {
+            long x = r.nextLong();
+            longs.add(x);
+            strings.add("k" + x);
+        }
+        assertChunkedSame(new LongHash(), longs);
+        assertChunkedSame(new StringHash(), strings);
+    }
+
+    @Test
+    public void chunkedHashOnce() {
+        HashSet<String> set = new HashSet<String>();
+        for (int i = 0; i < 100_000; i++) {
+            set.add("k" + i);
+        }
+        final AtomicLong count = new AtomicLong();
+        UniversalHash<String> hash = new UniversalHash<String>() {
+
+            private final StringHash base = new StringHash();
+
+            @Override
+            public long universalHash(String key, long index) {
+                if (index == 0) {
+                    count.incrementAndGet();
+                }
+                return base.universalHash(key, index);
+            }
+
+        };
+        Generator<String> g = new Generator<String>(new ConcurrencyTool(4), hash,
+                new Settings(8, 100), true, 10_000);
+        g.setKeySerializer(KeySerializer.getDefault(new StringHash()));
+        g.generate(set);
+        // the universal hash (index 0) is stored in the temporary files
+        assertEquals(set.size(), count.get());
+    }
+
+    private static <T> void assertChunkedSame(UniversalHash<T> hash, Collection<T> set) {
+        Settings settings = new Settings(8, 100);
+        ConcurrencyTool pool = new ConcurrencyTool(4);
+        byte[] expected = new Generator<T>(pool, hash, settings, true,
+                Integer.MAX_VALUE).generate(set).toByteArray();
+        // single pass, using temporary files
+        Generator<T> g = new Generator<T>(pool, hash, settings, true, 10_000);
+        assertArrayEquals(expected, g.generate(set).toByteArray());
+        // one pass per chunk
+        g.setKeySerializer(null);
+        assertArrayEquals(expected, g.generate(set).toByteArray());
+    }
+
     @Test
     public void randomSet() {
         for (int i = 0; i < 100; i++) {
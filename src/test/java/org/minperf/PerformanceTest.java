@@ -97,7 +97,7 @@ public class PerformanceTest {
                 buildEvaluator(new BitBuffer(data));
         BitSet bitSet = new BitSet();
         for (Long x : set) {
-            int y = eval.evaluate(x);
+            int y = (int) eval.evaluate(x);
             if (y < 0 || y >= size) {
                 throw new AssertionError("y=" + y + " of " + size);
             }
@@ -120,7 +120,7 @@ public class PerformanceTest {
             for (int i = 0; i < repeat; i++) {
                 for (int j = 0; j < size; j++) {
                     Long x = list.get(j);
-                    int y = eval.evaluate(x);
+                    int y = (int) eval.evaluate(x);
                     if (y < 0 || y >= size) {
                         throw new AssertionError("y=" + y + " of " + size);
                     }
@@ -1329,7 +1329,7 @@ public class RandomizedTest {
                 buildEvaluator(new BitBuffer(description));
         // verify
         for (T x : set) {
-            int index = eval.evaluate(x);
+            int index = (int) eval.evaluate(x);
             if (index > set.size() || index < 0) {
                 Assert.fail("wrong entry: " + x + " " + index +
                         " leafSize " + leafSize +
@@ -1364,7 +1364,7 @@ public class RandomizedTest {
             long evaluateNanos = System.nanoTime();
             for (int j = 0; j < measureCount; j++) {
                 for (T x : list) {
-                    int index = eval.evaluate(x);
+                    int index = (int) eval.evaluate(x);
                     if (index > list.size() || index < 0) {
                         Assert.fail("wrong entry: " + x + " " + index +
                                 " leafSize " + leafSize +
@@ -1414,7 +1414,7 @@ public class RandomizedTest {
         }
         BitBuffer buff;
         buff = builder.generate(set);
-        int bits = buff.position();
+        int bits = (int) buff.position();
         byte[] data = buff.toByteArray();
         generateNanos = System.nanoTime() - generateNanos;
         assertTrue(bits <= data.length * 8);
@@ -0,0 +1,57 @@
+package org.minperf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.minperf.generator.ConcurrencyTool;
+import org.minperf.generator.Generator;
+import org.minperf.universal.LongHash;
+
+/**
+ * Tests bucket rebalancing with bucket descriptions that are larger than
+ * the maximum.
+ */
+public class RebalanceTest {
+
+    @Test
+    public void oversizedEncoding() {
+        HashSet<Long> set = RandomizedTest.createSet(5000, 1);
+        LongHash hash = new LongHash();
+        for (boolean rebalance : new boolean[] { false, true }) {
+            Settings settings = new Settings(RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(16).rebalanceBuckets(rebalance));
+            // the description of each bucket with more than one key is
+            // larger than the maximum
+            Generator<Long> generator = new Generator<Long>(
+                    new ConcurrencyTool(2), hash, settings, true, Integer.MAX_VALUE) {
+
+                @Override
+                protected int getMaxBits(int maxBucketSize) {
+                    return 1;
+                }
+
+            };
+            BitBuffer buffer = generator.generate(set);
+            buffer.seek(0);
+            buffer.readEliasDelta();
+            // with rebalancing, all keys are encoded using RecSplit
+            assertEquals(rebalance ? 0 : 1, buffer.readBit());
+            buffer.seek(0);
+            RecSplitEvaluator<Long> evaluator = new RecSplitEvaluator<Long>(
+                    buffer, hash, settings, true);
+            BitSet test = new BitSet();
+            for (long x : set) {
+                int i = (int) evaluator.evaluate(Long.valueOf(x));
+                assertTrue(i >= 0 && i < set.size());
+                assertFalse(test.get(i));
+                test.set(i);
+            }
+        }
+    }
+
+}
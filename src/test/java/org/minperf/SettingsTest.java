@@ -403,6 +403,23 @@ public class SettingsTest {
         }
     }
 
+    @Test
+    public void verifyCalculatedRiceSplitMore() {
+        for (int leafSize = 2; leafSize <= 32; leafSize++) {
+            int split = Settings.calcNextSplit(leafSize);
+            for (int i = leafSize; split > 2;) {
+                i *= split;
+                double p = Probability.probabilitySplitIntoMSubsetsOfSizeN(split, i / split);
+                int k = BitCodes.calcBestGolombRiceShift(p);
+                assertEquals(k, Settings.calcRiceParamSplitEvenly(i, split));
+                if (leafSize <= 25) {
+                    assertEquals(k, Settings.calcGolombRiceShift(i, leafSize));
+                }
+                split = Settings.calcNextSplit(split);
+            }
+        }
+    }
+
     @Test
     public void verifyUniversalHashIndex() {
         long div = 1 << Settings.SUPPLEMENTAL_HASH_SHIFT;
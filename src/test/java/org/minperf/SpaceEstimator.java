@@ -34,14 +34,14 @@ public class SpaceEstimator {
                             leafSize(leafSize).averageBucketSize(averageBucketSize);
                     BitBuffer buff;
                     buff = builder.generate(set);
-                    int bits = buff.position();
+                    int bits = (int) buff.position();
                     byte[] description = buff.toByteArray();
                     RecSplitEvaluator<Long> eval =
                             RecSplitBuilder.newInstance(hash).leafSize(leafSize).averageBucketSize(averageBucketSize).
                             buildEvaluator(new BitBuffer(description));
-                    int headerBits = eval.getHeaderSize();
-                    int offsetListSize = eval.getOffsetListSize();
-                    int startListSize = eval.getStartListSize();
+                    int headerBits = (int) eval.getHeaderSize();
+                    int offsetListSize = (int) eval.getOffsetListSize();
+                    int startListSize = (int) eval.getStartListSize();
                     int bucketBits = bits - offsetListSize - startListSize - headerBits;
                     offsetListSum += offsetListSize;
                     startListSum += startListSize;
@@ -94,7 +94,7 @@ public class TextFileTest {
                 @Override
                 public void run() {
                     for (int i = start; i <= end; i++) {
-                        indices[i] = eval.evaluate(list.get(i));
+                        indices[i] = (int) eval.evaluate(list.get(i));
                     }
                 }
             });
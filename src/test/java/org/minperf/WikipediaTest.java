@@ -228,7 +228,7 @@ public class WikipediaTest {
         int size = set.size();
         // verify
         for (T x : set) {
-            int index = eval.evaluate(x);
+            int index = (int) eval.evaluate(x);
             if (index > set.size() || index < 0) {
                 Assert.fail("wrong entry: " + x + " " + index);
             }
@@ -256,7 +256,7 @@ public class WikipediaTest {
             }
             long evalNanos = System.nanoTime();
             for (T x : list) {
-                int index = eval.evaluate(x);
+                int index = (int) eval.evaluate(x);
                 if (index > list.size() || index < 0) {
                     Assert.fail("wrong entry: " + x + " " + index);
                 }
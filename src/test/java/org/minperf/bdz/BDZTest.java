@@ -1,5 +1,6 @@
 package org.minperf.bdz;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -11,6 +12,7 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.minperf.BitBuffer;
 import org.minperf.RandomizedTest;
+import org.minperf.generator.ConcurrencyTool;
 import org.minperf.universal.LongHash;
 import org.minperf.universal.UniversalHash;
 
@@ -24,6 +26,7 @@ public class BDZTest {
             test(size);
         }
         testPerformance(1000000);
+        testPerformanceInterleaved(1000000);
     }
 
     @Test
@@ -31,11 +34,136 @@ public class BDZTest {
         test(100000);
     }
 
+    @Test
+    public void testCompact() {
+        for (int size = 10; size < 2000; size = size * 3 / 2) {
+            testCompact(size);
+        }
+        testCompact(100000);
+    }
+
+    @Test
+    public void testInterleaved() {
+        for (int size = 10; size < 2000; size = size * 3 / 2) {
+            testInterleaved(size);
+        }
+        testInterleaved(100000);
+    }
+
+    @Test
+    public void testArrayLength() {
+        assertEquals(3 + 123, BDZ.getArrayLength(100));
+        // above Integer.MAX_VALUE / 123 keys
+        assertEquals(3 + 123_000_000, BDZ.getArrayLength(100_000_000));
+        assertEquals(3 + 123L * BDZ.MAX_SIZE / 100, BDZ.getArrayLength(BDZ.MAX_SIZE));
+        try {
+            BDZ.getArrayLength(BDZ.MAX_SIZE + 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParallel() {
+        UniversalHash<Long> hash = new LongHash();
+        ConcurrencyTool pool = new ConcurrencyTool(4);
+        try {
+            // small sets often need multiple hash indexes
+            for (int size = 10; size < 300000; size = size * 5 / 2) {
+                HashSet<Long> set = RandomizedTest.createSet(size, 1);
+                // the result does not depend on the number of threads
+                assertArrayEquals(BDZ.generate(hash, set).toByteArray(),
+                        BDZ.generate(hash, set, pool).toByteArray());
+                assertArrayEquals(CompactBDZ.generate(hash, set).toByteArray(),
+                        CompactBDZ.generate(hash, set, pool).toByteArray());
+                assertArrayEquals(InterleavedBDZ.generate(hash, set).toByteArray(),
+                        InterleavedBDZ.generate(hash, set, pool).toByteArray());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void testInterleaved(int size) {
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        UniversalHash<Long> hash = new LongHash();
+        BitBuffer data = InterleavedBDZ.generate(hash, set);
+        int bitCount = (int) data.position();
+        data = new BitBuffer(data.toByteArray());
+        InterleavedBDZ<Long> bdz = InterleavedBDZ.load(hash, data);
+        assertEquals(bitCount, data.position());
+        BitSet test = new BitSet();
+        for (long x : set) {
+            int i = bdz.evaluate(x);
+            assertTrue(i >= 0 && i < size);
+            assertFalse(test.get(i));
+            test.set(i);
+        }
+        if (size > 10000) {
+            assertTrue(bitCount < 2.7 * size);
+        }
+    }
+
+    private static void testPerformanceInterleaved(int size) {
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        Long[] keys = set.toArray(new Long[0]);
+        UniversalHash<Long> hash = new LongHash();
+        BDZ<Long> bdz = BDZ.load(hash, new BitBuffer(
+                BDZ.generate(hash, set).toByteArray()));
+        CompactBDZ<Long> compact = CompactBDZ.load(hash, new BitBuffer(
+                CompactBDZ.generate(hash, set).toByteArray()));
+        InterleavedBDZ<Long> interleaved = InterleavedBDZ.load(hash, new BitBuffer(
+                InterleavedBDZ.generate(hash, set).toByteArray()));
+        for (int test = 0; test < 5; test++) {
+            long time = System.nanoTime();
+            long sum = 0;
+            for (Long x : keys) {
+                sum += bdz.evaluate(x);
+            }
+            long bdzTime = System.nanoTime() - time;
+            time = System.nanoTime();
+            for (Long x : keys) {
+                sum += compact.evaluate(x);
+            }
+            long compactTime = System.nanoTime() - time;
+            time = System.nanoTime();
+            for (Long x : keys) {
+                sum += interleaved.evaluate(x);
+            }
+            long interleavedTime = System.nanoTime() - time;
+            System.out.println("size " + size + " evaluate BDZ " + bdzTime / size +
+                    " compact " + compactTime / size +
+                    " interleaved " + interleavedTime / size + " ns/key dummy " + sum);
+        }
+    }
+
+    private static void testCompact(int size) {
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        UniversalHash<Long> hash = new LongHash();
+        BitBuffer data = CompactBDZ.generate(hash, set);
+        int bitCount = (int) data.position();
+        // the description is read from a buffer of the exact size
+        data = new BitBuffer(data.toByteArray());
+        CompactBDZ<Long> bdz = CompactBDZ.load(hash, data);
+        assertEquals(bitCount, data.position());
+        BitSet test = new BitSet();
+        for (long x : set) {
+            int i = bdz.evaluate(x);
+            assertTrue(i >= 0 && i < size);
+            assertFalse(test.get(i));
+            test.set(i);
+        }
+        if (size > 10000) {
+            assertTrue(bitCount < 2.7 * size);
+        }
+    }
+
     private static void testPerformance(int size) {
         HashSet<Long> set = RandomizedTest.createSet(size, 1);
         UniversalHash<Long> hash = new LongHash();
         BitBuffer data = BDZ.generate(hash, set);
-        int bitCount = data.position();
+        int bitCount = (int) data.position();
         data.seek(0);
         BDZ<Long> bdz = BDZ.load(hash, data);
         assertEquals(bitCount, data.position());
@@ -66,7 +194,7 @@ public class BDZTest {
         HashSet<Long> set = RandomizedTest.createSet(size, 1);
         UniversalHash<Long> hash = new LongHash();
         BitBuffer data = BDZ.generate(hash, set);
-        int bitCount = data.position();
+        int bitCount = (int) data.position();
         System.out.println("size " + size + " bits/key: " +
                 (double) bitCount / size);
         data.seek(0);
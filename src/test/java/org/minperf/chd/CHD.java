@@ -149,7 +149,7 @@ public class CHD<T> {
         int low = 0, high = targetLen - size - 1;
         while(low <= high) {
             int mid = (low + high) >>> 1;
-            int y = holes.get(mid);
+            int y = (int) holes.get(mid);
             if (y == x) {
                 return mid + 1;
             } else if (y < x) {
@@ -37,7 +37,7 @@ public class EliasFanoList {
         }
         bitsCount = last;
         buffer.writeEliasDelta(bitsCount + 1);
-        int bitsStart = buffer.position();
+        int bitsStart = (int) buffer.position();
         buffer.write(bits);
         EliasFanoMonotoneList borders = EliasFanoMonotoneList.generate(data, buffer);
         return new EliasFanoList(offset, buffer, bitsStart, borders);
@@ -46,7 +46,7 @@ public class EliasFanoList {
     public static EliasFanoList load(BitBuffer buffer) {
         int offset = (int) (buffer.readEliasDelta() - 1);
         int bitsCount = (int) (buffer.readEliasDelta() - 1);
-        int bitsStart = buffer.position();
+        int bitsStart = (int) buffer.position();
         buffer.seek(bitsStart + bitsCount);
         EliasFanoMonotoneList borders = EliasFanoMonotoneList.load(buffer);
         return new EliasFanoList(offset, buffer, bitsStart, borders);
@@ -17,7 +17,7 @@ public class EliasFanoListTest {
         for (int i = 0; i < list.length; i++) {
             assertEquals("" + i, list[i], elist.get(i));
         }
-        int len = buffer.position();
+        int len = (int) buffer.position();
         buffer.seek(0);
         elist = EliasFanoList.load(buffer);
         assertEquals(len, buffer.position());
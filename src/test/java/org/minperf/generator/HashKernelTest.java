@@ -0,0 +1,103 @@
+package org.minperf.generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test that the fastest available HashKernel returns the same results as the
+ * portable implementation.
+ */
+public class HashKernelTest {
+
+    private final HashKernel portable = HashKernel.getPortableInstance();
+    private final HashKernel kernel = HashKernel.getInstance();
+
+    public static void main(String... args) {
+        new HashKernelTest().testPerformance();
+    }
+
+    private void testPerformance() {
+        System.out.println("kernel: " + kernel);
+        long[] hashes = randomArray(1000, 1);
+        for (int test = 0; test < 5; test++) {
+            for (HashKernel k : new HashKernel[] { portable, kernel }) {
+                long time = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < 20000; i++) {
+                    sum += k.findLeaf(hashes, i % 900, 8, 1, 1 << 18);
+                }
+                time = System.nanoTime() - time;
+                System.out.println(k + " leaf: " + time / 20000 + " ns/leaf dummy " + sum);
+            }
+        }
+    }
+
+    @Test
+    public void testUniversalHash() {
+        long[] keys = randomArray(1000, 1);
+        for (int len : new int[] { 0, 1, 7, 8, 9, 100, 999 }) {
+            for (long index : new long[] { 0, 1, 123456789L }) {
+                long[] expected = new long[len + 3];
+                long[] got = new long[len + 3];
+                portable.universalHash(keys, 1, len, index, expected, 3);
+                kernel.universalHash(keys, 1, len, index, got, 3);
+                assertArrayEquals(expected, got);
+            }
+        }
+    }
+
+    @Test
+    public void testFindLeaf() {
+        Random r = new Random(1);
+        long[] hashes = randomArray(100, 2);
+        for (int size = 2; size <= 16; size++) {
+            for (int test = 0; test < 20; test++) {
+                int from = r.nextInt(100 - size);
+                long index = 1 + r.nextInt(1000);
+                // small ranges, so that often nothing is found
+                long end = index + r.nextInt(50);
+                assertEquals(portable.findLeaf(hashes, from, size, index, end),
+                        kernel.findLeaf(hashes, from, size, index, end));
+            }
+        }
+    }
+
+    @Test
+    public void testFindSplit() {
+        Random r = new Random(1);
+        long[] hashes = randomArray(3000, 3);
+        int[] count = new int[16];
+        for (int size = 10; size <= 2000; size = size * 3 / 2) {
+            for (int test = 0; test < 10; test++) {
+                int from = r.nextInt(3000 - size);
+                long index = 1 + r.nextInt(1000);
+                long end = index + r.nextInt(200);
+                int firstPart = 1 + r.nextInt(size - 1);
+                assertEquals(portable.findSplit(hashes, from, size, firstPart, index, end),
+                        kernel.findSplit(hashes, from, size, firstPart, index, end));
+                for (int split = 2; split <= 8; split++) {
+                    int partSize = size / split;
+                    int len = partSize * split;
+                    assertEquals(portable.findSplitEvenly(hashes, from, len, split, partSize,
+                                    index, end, count),
+                            kernel.findSplitEvenly(hashes, from, len, split, partSize,
+                                    index, end, count));
+                }
+            }
+        }
+    }
+
+    private static long[] randomArray(int len, int seed) {
+        Random r = new Random(seed);
+        long[] x = new long[len];
+        for (int i = 0; i < len; i++) {
+            x[i] = r.nextLong();
+        }
+        return x;
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.minperf.hem.recsplit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test that the fastest available FastLeafKernel returns the same results as
+ * the portable implementation.
+ */
+public class FastLeafKernelTest {
+
+    private final FastLeafKernel portable = FastLeafKernel.getPortableInstance();
+    private final FastLeafKernel kernel = FastLeafKernel.getInstance();
+
+    @Test
+    public void testFindFastLeaf() {
+        Random r = new Random(1);
+        long[] keys = new long[100];
+        Random k = new Random(4);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = k.nextLong();
+        }
+        for (int size = 2; size <= 6; size++) {
+            for (int test = 0; test < 100; test++) {
+                int start = r.nextInt(100 - size);
+                int index = r.nextInt(1000);
+                assertEquals(portable.findFastLeaf(keys, start, size, index),
+                        kernel.findFastLeaf(keys, start, size, index));
+            }
+        }
+    }
+
+}
@@ -1,20 +1,41 @@
 package org.minperf.hybrid;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 import org.minperf.BitBuffer;
+import org.minperf.Fallback;
 import org.minperf.RandomizedTest;
 import org.minperf.RecSplitBuilder;
 import org.minperf.RecSplitEvaluator;
 import org.minperf.Settings;
 import org.minperf.generator.ConcurrencyTool;
 import org.minperf.generator.Generator;
+import org.minperf.monotoneList.AlignedMonotoneList;
+import org.minperf.monotoneList.BucketDirectory;
+import org.minperf.monotoneList.MonotoneList;
 import org.minperf.universal.LongHash;
+import org.minperf.universal.StringHash;
 import org.minperf.universal.UniversalHash;
 
 /**
@@ -33,6 +54,451 @@ public class HybridTest {
         test(10000);
     }
 
+    @Test
+    public void testLongKeys() {
+        int size = 10000;
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        long[] keys = new long[size];
+        int j = 0;
+        for (long x : set) {
+            keys[j++] = x;
+        }
+        LongHash hash = new LongHash();
+        for (int averageBucketSize = 8; averageBucketSize <= 256; averageBucketSize *= 4) {
+            RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(averageBucketSize);
+            BitBuffer buffer = testBijection(builder, set);
+            // the description does not depend on how the keys are passed
+            assertArrayEquals(buffer.toByteArray(), builder.generate(keys).toByteArray());
+        }
+    }
+
+    @Test
+    public void testLeafRotation() {
+        HashSet<Long> set = RandomizedTest.createSet(5000, 1);
+        LongHash hash = new LongHash();
+        for (int leafSize = 2; leafSize <= 11; leafSize += 3) {
+            byte[][] data = new byte[2][];
+            for (boolean leafRotation : new boolean[] { false, true }) {
+                data[leafRotation ? 1 : 0] = testBijection(RecSplitBuilder.newInstance(hash).
+                        leafSize(leafSize).averageBucketSize(50).
+                        leafRotation(leafRotation), set).toByteArray();
+            }
+            // rotation results in different leaf indexes
+            assertFalse(Arrays.equals(data[0], data[1]));
+        }
+    }
+
+    /**
+     * Create a set where many keys are in the first bucket, so that it is
+     * overfull.
+     *
+     * @param size the number of keys
+     * @param averageBucketSize the average bucket size
+     * @return the set
+     */
+    private static HashSet<Long> createSkewedSet(int size, int averageBucketSize) {
+        int bucketCount = Settings.getBucketCount(size, averageBucketSize);
+        HashSet<Long> set = new HashSet<Long>();
+        for (long x = 0; set.size() < size / 10; x++) {
+            if (Settings.reduce((int) LongHash.universalHash(x, 0), bucketCount) == 0) {
+                set.add(x);
+            }
+        }
+        for (long x = -1; set.size() < size; x--) {
+            set.add(x);
+        }
+        return set;
+    }
+
+    @Test
+    public void testFallback() {
+        int size = 2000, averageBucketSize = 8;
+        HashSet<Long> set = createSkewedSet(size, averageBucketSize);
+        LongHash hash = new LongHash();
+        int[] types = { Fallback.BDZ, Fallback.COMPACT_BDZ, Fallback.RECSPLIT,
+                Fallback.INTERLEAVED_BDZ };
+        for (int type : types) {
+            BitBuffer buffer = RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(averageBucketSize).
+                    fallback(Fallback.getInstance(type)).generate(set);
+            buffer.seek(0);
+            buffer.readEliasDelta();
+            assertEquals(1, buffer.readBit());
+            assertEquals(type, buffer.readEliasDelta() - 1);
+            // the type is read from the header
+            buffer.seek(0);
+            assertBijection(RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(averageBucketSize).
+                    buildEvaluator(buffer), set);
+        }
+    }
+
+    @Test
+    public void testBucketDirectory() {
+        int size = 20000;
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        HashSet<Long> skewed = createSkewedSet(size, 8);
+        LongHash hash = new LongHash();
+        for (int averageBucketSize : new int[] { 8, 100, 1000 }) {
+            long[] bits = new long[2];
+            for (boolean directory : new boolean[] { false, true }) {
+                RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                        leafSize(8).averageBucketSize(averageBucketSize).
+                        bucketDirectory(directory);
+                BitBuffer buffer = testBijection(builder, set);
+                bits[directory ? 1 : 0] = buffer.position();
+                if (directory) {
+                    // the directory ends at a block boundary, relative to
+                    // the start of the description
+                    buffer.seek(0);
+                    RecSplitEvaluator<Long> evaluator = builder.buildEvaluator(buffer);
+                    long end = evaluator.getHeaderSize() + evaluator.getOffsetListSize();
+                    assertEquals(0, end % BucketDirectory.BLOCK_BITS);
+                }
+            }
+            // the directory needs more space: less than 16 bits per bucket,
+            // plus the padding
+            assertTrue(bits[1] > bits[0]);
+            assertTrue(bits[1] < bits[0] + 16 * size / averageBucketSize +
+                    2 * BucketDirectory.BLOCK_BITS);
+        }
+        // with an alternative that is aligned as well
+        for (int type : new int[] { Fallback.BDZ, Fallback.INTERLEAVED_BDZ }) {
+            testBijection(RecSplitBuilder.newInstance(hash).leafSize(8).
+                    averageBucketSize(8).bucketDirectory(true).
+                    fallback(Fallback.getInstance(type)), skewed);
+        }
+    }
+
+    @Test
+    public void testRecSplitFallbackWithBucketDirectory() {
+        // the fallback also uses the bucket directory, so its description
+        // needs to be aligned within the hash function description
+        HashSet<Long> skewed = createSkewedSet(20000, 8);
+        LongHash hash = new LongHash();
+        final long[] loadedAt = { -1 };
+        Fallback fallback = new Fallback.RecSplitFallback() {
+
+            @Override
+            public <T> Evaluator<T> load(UniversalHash<T> hash, BitBuffer data,
+                    Settings settings) {
+                loadedAt[0] = data.position();
+                return super.load(hash, data, settings);
+            }
+
+        };
+        testBijection(RecSplitBuilder.newInstance(hash).leafSize(8).
+                averageBucketSize(8).bucketDirectory(true).
+                fallback(fallback), skewed);
+        assertTrue(loadedAt[0] > 0);
+        assertEquals(0, loadedAt[0] % BucketDirectory.BLOCK_BITS);
+    }
+
+    @Test
+    public void testMonotoneListTypes() {
+        HashSet<Long> set = RandomizedTest.createSet(20000, 1);
+        LongHash hash = new LongHash();
+        for (int type : new int[] { MonotoneList.MULTI_STAGE, MonotoneList.ELIAS_FANO,
+                MonotoneList.PARTITIONED_ELIAS_FANO, MonotoneList.ALIGNED }) {
+            RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).leafSize(8).
+                    averageBucketSize(16).monotoneListType(type);
+            BitBuffer buffer = testBijection(builder, set);
+            if (type == MonotoneList.ALIGNED) {
+                // the blocks of the offset list end at a block boundary
+                // (followed by 64 bits of padding)
+                buffer.seek(0);
+                RecSplitEvaluator<Long> evaluator = builder.buildEvaluator(buffer);
+                long end = evaluator.getHeaderSize() + evaluator.getOffsetListSize();
+                assertEquals(0, (end - 64) % AlignedMonotoneList.BLOCK_BITS);
+            }
+        }
+    }
+
+    /**
+     * Generate a description, and check that it is a bijection (see
+     * assertBijection).
+     *
+     * @param builder the builder (with the options to test)
+     * @param set the keys
+     * @return the description, positioned at the end
+     */
+    private static <T> BitBuffer testBijection(RecSplitBuilder<T> builder, Collection<T> set) {
+        BitBuffer buffer = builder.generate(set);
+        long bitCount = buffer.position();
+        buffer.seek(0);
+        assertBijection(builder.buildEvaluator(buffer), set);
+        buffer.seek(bitCount);
+        return buffer;
+    }
+
+    /**
+     * Check that the evaluator maps the keys to distinct values from 0 to
+     * the number of keys - 1, and that evaluateBatch (and for long keys, the
+     * evaluate method for primitive keys) returns the same values.
+     *
+     * @param evaluator the evaluator
+     * @param set the keys
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void assertBijection(RecSplitEvaluator<T> evaluator, Collection<T> set) {
+        int size = set.size();
+        T[] keys = (T[]) set.toArray();
+        long[] batch = new long[size];
+        evaluator.evaluateBatch(keys, batch);
+        BitSet test = new BitSet();
+        for (int j = 0; j < size; j++) {
+            int i = (int) evaluator.evaluate(keys[j]);
+            assertEquals(batch[j], i);
+            if (keys[j] instanceof Long) {
+                assertEquals(evaluator.evaluate((long) (Long) keys[j]), i);
+            }
+            assertTrue(i >= 0 && i < size);
+            assertFalse(test.get(i));
+            test.set(i);
+        }
+    }
+
+    /**
+     * Get the size of the largest bucket of a description with Elias-Fano
+     * monotone lists.
+     *
+     * @param buffer the description
+     * @param averageBucketSize the average bucket size
+     * @return the size of the largest bucket
+     */
+    private static long getMaxBucketSize(BitBuffer buffer, int averageBucketSize) {
+        buffer.seek(0);
+        long size = buffer.readEliasDelta() - 1;
+        if (buffer.readBit() != 0) {
+            buffer.readEliasDelta();
+        }
+        long minOffsetDiff = buffer.readEliasDelta() - 1;
+        buffer.readEliasDelta();
+        MonotoneList offsetList = MonotoneList.load(buffer, MonotoneList.ELIAS_FANO);
+        int bucketCount = Settings.getBucketCount(size, averageBucketSize);
+        long max = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            long offset = offsetList.get(b) + b * minOffsetDiff;
+            long next = offsetList.get(b + 1) + (b + 1) * minOffsetDiff;
+            max = Math.max(max, next - offset);
+        }
+        return max;
+    }
+
+    @Test
+    public void testRebalanceBuckets() {
+        int size = 1000, averageBucketSize = 8;
+        HashSet<Long> set = createSkewedSet(size, averageBucketSize);
+        long[] longKeys = new long[size];
+        int j = 0;
+        for (long x : set) {
+            longKeys[j++] = x;
+        }
+        LongHash hash = new LongHash();
+        for (boolean rebalance : new boolean[] { false, true }) {
+            RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(averageBucketSize).
+                    rebalanceBuckets(rebalance);
+            BitBuffer buffer = testBijection(builder, set);
+            assertArrayEquals(buffer.toByteArray(), builder.generate(longKeys).toByteArray());
+            buffer.seek(0);
+            buffer.readEliasDelta();
+            // whether the alternative algorithm is used
+            assertEquals(rebalance ? 0 : 1, buffer.readBit());
+            if (rebalance) {
+                // the first bucket had size / 10 keys; afterwards, no bucket
+                // is larger than the maximum
+                long max = getMaxBucketSize(buffer, averageBucketSize);
+                assertTrue(max < size / 10);
+                assertTrue(max <= averageBucketSize * Generator.MAX_FILL);
+            }
+        }
+        try {
+            RecSplitBuilder.newInstance(hash).leafSize(8).
+                    averageBucketSize(averageBucketSize).rebalanceBuckets(true).
+                    maxChunkSize(100).generate(set);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRebalanceCascade() {
+        // with index -1, all keys of the overfull bucket are moved to the
+        // same bucket, which is then overfull as well and is redirected, so
+        // that its keys (including those that were moved there) continue
+        // with index -2
+        int size = 1000, averageBucketSize = 8;
+        HashSet<Long> set = createSkewedSet(size, averageBucketSize);
+        UniversalHash<Long> hash = new UniversalHash<Long>() {
+
+            @Override
+            public long universalHash(Long key, long index) {
+                return index == -1 ? 12345 : LongHash.universalHash((long) key, index);
+            }
+
+        };
+        BitBuffer buffer = testBijection(RecSplitBuilder.newInstance(hash).
+                leafSize(8).averageBucketSize(averageBucketSize).
+                rebalanceBuckets(true), set);
+        assertTrue(getMaxBucketSize(buffer, averageBucketSize) <=
+                averageBucketSize * Generator.MAX_FILL);
+    }
+
+    @Test
+    public void testParallel() {
+        HashSet<Long> set = RandomizedTest.createSet(100000, 1);
+        LongHash hash = new LongHash();
+        byte[] expected = RecSplitBuilder.newInstance(hash).leafSize(8).
+                averageBucketSize(8).parallelism(1).generate(set).toByteArray();
+        for (int parallelism = 2; parallelism <= 8; parallelism *= 2) {
+            byte[] got = RecSplitBuilder.newInstance(hash).leafSize(8).
+                    averageBucketSize(8).parallelism(parallelism).generate(set).toByteArray();
+            assertArrayEquals(expected, got);
+        }
+    }
+
+    @Test
+    public void testSharedPool() {
+        HashSet<Long> set = RandomizedTest.createSet(20000, 1);
+        LongHash hash = new LongHash();
+        byte[] expected = RecSplitBuilder.newInstance(hash).leafSize(8).
+                averageBucketSize(100).parallelism(1).generate(set).toByteArray();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                    leafSize(8).averageBucketSize(100).pool(pool);
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(expected, builder.generate(set).toByteArray());
+                // the pool is not shut down by the builder
+                assertFalse(pool.isShutdown());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedExecutor() {
+        // a small executor that is shared by all nested parallel operations
+        // (the bucket tasks, and the search within a large bucket)
+        HashSet<Long> set = RandomizedTest.createSet(20000, 1);
+        LongHash hash = new LongHash();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int bucketSize : new int[] { 100, 8000 }) {
+                byte[] expected = RecSplitBuilder.newInstance(hash).leafSize(8).
+                        averageBucketSize(bucketSize).parallelism(1).generate(set).toByteArray();
+                RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                        leafSize(8).averageBucketSize(bucketSize).
+                        parallelism(4).pool(executor);
+                assertArrayEquals(expected, builder.generate(set).toByteArray());
+                assertFalse(executor.isShutdown());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelSearch() {
+        // large leaves and buckets, where the search for a single leaf or
+        // split is run in parallel
+        HashSet<Long> set = RandomizedTest.createSet(4000, 1);
+        LongHash hash = new LongHash();
+        int[][] configs = { { 12, 100 }, { 16, 100 }, { 8, 8000 } };
+        for (int[] c : configs) {
+            for (boolean rotation : new boolean[] { false, true }) {
+                if (c[0] == 16 && !rotation) {
+                    // too slow
+                    continue;
+                }
+                byte[] expected = RecSplitBuilder.newInstance(hash).leafSize(c[0]).
+                        averageBucketSize(c[1]).leafRotation(rotation).
+                        parallelism(1).generate(set).toByteArray();
+                byte[] got = RecSplitBuilder.newInstance(hash).leafSize(c[0]).
+                        averageBucketSize(c[1]).leafRotation(rotation).
+                        parallelism(4).generate(set).toByteArray();
+                assertArrayEquals(expected, got);
+            }
+        }
+    }
+
+    @Test
+    public void testSignatures() {
+        int size = 20000;
+        HashSet<String> set = new HashSet<String>();
+        for (int i = 0; i < size; i++) {
+            set.add("key " + i);
+        }
+        RecSplitBuilder<String> builder = RecSplitBuilder.newInstance(new StringHash()).
+                leafSize(8).averageBucketSize(100).signatures(true);
+        BitBuffer buffer = builder.generate(set);
+        // chunk mode (using temporary files) results in the same description
+        BitBuffer buffer2 = RecSplitBuilder.newInstance(new StringHash()).
+                leafSize(8).averageBucketSize(100).signatures(true).
+                maxChunkSize(2000).generate(set);
+        assertArrayEquals(buffer.toByteArray(), buffer2.toByteArray());
+        buffer.seek(0);
+        assertBijection(builder.buildEvaluator(buffer), set);
+    }
+
+    @Test
+    public void testMapped() throws IOException {
+        int size = 10000;
+        HashSet<Long> set = RandomizedTest.createSet(size, 1);
+        LongHash hash = new LongHash();
+        RecSplitBuilder<Long> builder = RecSplitBuilder.newInstance(hash).
+                leafSize(8).averageBucketSize(8);
+        BitBuffer buffer = builder.generate(set);
+        byte[] data = buffer.toByteArray();
+        File f = File.createTempFile("mphf", ".bin");
+        try {
+            OutputStream out = new FileOutputStream(f);
+            try {
+                buffer.writeTo(out);
+            } finally {
+                out.close();
+            }
+            assertArrayEquals(data, Files.readAllBytes(f.toPath()));
+            BitBuffer mapped = BitBuffer.map(f.toPath());
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            RecSplitEvaluator<Long> expected = builder.buildEvaluator(new BitBuffer(data));
+            RecSplitEvaluator<Long> evaluator = builder.buildEvaluator(mapped);
+            RecSplitEvaluator<Long> evaluator2 = builder.buildEvaluator(new BitBuffer(direct));
+            for (long x : set) {
+                int i = (int) expected.evaluate(x);
+                assertEquals(i, evaluator.evaluate(x));
+                assertEquals(i, evaluator2.evaluate(x));
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testWriteTo() throws IOException {
+        // multiple blocks, and an incomplete last word
+        Random r = new Random(1);
+        BitBuffer buffer = new BitBuffer(1_000_000);
+        for (int i = 0; i < 1_000_000 / 64; i++) {
+            buffer.writeNumber(r.nextLong() >>> 1, 63);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertArrayEquals(buffer.toByteArray(), out.toByteArray());
+        try {
+            new BitBuffer(64L * Integer.MAX_VALUE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     private static void test(int size) {
         HashSet<Long> set = RandomizedTest.createSet(size, 1);
         UniversalHash<Long> hash = new LongHash();
@@ -48,11 +514,11 @@ public class HybridTest {
             generator = new Generator<Long>(pool, hash, settings, true,
                     Integer.MAX_VALUE);
             BitBuffer buffer0 = generator.generate(set);
-            int bitCount0 = buffer0.position();
+            int bitCount0 = (int) buffer0.position();
 
             BitBuffer buffer2 = RecSplitBuilder.newInstance(hash)
                     .leafSize(leafSize).averageBucketSize(averageBucketSize).generate(set);
-            int bitCount2 = buffer2.position();
+            int bitCount2 = (int) buffer2.position();
 
             System.out.println("size " + size + " averageBucketSize " + averageBucketSize +
                     " hybrid " + (double) bitCount0 / size +
@@ -75,13 +541,7 @@ public class HybridTest {
             buffer0.seek(0);
             RecSplitEvaluator<Long> evaluator = new RecSplitEvaluator<Long>(buffer0, hash, settings, true);
 
-            BitSet test = new BitSet();
-            for (long x : set) {
-                int i = evaluator.evaluate(x);
-                assertTrue(i >= 0 && i < size);
-                assertFalse(test.get(i));
-                test.set(i);
-            }
+            assertBijection(evaluator, set);
 
             time = System.nanoTime();
             sum = 0;
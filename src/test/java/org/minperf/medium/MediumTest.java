@@ -35,22 +35,22 @@ public class MediumTest {
                 int[] description = gen.generate(set);
 
                 BitBuffer buff = compressBucketData(settings, true, true, description);
-                int bitCountMonotone = buff.position();
+                int bitCountMonotone = (int) buff.position();
                 buff.seek(0);
                 int[] d2 = expandBucketData(settings, true, buff);
                 Assert.assertEquals(description.length, d2.length);
                 Assert.assertArrayEquals(description, d2);
                 buff = compressBucketData(settings, true, false, description);
-                int bitCountMonotoneMin = buff.position();
+                int bitCountMonotoneMin = (int) buff.position();
 
                 buff = compressBucketData(settings, false, true, description);
-                int bitCountList = buff.position();
+                int bitCountList = (int) buff.position();
                 buff.seek(0);
                 d2 = expandBucketData(settings, false, buff);
                 Assert.assertEquals(description.length, d2.length);
                 Assert.assertArrayEquals(description, d2);
                 buff = compressBucketData(settings, false, false, description);
-                int bitCountListMin = buff.position();
+                int bitCountListMin = (int) buff.position();
 
                 double efMonotone= (double) bitCountMonotone / size;
                 double efList = (double) bitCountList / size;
@@ -101,15 +101,15 @@ public class MediumTest {
         EliasFanoMonotoneList bucketStartList = EliasFanoMonotoneList.load(buff);
         EliasFanoMonotoneList bucketOffsetsList = EliasFanoMonotoneList.load(buff);
         for (int i = 0; i < bucketCount; i++) {
-            description[1 + i] = bucketStartList.get(i);
-            description[1 + bucketCount + i] = bucketOffsetsList.get(i);
+            description[1 + i] = (int) bucketStartList.get(i);
+            description[1 + bucketCount + i] = (int) bucketOffsetsList.get(i);
         }
         int bucketPos = 1 + 2 * bucketCount;
         int[] bucketData = new int[description.length - bucketPos];
         if (monotone) {
             EliasFanoMonotoneList l = EliasFanoMonotoneList.load(buff);
             for (int i = 0; i < bucketData.length; i++) {
-                bucketData[i] = l.get(i) - (i == 0 ? 0 : l.get(i - 1));
+                bucketData[i] = (int) (l.get(i) - (i == 0 ? 0 : l.get(i - 1)));
             }
         } else {
             EliasFanoList l = EliasFanoList.load(buff);
@@ -48,7 +48,7 @@ public class FenwickTreeMonotoneList extends MonotoneList {
     }
 
     @Override
-    public int get(int i) {
+    public long get(int i) {
         return sum(array, i);
     }
 
@@ -1,6 +1,7 @@
 package org.minperf.monotoneList;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 
@@ -12,6 +13,11 @@ import org.minperf.BitBuffer;
  */
 public class MonotoneListTest {
 
+    private static final int TYPE_COUNT = 4;
+
+    private static final String[] TYPE_NAMES = { "fast", "elias-fano", "partitioned",
+            "aligned" };
+
     public static void main(String... args) {
         testPerformance();
         testPerformance();
@@ -19,12 +25,46 @@ public class MonotoneListTest {
         testBestSize(100, 8, true);
         testBestSize(100, 8, false);
         new MonotoneListTest().testSaving();
+        for (int i = 0; i < 3; i++) {
+            testRangePerformance();
+        }
+    }
+
+    private static void testRangePerformance() {
+        int bucketSize = 16, size = 10000000;
+        int bucketCount = size / bucketSize;
+        long[] values = MonotoneList.toLongArray(posList(randomSizes(size, bucketCount)));
+        long[] out = new long[bucketCount];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            BitBuffer buffer = new BitBuffer(1000 + 100L * size);
+            MonotoneList list = MonotoneList.generate(values, buffer, type);
+            long dummy = 0;
+            long time = System.nanoTime();
+            for (int i = 0; i < bucketCount; i++) {
+                dummy += list.get(i);
+            }
+            long getTime = System.nanoTime() - time;
+            time = System.nanoTime();
+            list.getRange(0, bucketCount, out);
+            long rangeTime = System.nanoTime() - time;
+            time = System.nanoTime();
+            MonotoneList.Cursor cursor = list.cursor(0);
+            for (int i = 0; i < bucketCount; i++) {
+                dummy += cursor.next();
+            }
+            long cursorTime = System.nanoTime() - time;
+            System.out.println(TYPE_NAMES[type] + " sequential get " +
+                    getTime / bucketCount + " ns/key, getRange " +
+                    rangeTime / bucketCount + " ns/key, cursor " +
+                    cursorTime / bucketCount + " ns/key dummy " + (dummy + out[bucketCount - 1]));
+        }
     }
 
     private static void testPerformance() {
         int bucketSize = 16, size = 1000000;
-        test(bucketSize, size, false);
-        test(bucketSize, size, true);
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            test(bucketSize, size, type);
+        }
     }
 
     @Test
@@ -32,8 +72,176 @@ public class MonotoneListTest {
         for (int bucketSize = 8; bucketSize < 256; bucketSize *= 2) {
             for (int size = 100; size <= 1000000; size *= 10) {
                 if (size >= bucketSize) {
-                    test(bucketSize, size, true);
-                    test(bucketSize, size, false);
+                    for (int type = 0; type < TYPE_COUNT; type++) {
+                        test(bucketSize, size, type);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLargeValues() {
+        Random r = new Random(1);
+        for (long start : new long[] { 0, 1L << 31, 5_000_000_000L, 1L << 40 }) {
+            for (int gap : new int[] { 1, 100, 100_000 }) {
+                int len = 10000;
+                long[] data = new long[len];
+                data[0] = start;
+                for (int i = 1; i < len; i++) {
+                    data[i] = data[i - 1] + r.nextInt(2 * gap);
+                }
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    BitBuffer buffer = new BitBuffer(100L * len + 1000);
+                    MonotoneList.generate(data, buffer, type);
+                    assertEquals(MonotoneList.getSize(data, type), buffer.position());
+                    long bitCount = buffer.position();
+                    buffer.seek(0);
+                    MonotoneList list = MonotoneList.load(buffer, type);
+                    assertEquals(bitCount, buffer.position());
+                    for (int i = 0; i < len; i++) {
+                        assertEquals("i: " + i, data[i], list.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPartitioned() {
+        Random r = new Random(1);
+        for (int len : new int[] { 1, 2, 127, 128, 129, 1000, 100000 }) {
+            // uneven gaps: a dense region, and a sparse region
+            long[] data = new long[len];
+            for (int i = 1; i < len; i++) {
+                int gap = (i / 1000) % 2 == 0 ? 4 : 4000;
+                data[i] = data[i - 1] + r.nextInt(gap);
+            }
+            long[] sizes = new long[TYPE_COUNT];
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                BitBuffer buffer = new BitBuffer(100L * len + 1000);
+                MonotoneList list = MonotoneList.generate(data, buffer, type);
+                sizes[type] = buffer.position();
+                assertEquals(MonotoneList.getSize(data, type), sizes[type]);
+                buffer.seek(0);
+                MonotoneList list2 = MonotoneList.load(buffer, type);
+                assertEquals(sizes[type], buffer.position());
+                for (int i = 0; i < len; i++) {
+                    assertEquals(data[i], list.get(i));
+                    assertEquals(data[i], list2.get(i));
+                    if (i < len - 1) {
+                        assertEquals((data[i] << 32) | data[i + 1], list2.getPair(i));
+                    }
+                }
+            }
+            if (len >= 100000) {
+                // per-partition low bits help with uneven gaps
+                assertTrue(sizes[MonotoneList.PARTITIONED_ELIAS_FANO] <
+                        sizes[MonotoneList.ELIAS_FANO]);
+            }
+        }
+    }
+
+    @Test
+    public void testBucketDirectory() {
+        Random r = new Random(1);
+        for (int len : new int[] { 1, 2, 3, 100, 10000 }) {
+            for (int gap : new int[] { 1, 100, 100_000 }) {
+                long[] offsets = new long[len];
+                long[] starts = new long[len];
+                for (int i = 1; i < len; i++) {
+                    offsets[i] = offsets[i - 1] + r.nextInt(2 * gap);
+                    starts[i] = starts[i - 1] + r.nextInt(10 * gap);
+                }
+                int origin = -r.nextInt(1000);
+                BitBuffer buffer = new BitBuffer(1000L * len + 10000);
+                BucketDirectory.generate(offsets, starts, buffer, origin);
+                long bitCount = buffer.position();
+                // the blocks are aligned relative to the origin
+                assertEquals(0, (bitCount - origin) % BucketDirectory.BLOCK_BITS);
+                buffer.seek(0);
+                BucketDirectory dir = BucketDirectory.load(buffer, origin);
+                assertEquals(bitCount, buffer.position());
+                MonotoneList offsetList = dir.getList0();
+                MonotoneList startList = dir.getList1();
+                for (int i = 0; i < len; i++) {
+                    assertEquals(offsets[i], offsetList.get(i));
+                    assertEquals(starts[i], startList.get(i));
+                    if (i < len - 1 && offsets[len - 1] <= Integer.MAX_VALUE) {
+                        assertEquals((offsets[i] << 32) | offsets[i + 1],
+                                offsetList.getPair(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAlignedOrigin() {
+        Random r = new Random(1);
+        for (int len : new int[] { 1, 2, 3, 100, 10000 }) {
+            long[] data = new long[len];
+            for (int i = 1; i < len; i++) {
+                data[i] = data[i - 1] + r.nextInt(200);
+            }
+            long size = MonotoneList.getSize(data, MonotoneList.ALIGNED);
+            for (int test = 0; test < 10; test++) {
+                // the list starts after other data
+                int skip = r.nextInt(1000);
+                int origin = -r.nextInt(1000);
+                BitBuffer buffer = new BitBuffer(100L * len + 10000);
+                buffer.seek(skip);
+                MonotoneList.generate(data, buffer, MonotoneList.ALIGNED, origin);
+                long end = buffer.position();
+                // the blocks are aligned relative to the origin, and followed
+                // by 64 bits of padding
+                assertEquals(0, (end - 64 - origin) % AlignedMonotoneList.BLOCK_BITS);
+                assertTrue(end - skip <= size + AlignedMonotoneList.BLOCK_BITS);
+                if ((skip - origin) % AlignedMonotoneList.BLOCK_BITS == 0) {
+                    assertEquals(size, end - skip);
+                }
+                buffer.seek(skip);
+                MonotoneList list = MonotoneList.load(buffer, MonotoneList.ALIGNED, origin);
+                assertEquals(end, buffer.position());
+                for (int i = 0; i < len; i++) {
+                    assertEquals(data[i], list.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRange() {
+        Random r = new Random(1);
+        for (int len : new int[] { 1, 2, 63, 64, 65, 1000, 100000 }) {
+            for (int gap : new int[] { 1, 100, 100_000 }) {
+                long[] data = new long[len];
+                for (int i = 1; i < len; i++) {
+                    data[i] = data[i - 1] + r.nextInt(2 * gap);
+                }
+                // values larger than 2^31 are included
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    BitBuffer buffer = new BitBuffer(100L * len + 1000);
+                    MonotoneList.generate(data, buffer, type);
+                    buffer.seek(0);
+                    MonotoneList list = MonotoneList.load(buffer, type);
+                    long[] out = new long[len];
+                    list.getRange(0, len, out);
+                    MonotoneList.Cursor cursor = list.cursor(0);
+                    for (int i = 0; i < len; i++) {
+                        assertEquals(data[i], out[i]);
+                        assertEquals(data[i], cursor.next());
+                    }
+                    for (int test = 0; test < 20; test++) {
+                        int from = r.nextInt(len);
+                        int to = from + r.nextInt(len - from + 1);
+                        list.getRange(from, to, out);
+                        cursor = list.cursor(from);
+                        for (int i = from; i < to; i++) {
+                            assertEquals(data[i], out[i - from]);
+                            assertEquals(data[i], cursor.next());
+                        }
+                    }
                 }
             }
         }
@@ -43,8 +251,9 @@ public class MonotoneListTest {
         for (int bucketSize = 8; bucketSize < 256; bucketSize *= 2) {
             for (int size = 100; size <= 100000000; size *= 10) {
                 if (size >= bucketSize) {
-                    test(bucketSize, size, true);
-                    test(bucketSize, size, false);
+                    for (int type = 0; type < TYPE_COUNT; type++) {
+                        test(bucketSize, size, type);
+                    }
                 }
             }
         }
@@ -59,7 +268,7 @@ public class MonotoneListTest {
         BitBuffer buffer = new BitBuffer(100 * bucketCount);
         MonotoneList.generate(posList, buffer, eliasFano);
         assertEquals(MonotoneList.getSize(posList, eliasFano), buffer.position());
-        int len2 = buffer.position();
+        int len2 = (int) buffer.position();
         for (int shift1 = 2; shift1 <= 16; shift1++) {
             for (int shift2 = 1; shift2 <= shift1; shift2++) {
                 for (int factor1 = 4; factor1 < 256; factor1 *= 2) {
@@ -74,7 +283,7 @@ public class MonotoneListTest {
                         for (int i = 0; i < posList.length; i++) {
                             assertEquals("i:" + i, posList[i], list.get(i));
                         }
-                        int len = buffer.position();
+                        int len = (int) buffer.position();
                         if (len < bestLen) {
                             best = "    shift " + shift1 + "/" + shift2 +
                                             " factor " +
@@ -89,7 +298,7 @@ public class MonotoneListTest {
         System.out.println(size + " " + best + " " + len2);
     }
 
-    private static void test(int bucketSize, int size, boolean eliasFano) {
+    private static void test(int bucketSize, int size, int type) {
         int bucketCount = size / bucketSize;
         int[] sizes = randomSizes(size, bucketCount);
         int[] posList = posList(sizes);
@@ -105,28 +314,29 @@ public class MonotoneListTest {
             assertEquals(posList[i], posList2[i] + i * diff);
         }
         BitBuffer buffer = new BitBuffer(1000 + 100 * size);
-        MonotoneList list = MonotoneList.generate(posList2, buffer, eliasFano);
-        assertEquals(MonotoneList.getSize(posList2, eliasFano), buffer.position());
-        int bitCount = buffer.position();
+        long[] values = MonotoneList.toLongArray(posList2);
+        MonotoneList list = MonotoneList.generate(values, buffer, type);
+        assertEquals(MonotoneList.getSize(values, type), buffer.position());
+        int bitCount = (int) buffer.position();
         double oldBits = (double) (entryBits * bucketCount) / size;
         double newBits =  (double) bitCount / size;
         System.out.println("bucketSize " + bucketSize + " bucketCount " + bucketCount
                 + " old " + oldBits + " (" + entryBits + "*" + bucketCount + ") new " + newBits
-                + " saving " + (oldBits - newBits) + " " + (eliasFano ? "elias-fano" : "fast"));
+                + " saving " + (oldBits - newBits) + " " + TYPE_NAMES[type]);
         for (int i = 0; i < bucketCount; i++) {
             assertEquals("i: " + i, posList2[i], list.get(i));
         }
         buffer.seek(0);
-        list = MonotoneList.load(buffer, eliasFano);
+        list = MonotoneList.load(buffer, type);
         buffer.seek(0);
-        MonotoneList list2 = MonotoneList.load(buffer, eliasFano);
+        MonotoneList list2 = MonotoneList.load(buffer, type);
         assertEquals(bitCount, buffer.position());
         for (int i = 0; i < bucketCount; i++) {
             assertEquals(posList2[i], list.get(i));
         }
         for (int i = 0; i < bucketCount - 1; i++) {
-            int a = list.get(i);
-            int b = list.get(i + 1);
+            int a = (int) list.get(i);
+            int b = (int) list.get(i + 1);
             long ab = list.getPair(i);
             assertEquals(((long) a << 32) + b, ab);
         }
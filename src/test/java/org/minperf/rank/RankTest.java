@@ -18,6 +18,40 @@ public class RankTest {
 
     public static void main(String... args) {
         new RankTest().test();
+        for (int i = 0; i < 3; i++) {
+            for (int percent : new int[] { 1, 10, 50, 80 }) {
+                testPerformance(10_000_000, percent);
+            }
+        }
+    }
+
+    private static void testPerformance(int size, int percent) {
+        BitSet set = new BitSet();
+        Random r = new Random(1);
+        for (int i = 0; i < size; i++) {
+            if (r.nextInt(100) < percent) {
+                set.set(i);
+            }
+        }
+        int ones = set.cardinality();
+        int[] queries = new int[1 << 20];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = r.nextInt(ones);
+        }
+        for (boolean samples : new boolean[] { false, true }) {
+            BitBuffer buffer = new BitBuffer(3L * size + 1000);
+            VerySimpleRank rank = VerySimpleRank.generate(set, buffer, samples);
+            long bits = buffer.position();
+            long time = System.nanoTime();
+            long dummy = 0;
+            for (int x : queries) {
+                dummy += rank.select(x);
+            }
+            time = System.nanoTime() - time;
+            System.out.println("size " + size + " " + percent + "% ones, samples " + samples +
+                    " bits/bit " + (double) bits / size +
+                    " select " + time / queries.length + " ns dummy " + dummy);
+        }
     }
 
     @Test
@@ -45,16 +79,19 @@ public class RankTest {
     }
 
     private static void test(int size) {
-        testFull(size);
-        testRandom(size);
-        testEmpty(size);
+        for (boolean samples : new boolean[] { false, true }) {
+            testFull(size, samples);
+            testRandom(size, samples);
+            testSparse(size, samples);
+            testEmpty(size, samples);
+        }
     }
 
-    private static void testEmpty(int size) {
+    private static void testEmpty(int size, boolean samples) {
         BitSet set = new BitSet();
         set.set(0, size, false);
         BitBuffer buffer = new BitBuffer(100 + size * 2);
-        VerySimpleRank rank = VerySimpleRank.generate(set, buffer);
+        VerySimpleRank rank = VerySimpleRank.generate(set, buffer, samples);
         rank = reopen(rank, buffer);
         assertEquals(0, rank.rank(0));
         for (int j = 0; j < size; j++) {
@@ -63,7 +100,7 @@ public class RankTest {
         assertEquals(-1, rank.select(1));
     }
 
-    private static void testRandom(int size) {
+    private static void testRandom(int size, boolean samples) {
         BitSet set = new BitSet();
         Random r = new Random(size);
         for (int i = 0; i < size / 10; i++) {
@@ -76,7 +113,7 @@ public class RankTest {
             }
         }
         BitBuffer buffer = new BitBuffer(100 + size * 2);
-        VerySimpleRank rank = VerySimpleRank.generate(set, buffer);
+        VerySimpleRank rank = VerySimpleRank.generate(set, buffer, samples);
         rank = reopen(rank, buffer);
         assertEquals(0, rank.rank(0));
         int x = 0;
@@ -92,11 +129,31 @@ public class RankTest {
         }
     }
 
-    private static void testFull(int size) {
+    private static void testSparse(int size, boolean samples) {
+        // some regions are dense, and others are empty, so that some select
+        // samples are far apart
+        BitSet set = new BitSet();
+        Random r = new Random(size);
+        for (int i = 0; i < size; i++) {
+            if ((i / 3000) % 2 == 0 && r.nextInt(4) == 0) {
+                set.set(i);
+            }
+        }
+        BitBuffer buffer = new BitBuffer(100 + size * 2);
+        VerySimpleRank rank = VerySimpleRank.generate(set, buffer, samples);
+        rank = reopen(rank, buffer);
+        int x = 0;
+        for (int j = set.nextSetBit(0); j >= 0; j = set.nextSetBit(j + 1)) {
+            assertEquals(j, rank.select(x++));
+        }
+        assertEquals(-1, rank.select(x));
+    }
+
+    private static void testFull(int size, boolean samples) {
         BitSet set = new BitSet();
         set.set(0, size, true);
         BitBuffer buffer = new BitBuffer(100 + size * 2);
-        VerySimpleRank rank = VerySimpleRank.generate(set, buffer);
+        VerySimpleRank rank = VerySimpleRank.generate(set, buffer, samples);
         rank = reopen(rank, buffer);
         assertEquals(0, rank.rank(0));
         for (int j = 1; j < size; j++) {
@@ -106,7 +163,7 @@ public class RankTest {
     }
 
     private static VerySimpleRank reopen(VerySimpleRank rank, BitBuffer buffer) {
-        int bitsUsed = buffer.position();
+        int bitsUsed = (int) buffer.position();
         int size = rank.getSize();
         BitBuffer b2 = new BitBuffer(bitsUsed);
         b2.write(buffer);
@@ -109,19 +109,19 @@ public class SelectTest {
         }
         BitBuffer buffer = new BitBuffer(10000 + 10 * set.size());
         Select select = Select.generate(set, buffer);
-        int p1 = buffer.position();
+        int p1 = (int) buffer.position();
         assertEquals(p1, Select.getSize(set));
         buffer.seek(0);
         select = Select.load(buffer);
-        int p2 = buffer.position();
+        int p2 = (int) buffer.position();
         assertEquals(p1, p2);
 
         BitBuffer buffer2 = new BitBuffer(10000 + 10 * set.size());
         VerySimpleRank rank = VerySimpleRank.generate(set, buffer2);
-        p1 = buffer.position();
+        p1 = (int) buffer.position();
         buffer2.seek(0);
         rank = VerySimpleRank.load(buffer2);
-        p2 = buffer.position();
+        p2 = (int) buffer.position();
         assertEquals(p1, p2);
 
         for (int i = 0, j = 0; i < set.length(); i++) {
@@ -141,6 +141,19 @@ public class SelectTest {
             assertEquals(x1, x12 >>> 32);
             assertEquals(x2, (int) x12);
         }
+        long[] out = new long[cardinality];
+        for (int test = 0; test < 10 && cardinality > 0; test++) {
+            int from = test == 0 ? 0 : r.nextInt(cardinality);
+            int to = test == 0 ? cardinality : from + r.nextInt(cardinality - from + 1);
+            select.selectRange(from, to, out);
+            Select.Cursor cursor = select.cursor(from);
+            for (int j = from; j < to; j++) {
+                assertEquals(select.select(j), out[j - from]);
+                assertEquals(select.select(j), cursor.next());
+            }
+        }
+        Select.Cursor cursor = select.cursor(cardinality);
+        assertEquals(-1, cursor.next());
     }
 
     private static void testPerformance() {
@@ -169,7 +182,7 @@ public class SelectTest {
         // System.out.println("set: " + set);
         BitBuffer buffer = new BitBuffer(10 * set.size());
         Select select = Select.generate(set, buffer);
-        int bitCount = buffer.position();
+        int bitCount = (int) buffer.position();
         assertEquals(bitCount, Select.getSize(set));
         System.out.println("bits/key fast: " + ((double) bitCount / size));
         long time;
@@ -195,9 +208,17 @@ public class SelectTest {
         time = System.nanoTime() - time;
         System.out.println("time: " + (time / 10 / set.length()));
 
+        long[] out = new long[set.cardinality()];
+        time = System.nanoTime();
+        for (int k = 0; k < 10; k++) {
+            select.selectRange(0, out.length, out);
+        }
+        time = System.nanoTime() - time;
+        System.out.println("selectRange time: " + (time / 10 / set.length()));
+
         buffer = new BitBuffer(10 * set.size());
         VerySimpleRank rank = VerySimpleRank.generate(set, buffer);
-        bitCount = buffer.position();
+        bitCount = (int) buffer.position();
         System.out.println("bits/key rank: " + ((double) bitCount / size));
         time = System.nanoTime();
         for (int k = 0; k < 10; k++) {
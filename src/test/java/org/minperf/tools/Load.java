@@ -43,7 +43,7 @@ public class Load {
             long start = System.nanoTime();
             BitSet set = new BitSet();
             for (int i = 0; i < n; i++) {
-                int x = eval.evaluate((long) i);
+                int x = (int) eval.evaluate((long) i);
                 if (set.get(x)) {
                     throw new AssertionError("duplicate key: " + i);
                 }
@@ -0,0 +1,94 @@
+package org.minperf.universal;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.minperf.Settings;
+import org.minperf.utils.Text;
+
+/**
+ * Test the contract of the universal hash implementations for the negative
+ * indexes that are used for bucket rebalancing: the values are independent
+ * of the values of other indexes.
+ */
+public class UniversalHashTest {
+
+    private static final int KEYS = 100000;
+    private static final int BUCKETS = 100;
+
+    @Test
+    public void testLongHash() {
+        LongHash hash = new LongHash();
+        Long[] keys = new Long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = (long) i;
+        }
+        testNegativeIndexes(hash, keys);
+    }
+
+    @Test
+    public void testStringHash() {
+        StringHash hash = new StringHash();
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "k" + i;
+        }
+        testNegativeIndexes(hash, keys);
+    }
+
+    @Test
+    public void testSignatureHash() {
+        SignatureHash hash = new SignatureHash();
+        Signature[] keys = new Signature[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Signature(LongHash.universalHash(i, 0), i);
+        }
+        testNegativeIndexes(hash, keys);
+    }
+
+    @Test
+    public void testTextHash() {
+        Text.UniversalTextHash hash = new Text.UniversalTextHash();
+        Text[] keys = new Text[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            byte[] data = ("k" + i).getBytes(StandardCharsets.UTF_8);
+            keys[i] = new Text(data, 0, data.length);
+        }
+        testNegativeIndexes(hash, keys);
+    }
+
+    private static <T> void testNegativeIndexes(UniversalHash<T> hash, T[] keys) {
+        long[] indexes = { -1, -2, -3 };
+        long[] others = { 0, 1, 2, 3 };
+        for (long index : indexes) {
+            int[] counts = new int[BUCKETS];
+            int same = 0;
+            for (T key : keys) {
+                long h = hash.universalHash(key, index);
+                // the same value is returned each time
+                assertTrue(h == hash.universalHash(key, index));
+                counts[Settings.reduce((int) h, BUCKETS)]++;
+                for (long other : others) {
+                    if (h == hash.universalHash(key, other)) {
+                        same++;
+                    }
+                }
+                for (long other : indexes) {
+                    if (other != index && h == hash.universalHash(key, other)) {
+                        same++;
+                    }
+                }
+            }
+            assertTrue(hash + " index " + index + " same " + same, same < 10);
+            // the buckets of the keys are about uniformly distributed
+            int expected = keys.length / BUCKETS;
+            for (int c : counts) {
+                assertTrue(hash + " index " + index + " count " + c,
+                        Math.abs(c - expected) < expected / 5);
+            }
+        }
+    }
+
+}